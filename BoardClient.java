@@ -1,15 +1,36 @@
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
 
 
 public abstract class BoardClient {
 	
+	private String host;
+	private int port;
 	private Socket client;
-	private BufferedReader in;
-	private PrintWriter out;
+	private volatile PacketStream stream;
+	private boolean binary;
+	private int window = 1;
+	private ConcurrentHashMap<String, CompletableFuture<String>> inFlight;	// Posts awaiting their ACK, by id
+	private volatile boolean ended;	// Set once the server stops acknowledging
+	private volatile boolean lost;	// Set if that was because the connection dropped
+	private String token;	// Resume token from the last login, or null
+	private String unsent;	// Post taken from getPost() while the connection was down
+	private volatile String channel;	// Channel posted to, null for the server's default
+	private int reconnects = RECONNECT_ATTEMPTS;
+	
+	/**
+	 * Times a dropped connection is retried before giving up
+	 */
+	public static final int RECONNECT_ATTEMPTS = 5;
+	private static final long RECONNECT_DELAY = 250;	// Milliseconds before the first retry, doubled for each after
 	
 	// Error messages and whatnot
 	protected static String SERV_ID = "Server says: ";
@@ -19,54 +40,423 @@ public abstract class BoardClient {
 	private static final String ERR_APPEND = "Error: ";
 	
 	public BoardClient(String host, int port) throws IOException {
-		client = new Socket(host, port);
-		in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-		out = new PrintWriter(client.getOutputStream(), true);
-		System.out.println("Connection made to " + client.getInetAddress());
+		this(host, port, false);
+	}
+	
+	/**
+	 * Creates a new BoardClient
+	 * @param host host to connect to
+	 * @param port port to connect to
+	 * @param binary true to ask the server for BINARY framing
+	 * @throws IOException if no IO
+	 */
+	public BoardClient(String host, int port, boolean binary) throws IOException {
+		this.host = host;
+		this.port = port;
+		this.binary = binary;
+		connect();
+		printMessage("Connection made to " + client.getInetAddress());
 		
 	}
 	
+	private void connect() throws IOException {
+		client = new Socket(host, port);
+		client.setTcpNoDelay(true);	// Each post waits on its ACK, so there is never anything to coalesce
+		stream = new PacketStream(client);
+	}
+	
+	/**
+	 * Sets how many times a dropped connection is retried, logging back in with
+	 * the token from the last login. Posts that were waiting on their
+	 * acknowledgements when it dropped are reported as errors, since there is no
+	 * knowing whether they were posted.
+	 * @param attempts retries, 0 to give up straight away
+	 */
+	public void setReconnects(int attempts) {
+		reconnects = Math.max(attempts, 0);
+	}
+	
+	/**
+	 * Sets the channel to post to once logged in. A /join command moves the
+	 * session to another channel later on, and a resumed session goes back to
+	 * whichever channel it was last in.
+	 * @param channel channel name, or null for the server's default
+	 */
+	public void setChannel(String channel) {
+		this.channel = channel;
+	}
+	
+	/**
+	 * Sets how many posts may be waiting on their acknowledgements at once. With
+	 * more than one, each post is tagged with an id and sent as soon as getPost()
+	 * supplies it; acknowledgements are matched up by id as they arrive, and
+	 * posted() is called for each on a separate thread.
+	 * @param window posts in flight, 1 to wait for each acknowledgement in turn
+	 */
+	public void setWindow(int window) {
+		this.window = Math.max(window, 1);
+	}
+	
 	public final void start() throws IOException {
-		System.out.println("Client started");
-		out.println(Protocol.createPacket(Protocol.CLIENT_READWRITE));
-		String response = in.readLine();
-		System.out.println("ID Response: " + response);
-		String header = Protocol.getHeader(response);
-		if (header.equals(Protocol.STATUS_ACK)) {
+		printMessage("Client started");
+		if (hello()) {
 			printMessage("Welcome to <placeholder>!");
 			if (login()) {
 				printMessage(LOGIN_SUCCESS);
 				handleSession();
 			}	
-		} else {
-			printError(Protocol.getChunks(response)[1]);
 		}
 		close();
 	}
 	
+	/**
+	 * Identifies the client to the server and agrees on the framing
+	 * @return whether the server took the client on
+	 */
+	private boolean hello() throws IOException {
+		List<String> chunks = new ArrayList<>();
+		chunks.add(Protocol.CLIENT_READWRITE);
+		if (binary) {
+			chunks.add(Protocol.OPT_FRAMING);
+			chunks.add(Protocol.FRAMING_BINARY);
+		}
+		if (channel != null) {
+			chunks.add(Protocol.OPT_CHANNEL);
+			chunks.add(channel);
+		}
+		stream.write(chunks.toArray(new String[chunks.size()]));
+		Packet response = stream.read();
+		if (response == null) {
+			throw new EOFException("Server closed connection");
+		}
+		printMessage("ID Response: " + String.join(" ", response.chunks()));
+		if (!response.headerIs(Protocol.STATUS_ACK)) {
+			printError(response.chunk(1));
+			return false;
+		}
+		if (response.chunkEquals(2, Protocol.FRAMING_BINARY)) {
+			stream.setFraming(Framing.BINARY);
+		}
+		return true;
+	}
+	
 	private void handleSession() throws IOException {
 		printMessage("/quit to terminate session");
+		while (window > 1 ? handlePipelined() : handleInTurn()) {
+			if (!resume()) {
+				if (unsent != null) {
+					printError("Not posted: " + unsent);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Sends posts one at a time, each after the last one's acknowledgement
+	 * @return true if the connection dropped, false if the session ended
+	 */
+	private boolean handleInTurn() {
 		do {
 			String input = getPost();
-			if (input.equals("")) {
+			if (input.replaceAll("[\\r\\n]", "").isEmpty()) {
 				continue;
 			}
-			out.println(Protocol.createPacket(Protocol.ACT_POST, input));
-			String response = in.readLine();
-			String respHeader = Protocol.getHeader(response);
+			Packet response;
+			try {
+				stream.write(post(input, null));
+				response = stream.read();
+				while (response != null && isFound(response)) {
+					printFound(response);
+					response = stream.read();
+				}
+			} catch (IOException e) {
+				response = null;
+			}
+			if (response == null) {
+				if (!input.startsWith("/quit")) {
+					printError("Connection lost, not known whether this was posted: " + input);
+				}
+				return !input.startsWith("/quit");
+			}
 //			System.out.println("Response: " + respHeader);
-			if (respHeader.equals(Protocol.STATUS_ACK)) {
+			if (response.headerIs(Protocol.STATUS_ACK)) {
 //				printMessage("Message posted successfully");
-			} else if (respHeader.equals(Protocol.STATUS_END)) {
-				printMessage(Protocol.getChunks(response)[1]);
-				return;
+				acknowledged(input, response.chunk(1));
+			} else if (response.headerIs(Protocol.STATUS_END)) {
+				printMessage(response.chunk(1));
+				return false;
+			} else if (response.headerIs(Protocol.STATUS_ERR)) {
+				printError(response.chunk(1));	// Only this post or command failed, the session carries on
 			} else {
-				printError(Protocol.getChunks(response)[1]);
-				return;
+				printError(response.chunk(1));
+				return false;
 			}
 		} while (true);
 	}
 	
+	/**
+	 * Connects again after the connection dropped and logs back in with the resume
+	 * token. Retries wait longer each time, with some randomness, so that clients
+	 * cut off together do not all come back at the same moment.
+	 * @return whether the session is back
+	 */
+	private boolean resume() {
+		disconnect();
+		if (token == null) {
+			return false;
+		}
+		long delay = RECONNECT_DELAY;
+		for (int attempt = 1; attempt <= reconnects; attempt++) {
+			printMessage("Connection lost, reconnecting (" + attempt + " of " + reconnects + ")");
+			try {
+				Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			delay *= 2;
+			try {
+				connect();
+				if (!hello()) {
+					disconnect();
+					continue;
+				}
+				stream.write(Protocol.ACT_RESUME, token);
+				Packet response = stream.read();
+				if (response != null && response.headerIs(Protocol.STATUS_ACK)) {
+					token = response.size() > 2 ? response.chunk(2) : null;
+					printMessage("Session resumed");
+					return true;
+				}
+				if (response != null) {
+					printError(new StringBuffer(SERV_ID).append(response.chunk(1)).toString());
+					return false;	// Token refused, another try would not help
+				}
+			} catch (IOException e) {
+				disconnect();	// Try again
+			}
+		}
+		return false;
+	}
+	
+	private void disconnect() {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// Already gone
+		}
+	}
+	
+	/**
+	 * Sends posts without waiting for their acknowledgements, blocking only while
+	 * the window is full. A separate thread reads the acknowledgements.
+	 * @return true if the connection dropped, false if the session ended
+	 */
+	private boolean handlePipelined() {
+		inFlight = new ConcurrentHashMap<>();
+		ended = false;
+		lost = false;
+		Semaphore slots = new Semaphore(window);
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readAcknowledgements();
+			}
+		}, "BoardClient acknowledgements");
+		reader.setDaemon(true);
+		reader.start();
+		long nextId = 0;
+		try {
+			while (!ended) {
+				String input = unsent != null ? unsent : getPost();
+				unsent = null;
+				if (input.replaceAll("[\\r\\n]", "").isEmpty()) {
+					continue;
+				}
+				if (input.startsWith("/quit")) {
+					slots.acquire(window);	// Every post is acknowledged before leaving
+					if (!ended) {
+						stream.write(Protocol.ACT_POST, input);
+					}
+					return false;
+				}
+				slots.acquire();
+				if (ended) {
+					unsent = input;	// Sent once the session is resumed
+					break;
+				}
+				String id = Long.toString(++nextId);
+				CompletableFuture<String> ack = new CompletableFuture<>();
+				ack.whenComplete(new BiConsumer<String, Throwable>() {
+					public void accept(String status, Throwable error) {
+						slots.release();
+						if (error == null) {
+							acknowledged(input, status);
+						}
+					}
+				});
+				inFlight.put(id, ack);
+				if (ended) {
+					ack.completeExceptionally(new IOException("Connection closed"));	// The reader may have missed it
+				}
+				stream.write(post(input, id));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (IOException e) {
+			try {
+				stream.close();	// So the reader gives up too
+			} catch (IOException ignored) {
+			}
+		}
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return lost;
+	}
+	
+	/**
+	 * Completes the pending post each acknowledgement names, until the server
+	 * ends the session. Whatever is still pending then fails.
+	 */
+	private void readAcknowledgements() {
+		lost = true;	// Unless the server says otherwise
+		try {
+			Packet response;
+			while ((response = stream.read()) != null) {
+				if (isFound(response)) {
+					printFound(response);
+				} else if (response.headerIs(Protocol.STATUS_ACK)) {
+					CompletableFuture<String> ack = response.size() > 2 ? inFlight.remove(response.chunk(2)) : null;
+					if (ack != null) {
+						ack.complete(response.chunk(1));
+					}
+				} else if (response.headerIs(Protocol.STATUS_ERR) && response.size() > 2 && inFlight.containsKey(response.chunk(2))) {
+					// Only this post was refused, the session carries on
+					printError(response.chunk(1));
+					inFlight.remove(response.chunk(2)).completeExceptionally(new IOException(response.chunk(1)));
+				} else if (response.headerIs(Protocol.STATUS_END)) {
+					printMessage(response.chunk(1));
+					lost = false;
+					break;
+				} else {
+					printError(response.chunk(1));
+					lost = false;
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// Connection closed
+		}
+		ended = true;
+		if (lost && !inFlight.isEmpty()) {
+			printError("Connection lost, not known whether the last " + inFlight.size() + " posts were posted");
+		}
+		for (CompletableFuture<String> ack : inFlight.values()) {
+			ack.completeExceptionally(new IOException("Connection closed"));
+		}
+	}
+	
+	/**
+	 * Follows up on an acknowledgement: a /join moved the session, a /search
+	 * is over, anything else was posted
+	 * @param input text from getPost()
+	 * @param status text of the acknowledgement
+	 */
+	private void acknowledged(String input, String status) {
+		String to = joinTarget(input);
+		if (to != null) {
+			channel = to;
+			printMessage(status);
+		} else if (input.startsWith("/search")) {
+			printMessage(status);
+		} else {
+			posted(input);
+		}
+	}
+	
+	/**
+	 * @param input text from getPost()
+	 * @return the channel a /join command names, or null if it is not one
+	 */
+	private static String joinTarget(String input) {
+		return input.startsWith("/join") ? input.substring("/join".length()).trim().toLowerCase() : null;
+	}
+	
+	/**
+	 * @param response packet from the server
+	 * @return whether it is a message found by a /search
+	 */
+	private static boolean isFound(Packet response) {
+		return response.headerIs(Protocol.NOTIFY) || response.headerIs(Protocol.NOTIFY_MESSAGE);
+	}
+	
+	private void printFound(Packet response) {
+		if (response.headerIs(Protocol.NOTIFY)) {
+			printMessage(response.chunk(1));
+			return;
+		}
+		Message message = Message.decode(response);
+		printMessage(message != null ? message.toString() : "Damaged message");
+	}
+	
+	/**
+	 * Builds the packet for a /search. Words starting with @ name the author, the
+	 * rest have to be in the messages.
+	 * @param input text from getPost(), starting with /search
+	 * @param id id for the answer to carry, or null
+	 * @return header and chunks of the packet
+	 */
+	private static String[] search(String input, String id) {
+		StringBuilder words = new StringBuilder();
+		String author = "";
+		for (String word : input.substring("/search".length()).trim().split("\\s+")) {
+			if (word.startsWith("@")) {
+				author = word.substring(1);
+			} else {
+				words.append(word).append(' ');
+			}
+		}
+		if (id != null) {
+			return new String[] {Protocol.ACT_SEARCH, words.toString().trim(), author, "", "", "", id};
+		}
+		return new String[] {Protocol.ACT_SEARCH, words.toString().trim(), author, "", "", ""};
+	}
+	
+	/**
+	 * Builds the packet for a post. Text of more than one line is sent as an
+	 * ACT_POST_BATCH, each line a message of its own, so a relay can hand over
+	 * many lines in one go.
+	 * @param input text from getPost()
+	 * @param id id for the acknowledgement to carry, or null
+	 * @return header and chunks of the packet
+	 */
+	private static String[] post(String input, String id) {
+		if (input.startsWith("/search")) {
+			return search(input, id);
+		}
+		if (input.indexOf('\n') < 0) {
+			return id != null ? new String[] {Protocol.ACT_POST, input, id} : new String[] {Protocol.ACT_POST, input};
+		}
+		List<String> chunks = new ArrayList<>();
+		chunks.add(Protocol.ACT_POST_BATCH);
+		chunks.add(null);	// Count, once it is known
+		for (String line : input.split("\\r?\\n")) {
+			if (!line.isEmpty()) {
+				chunks.add(line);
+			}
+		}
+		chunks.set(1, Integer.toString(chunks.size() - 2));
+		if (id != null) {
+			chunks.add(id);
+		}
+		return chunks.toArray(new String[chunks.size()]);
+	}
+	
 	private final boolean login() throws IOException {
 		boolean register = isRegistering();
 		String username = getUsername();
@@ -79,15 +469,14 @@ public abstract class BoardClient {
 			header = Protocol.ACT_LOGIN;
 			password = getPassword(false);
 		}
-		String packet = Protocol.createPacket(header, username, password);
-		out.println(packet);
-		String response = in.readLine();
-		String resHeader = Protocol.getHeader(response);
+		stream.write(header, username, password);
+		Packet response = stream.read();
 //		System.out.println("Login response: " + response);
-		if (resHeader.equals(Protocol.STATUS_ACK)) {
+		if (response.headerIs(Protocol.STATUS_ACK)) {
+			token = response.size() > 2 ? response.chunk(2) : null;
 			return true;
 		} else {
-			printError(new StringBuffer(SERV_ID).append(Protocol.getChunks(response)[1]).toString());
+			printError(new StringBuffer(SERV_ID).append(response.chunk(1)).toString());
 			return false;
 		}
 	}
@@ -106,10 +495,19 @@ public abstract class BoardClient {
 	
 	protected abstract String getPost();
 	
+	/**
+	 * Called once the server has acknowledged a post. Does nothing by default.
+	 * When pipelining, it is called on the thread reading acknowledgements.
+	 * @param post the text that was posted
+	 */
+	protected void posted(String post) {
+	}
+	
 	public final void close() throws IOException {
-		out.println(Protocol.createPacket(Protocol.STATUS_END, "Client closed connection"));
-		in.close();
-		out.close();
-		client.close();
+		if (client.isClosed()) {
+			return;
+		}
+		stream.write(Protocol.STATUS_END, "Client closed connection");
+		stream.close();
 	}
 }
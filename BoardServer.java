@@ -1,14 +1,40 @@
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Date;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import javax.management.JMException;
+import javax.security.auth.login.LoginException;
 
 /**
  * BoardServer drives the server for both BoardClients and BoardViewers. It utilizes
@@ -21,94 +47,1625 @@ import java.util.concurrent.ConcurrentLinkedDeque;
  */
 public class BoardServer {
 	
-	private ServerSocket server;
-	private ConcurrentLinkedDeque<Message> history;	// Immediate message history
-	private ConcurrentHashMap<String, User> users;	// User database
-	private ConcurrentHashMap<String, ClientHandler> online;	// Online users and handlers
-	private ConcurrentLinkedDeque<ViewerHandler> viewers;
+	private ServerSocketChannel channel;
+	private ServerSocket server;
+	private ConcurrentHashMap<String, Channel> channels;	// Every channel opened so far, by name
+	private Channel main;	// Channel of clients that do not ask for one
+	private UserStore store;	// User database on disk, or null if not kept
+	private ConcurrentHashMap<String, User> users;	// User database
+	private ConcurrentHashMap<String, Session> online;	// Online users and handlers
+	private Executor sessions;	// Runs ViewerHandlers and ClientHandlers, or the slow work of NioSessions
+	private BoundedExecutor handshakes;	// Runs PreHandlers
+	private Verifier verifier;	// Hashes passwords off the session threads
+	private InetSocketAddress leader;	// Cluster port of the leader, if this node follows one
+	private String node;	// Id this node goes by with the leader
+	private Set<PeerHandler> peers;	// Followers connected, if this node leads
+	private byte[] dictionary;	// Preset dictionary of compressed viewers, or null if compression is off
+	private RateLimiter.Keyed<String> userLimits;
+	private RateLimiter.Keyed<InetAddress> addressLimits;
+	private RateLimiter acceptLimit;
+	private Metrics metrics;
+	private Metrics.Counter accepts;
+	private Metrics.Counter rejected;
+	private Metrics.Counter logins;
+	private Metrics.Counter loginFailures;
+	private Metrics.Counter registrations;
+	private Metrics.Counter loginsCached;
+	private Metrics.Counter loginsResumed;
+	private Metrics.Counter loginsBusy;
+	private Metrics.Counter posts;
+	private Metrics.Counter postsLimited;
+	private Metrics.Counter broadcasts;
+	private Metrics.Counter deliveries;
+	private Metrics.Counter writes;
+	private Metrics.Counter slowViewers;
+	private Metrics.Counter searches;
+	private LatencyHistogram loginTime;
+	private LatencyHistogram registrationTime;
+	private LatencyHistogram postTime;
+	private LatencyHistogram broadcastTime;
+	private LatencyHistogram searchTime;
+	
+	/**
+	 * This variable defines the message backlog, which includes the message itself,
+	 * a timestamp, and the user who posted said message.
+	 */
+	public static final int MESSAGE_CACHE = 10;
+	
+	/**
+	 * Most bytes of UTF-8 one post may hold with its author's name, or all the
+	 * posts of one ACT_POST_BATCH together. The rest of a frame is left for what
+	 * goes around them: the header, sequence number, time and CRC of a
+	 * NOTIFY_MESSAGE, the timestamp of a TEXT notification, or the chunks of an
+	 * ACT_FORWARD. Anything longer would be logged as a frame that viewers and
+	 * followers refuse.
+	 */
+	public static final int MAX_MESSAGE = Framing.MAX_FRAME - 256;
+	
+	/**
+	 * Number of recent messages kept in memory. Set with -Dbbs.history=
+	 */
+	public static final int HISTORY_SIZE = Integer.getInteger("bbs.history", 4096);
+	
+	/**
+	 * Maximum number of connections that may be waiting on their client
+	 * identifier at once. Connections accepted past this are turned away.
+	 */
+	public static final int MAX_HANDSHAKES = 256;
+	
+	/**
+	 * Milliseconds a connection has to send its client identifier before it is
+	 * dropped, so idle connections cannot hold every handshake slot. Set with
+	 * -Dbbs.handshake.timeout=
+	 */
+	public static final int HANDSHAKE_TIMEOUT = Integer.getInteger("bbs.handshake.timeout", 10000);
+	
+	/**
+	 * Channel of clients that do not name one. Its messages are kept in LOG_DIR
+	 * itself, where they always were; every other channel gets LOG_DIR/channels/name.
+	 */
+	public static final String DEFAULT_CHANNEL = "main";
+	
+	/**
+	 * Most channels that may be open at once. Each has a history, a log and a
+	 * dispatcher thread of its own. Set with -Dbbs.channels.max=
+	 */
+	public static final int MAX_CHANNELS = Integer.getInteger("bbs.channels.max", 256);
+	
+	/**
+	 * Directory the MessageLog is kept in. Set with -Dbbs.log.dir=, or to nothing
+	 * to keep messages in memory only.
+	 */
+	public static final String LOG_DIR = System.getProperty("bbs.log.dir", "messages");
+	
+	/**
+	 * Directory the UserStore is kept in. Set with -Dbbs.users.dir=, or to nothing
+	 * to keep users in memory only.
+	 */
+	public static final String USERS_DIR = System.getProperty("bbs.users.dir", "users");
+	
+	/**
+	 * Most past messages a viewer may ask to be replayed. Set with -Dbbs.replay.max=
+	 */
+	public static final int MAX_REPLAY = Integer.getInteger("bbs.replay.max", 100000);
+	
+	/**
+	 * Number of notifications that may wait for a viewer before VIEWER_OVERFLOW
+	 * kicks in. Set with -Dbbs.viewer.queue=
+	 */
+	public static final int VIEWER_QUEUE = Integer.getInteger("bbs.viewer.queue", 1024);
+	
+	/**
+	 * What happens to a viewer whose queue is full. Set with -Dbbs.viewer.overflow=
+	 * to DROP_OLDEST, DISCONNECT or COALESCE.
+	 */
+	public static final OutboundQueue.Overflow VIEWER_OVERFLOW =
+			OutboundQueue.Overflow.valueOf(System.getProperty("bbs.viewer.overflow", "DROP_OLDEST"));
+	
+	/**
+	 * Most posts a client may have waiting on their acknowledgements before the
+	 * server stops reading ahead and waits for them. Set with -Dbbs.pipeline=
+	 */
+	public static final int MAX_PIPELINE = Integer.getInteger("bbs.pipeline", 256);
+	
+	/**
+	 * Number of posts that may wait for the dispatcher before posters have to wait
+	 * too. Set with -Dbbs.dispatch.queue=
+	 */
+	public static final int DISPATCH_QUEUE = Integer.getInteger("bbs.dispatch.queue", 8192);
+	
+	/**
+	 * Most notifications written to a viewer at once. Set with -Dbbs.batch=, or to
+	 * 1 to write every notification on its own and leave coalescing to Nagle.
+	 */
+	public static final int BATCH_SIZE = Integer.getInteger("bbs.batch", 64);
+	
+	/**
+	 * Longest a partial batch is held back during a burst of posts, in
+	 * milliseconds. Set with -Dbbs.batch.linger=
+	 */
+	public static final int BATCH_LINGER = Integer.getInteger("bbs.batch.linger", 1);
+	
+	/**
+	 * Whether to set TCP_NODELAY on accepted sockets. Viewers are batched by the
+	 * server, so Nagle's algorithm would only delay the end of each batch.
+	 */
+	public static final boolean NO_DELAY = BATCH_SIZE > 1;
+	
+	/**
+	 * Posts per second each user may keep up, and how many they may make in a
+	 * burst. Set with -Dbbs.rate.user= and -Dbbs.rate.user.burst=, 0 for no limit.
+	 */
+	public static final double USER_RATE = Double.parseDouble(System.getProperty("bbs.rate.user", "50"));
+	public static final int USER_BURST = Integer.getInteger("bbs.rate.user.burst", 200);
+	
+	/**
+	 * Posts per second that may come from one address, whoever is logged in, and
+	 * the burst. Set with -Dbbs.rate.address= and -Dbbs.rate.address.burst=
+	 */
+	public static final double ADDRESS_RATE = Double.parseDouble(System.getProperty("bbs.rate.address", "500"));
+	public static final int ADDRESS_BURST = Integer.getInteger("bbs.rate.address.burst", 2000);
+	
+	/**
+	 * Most posts one ACT_POST_BATCH may carry: the smaller burst of the limits in
+	 * force, since a bigger batch could never be allowed
+	 */
+	public static final int MAX_BATCH = Math.min(USER_RATE > 0 ? Math.max(USER_BURST, 1) : Integer.MAX_VALUE,
+			ADDRESS_RATE > 0 ? Math.max(ADDRESS_BURST, 1) : Integer.MAX_VALUE);
+	
+	/**
+	 * Connections per second the server accepts, and the burst. Connections past
+	 * it are turned away before anything else is done with them. Set with
+	 * -Dbbs.rate.accept= and -Dbbs.rate.accept.burst=
+	 */
+	public static final double ACCEPT_RATE = Double.parseDouble(System.getProperty("bbs.rate.accept", "500"));
+	public static final int ACCEPT_BURST = Integer.getInteger("bbs.rate.accept.burst", 1000);
+	
+	/**
+	 * Threads hashing passwords at once, and how many logins may wait for one
+	 * before the rest are told to try again. Set with -Dbbs.verify.threads= and
+	 * -Dbbs.verify.queue=
+	 */
+	public static final int VERIFY_THREADS = Integer.getInteger("bbs.verify.threads",
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	public static final int VERIFY_QUEUE = Integer.getInteger("bbs.verify.queue", 256);
+	
+	/**
+	 * Seconds a verified login may be reused by the same user and password without
+	 * hashing again, and how many users are remembered. Set with
+	 * -Dbbs.verify.cache= and -Dbbs.verify.cache.size=, 0 to hash every login.
+	 */
+	public static final int VERIFY_CACHE = Integer.getInteger("bbs.verify.cache", 600);
+	public static final int VERIFY_CACHE_SIZE = Integer.getInteger("bbs.verify.cache.size", 10000);
+	
+	/**
+	 * Seconds the token handed out with each login can be used to log back in
+	 * without a password, such as after a dropped connection. Set with
+	 * -Dbbs.resume.ttl=, 0 to hand out none.
+	 */
+	public static final int RESUME_TTL = Integer.getInteger("bbs.resume.ttl", 900);
+	
+	/**
+	 * Port this node takes cluster followers on, which makes it the cluster's
+	 * leader: the one node that numbers posts. Set with -Dbbs.cluster.port=
+	 * A leader needs a CLUSTER_KEY, and a message log to catch followers up from.
+	 */
+	public static final int CLUSTER_PORT = Integer.getInteger("bbs.cluster.port", 0);
+	
+	/**
+	 * host:port of the leader's cluster port, which makes this node a follower.
+	 * Its posts are forwarded to the leader and every message comes from there.
+	 * Set with -Dbbs.cluster.leader=
+	 */
+	public static final String CLUSTER_LEADER = System.getProperty("bbs.cluster.leader", "");
+	
+	/**
+	 * Secret the leader expects its followers to give. Followers post under any
+	 * name they like, so a leader will not open its cluster port without one.
+	 * Set with -Dbbs.cluster.key=
+	 */
+	public static final String CLUSTER_KEY = System.getProperty("bbs.cluster.key", "");
+	
+	/**
+	 * Most messages one search returns, and how many when the client does not say.
+	 * Set with -Dbbs.search.max= and -Dbbs.search.limit=
+	 */
+	public static final int MAX_SEARCH = Integer.getInteger("bbs.search.max", 100);
+	public static final int SEARCH_LIMIT = Integer.getInteger("bbs.search.limit", 20);
+	
+	/**
+	 * Bytes of recent messages viewers that ask for compression are given as the
+	 * preset dictionary. Set with -Dbbs.compress.dictionary=, 0 to turn
+	 * compression off. See Compressor.
+	 */
+	public static final int COMPRESS_DICTIONARY = Integer.getInteger("bbs.compress.dictionary", 4096);
+	
+	/**
+	 * Port metrics are served on as text, at /metrics. Set with -Dbbs.metrics.port=
+	 * to turn it on; the metrics are always available over JMX.
+	 */
+	public static final int METRICS_PORT = Integer.getInteger("bbs.metrics.port", -1);
+	
+	/**
+	 * Creates a new BoardServer on a given port
+	 * @param port port to initialize on
+	 * @throws IOException thrown if no IO
+	 */
+	public BoardServer(int port) throws IOException {
+		channel = ServerSocketChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		server = channel.socket();
+		users = new ConcurrentHashMap<>();
+		online = new ConcurrentHashMap<>();
+		channels = new ConcurrentHashMap<>();
+		userLimits = new RateLimiter.Keyed<>(USER_RATE, USER_BURST);
+		addressLimits = new RateLimiter.Keyed<>(ADDRESS_RATE, ADDRESS_BURST);
+		acceptLimit = new RateLimiter(ACCEPT_RATE, ACCEPT_BURST);
+		verifier = new Verifier(VERIFY_THREADS, VERIFY_QUEUE, VERIFY_CACHE * 1000L, VERIFY_CACHE_SIZE);
+		peers = ConcurrentHashMap.newKeySet();
+		if (!CLUSTER_LEADER.isEmpty()) {
+			if (CLUSTER_PORT > 0) {
+				throw new IllegalArgumentException("A node cannot lead a cluster and follow one");
+			}
+			int colon = CLUSTER_LEADER.lastIndexOf(':');
+			leader = new InetSocketAddress(CLUSTER_LEADER.substring(0, colon), Integer.parseInt(CLUSTER_LEADER.substring(colon + 1)));
+			node = UUID.randomUUID().toString();
+		}
+		if (CLUSTER_PORT > 0 && CLUSTER_KEY.isEmpty()) {
+			throw new IllegalArgumentException("A cluster leader needs a key, set with -Dbbs.cluster.key=");
+		}
+		if (CLUSTER_PORT > 0 && LOG_DIR.isEmpty()) {
+			throw new IllegalArgumentException("A cluster leader needs a message log to catch followers up from");
+		}
+		createMetrics();
+		main = new Channel(DEFAULT_CHANNEL, LOG_DIR.isEmpty() ? null : new File(LOG_DIR));
+		channels.put(DEFAULT_CHANNEL, main);
+		if (COMPRESS_DICTIONARY > 0) {
+			dictionary = Compressor.dictionary(main.history.snapshot(0, main.history.last()), COMPRESS_DICTIONARY);
+		}
+		if (!USERS_DIR.isEmpty()) {
+			store = new UserStore(new File(USERS_DIR), users);
+			store.start();
+		}
+		if (CLUSTER_PORT > 0) {
+			startCluster(CLUSTER_PORT);
+		}
+		if (METRICS_PORT >= 0) {
+			metrics.serve(METRICS_PORT);
+			Log.info("Metrics served on port {}", METRICS_PORT);
+		}
+		Log.info("BoardServer created on {}", InetAddress.getLocalHost().getHostAddress());
+	}
+	
+	/**
+	 * Registers everything the server counts and times, and what it reports on demand
+	 */
+	private void createMetrics() {
+		metrics = new Metrics("bbs_");
+		accepts = metrics.counter("accepts_total", "Connections accepted");
+		rejected = metrics.counter("accepts_rejected_total", "Connections turned away as too busy");
+		logins = metrics.counter("logins_total", "Successful logins");
+		loginFailures = metrics.counter("login_failures_total", "Failed logins and registrations");
+		registrations = metrics.counter("registrations_total", "Users registered");
+		loginsCached = metrics.counter("logins_cached_total", "Logins let in on a recent verification, without hashing");
+		loginsResumed = metrics.counter("logins_resumed_total", "Logins made with a resume token instead of a password");
+		loginsBusy = metrics.counter("logins_busy_total", "Logins and registrations turned away because the verifier was full");
+		posts = metrics.counter("posts_total", "Messages posted");
+		postsLimited = metrics.counter("posts_limited_total", "Posts refused for going over a rate limit");
+		broadcasts = metrics.counter("broadcasts_total", "Notifications sent to every viewer");
+		deliveries = metrics.counter("deliveries_total", "Notifications handed to a viewer");
+		writes = metrics.counter("viewer_writes_total", "Batches of notifications written to viewers");
+		slowViewers = metrics.counter("slow_viewer_disconnects_total", "Viewers disconnected for falling behind");
+		loginTime = metrics.histogram("login_seconds", "Time to check a login");
+		registrationTime = metrics.histogram("registration_seconds", "Time to register and save a user");
+		postTime = metrics.histogram("post_seconds", "Time to log, store and broadcast a run of posts");
+		broadcastTime = metrics.histogram("broadcast_seconds", "Time to hand a notification to every viewer");
+		searches = metrics.counter("searches_total", "Searches of message history");
+		searchTime = metrics.histogram("search_seconds", "Time to search a channel and read out what was found");
+		metrics.gauge("online_users", "Users logged in", new Metrics.Gauge() {
+			public long value() {
+				return online.size();
+			}
+		});
+		metrics.gauge("viewers", "Viewers connected", new Metrics.Gauge() {
+			public long value() {
+				long total = 0;
+				for (Channel channel : channels.values()) {
+					total += channel.viewers.size();
+				}
+				return total;
+			}
+		});
+		metrics.gauge("channels", "Channels open", new Metrics.Gauge() {
+			public long value() {
+				return channels.size();
+			}
+		});
+		metrics.gauge("history_depth", "Messages held in memory, over every channel", new Metrics.Gauge() {
+			public long value() {
+				long total = 0;
+				for (Channel channel : channels.values()) {
+					total += channel.history.last() - channel.history.first() + 1;
+				}
+				return total;
+			}
+		});
+		metrics.gauge("dispatch_backlog", "Posts waiting for a dispatcher, over every channel", new Metrics.Gauge() {
+			public long value() {
+				long total = 0;
+				for (Channel channel : channels.values()) {
+					total += channel.dispatcher.backlog();
+				}
+				return total;
+			}
+		});
+		metrics.gauge("cluster_peers", "Followers connected to this node, one per channel they follow", new Metrics.Gauge() {
+			public long value() {
+				return peers.size();
+			}
+		});
+		metrics.gauge("forward_backlog", "Posts forwarded to the cluster leader and not yet acknowledged", new Metrics.Gauge() {
+			public long value() {
+				long total = 0;
+				for (Channel channel : channels.values()) {
+					total += channel.upstream != null ? channel.upstream.backlog() : 0;
+				}
+				return total;
+			}
+		});
+		metrics.gauge("verify_queue", "Logins and registrations waiting to be hashed", new Metrics.Gauge() {
+			public long value() {
+				return verifier.depth();
+			}
+		});
+		metrics.gauge("users", "Users registered in total", new Metrics.Gauge() {
+			public long value() {
+				return users.size();
+			}
+		});
+		metrics.gauge("log_lines_dropped_total", "Console lines dropped because the console fell behind", new Metrics.Gauge() {
+			public long value() {
+				return Log.dropped();
+			}
+		});
+		try {
+			metrics.registerMBean("bbs:type=Metrics,port=" + server.getLocalPort());
+		} catch (JMException e) {
+			Log.warn("Metrics not available over JMX: {}", e.getMessage());
+		}
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Counts a connection as accepted
+	 * @param admitted false if it is being turned away
+	 */
+	void accepted(boolean admitted) {
+		accepts.increment();
+		if (!admitted) {
+			rejected.increment();
+		}
+	}
+	
+	/**
+	 * Counts a batch of packets written to a viewer
+	 */
+	void wrote() {
+		writes.increment();
+	}
+	
+	/**
+	 * Counts a viewer disconnected for not keeping up with its notifications
+	 * @param viewer the viewer
+	 */
+	void slowViewer(Viewer viewer) {
+		slowViewers.increment();
+		Log.warn("Disconnecting slow viewer {} ({})", viewer, viewer.getQueue());
+	}
+	
+	/**
+	 * Creates a backup of the current user database (does not include login states).
+	 * Logins and registrations carry on while it is written.
+	 * @param filename name of file to write to
+	 * @throws IOException if no IO
+	 */
+	public void backup(String filename) throws IOException {
+		UserStore.write(new File(filename), users.values());
+	}
+	
+	/**
+	 * Restores database data created by backup() method, on top of the users
+	 * already known
+	 * @param filename file to read from
+	 * @throws IOException if no IO or the file is damaged
+	 */
+	public void restore(String filename) throws IOException {
+		UserStore.read(new File(filename), users);
+		if (store != null) {
+			store.snapshot();	// The log only knows about registrations
+		}
+	}
+	
+	/**
+	 * Creates and initializes the BoardServer
+	 * @throws IOException if no IO
+	 */
+	public void start() throws IOException {
+		start(false);
+	}
+	
+	/**
+	 * Creates and initializes the BoardServer, running every session on its own
+	 * thread. Virtual threads let a single JVM hold tens of thousands of sessions
+	 * without raising the OS thread limit.
+	 * @param virtualThreads true to run sessions on virtual threads
+	 * @throws IOException if no IO
+	 */
+	public void start(boolean virtualThreads) throws IOException {
+		sessions = BoundedExecutor.threadPerTask(virtualThreads);
+		handshakes = new BoundedExecutor(sessions, MAX_HANDSHAKES);
+		Log.info("BoardServer started");
+		while(true) {
+			Socket temp = server.accept();
+			if (!acceptLimit.tryAcquire(1)) {
+				accepted(false);
+				turnAway(temp.getChannel());
+				continue;
+			}
+			try {
+				handshakes.execute(new PreHandler(temp));
+				accepted(true);
+			} catch (RejectedExecutionException e) {
+				accepted(false);
+				turnAway(temp.getChannel());
+			}
+//			new ClientHandler(temp).start();
+		}
+	}
+	
+	/**
+	 * Starts the BoardServer in non-blocking mode. Connections are accepted on
+	 * the calling thread and spread round-robin over a fixed set of IoLoops, so
+	 * an idle viewer costs a selection key instead of a thread. The wire format
+	 * is the same as the one spoken by start().
+	 * @param loops number of IoLoops to run (usually one per core)
+	 * @throws IOException if no IO
+	 */
+	public void startNonBlocking(int loops) throws IOException {
+		sessions = BoundedExecutor.threadPerTask(false);
+		IoLoop[] workers = new IoLoop[loops];
+		for (int i = 0; i < loops; i++) {
+			workers[i] = new IoLoop(this, i);
+			workers[i].start();
+		}
+		channel.configureBlocking(false);
+		Selector selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_ACCEPT);
+		Log.info("BoardServer started (non-blocking, {} loops)", loops);
+		int next = 0;
+		while (true) {
+			selector.select();
+			selector.selectedKeys().clear();
+			SocketChannel temp;
+			while ((temp = channel.accept()) != null) {
+				if (!acceptLimit.tryAcquire(1)) {
+					accepted(false);
+					turnAway(temp);
+					continue;
+				}
+				workers[next].register(temp);
+				accepted(true);
+				next = (next + 1) % loops;
+			}
+		}
+	}
+	
+	/**
+	 * Runs work of a NioSession that would hold up its IoLoop, such as a replay
+	 * or a search that reads the log, on a thread of its own
+	 * @param task task to run
+	 */
+	void offLoop(Runnable task) {
+		sessions.execute(task);
+	}
+	
+	/**
+	 * Takes cluster followers on a port of their own, each link on a thread of its
+	 * own. There are only ever a few, and they should not wait behind clients.
+	 * @param port port to listen on
+	 * @throws IOException if the port cannot be bound
+	 */
+	private void startCluster(int port) throws IOException {
+		final ServerSocket listener = new ServerSocket(port);
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					Socket sock;
+					try {
+						sock = listener.accept();
+					} catch (IOException e) {
+						Log.error("Cluster port stopped accepting", e);
+						return;
+					}
+					try {
+						Thread peer = new Thread(new PeerHandler(sock), "PeerHandler " + sock.getRemoteSocketAddress());
+						peer.setDaemon(true);
+						peer.start();
+					} catch (IOException e) {
+						try {
+							sock.close();
+						} catch (IOException ignored) {
+						}
+					}
+				}
+			}
+		}, "Cluster");
+		thread.setDaemon(true);
+		thread.start();
+		Log.info("Leading the cluster on port {}", port);
+	}
+	
+	/**
+	 * Tells a freshly accepted connection the server is busy and closes it
+	 * @param sock accepted connection, still blocking
+	 */
+	private void turnAway(SocketChannel sock) {
+		try {
+			sock.write(Framing.TEXT.encode(Protocol.STATUS_ERR, "Server busy"));
+		} catch (IOException e) {
+			// Gone already
+		}
+		try {
+			sock.close();
+		} catch (IOException e) {
+			// Gone already
+		}
+	}
+	
+	/**
+	 * Removes the user with the username specified
+	 * @param username username of User to be removed
+	 * @throws IOException if no IO
+	 */
+	protected void removeUser(String username) throws IOException {
+		Session handler = online.get(username);
+		handler.logout();
+		handler.close();
+		users.remove(username);
+		if (store != null) {
+			store.removed(username);
+		}
+	}
+	
+	/**
+	 * A channel is a board of its own: its own sequence numbers, history, log and
+	 * dispatcher, and the viewers subscribed to it. Posts to one channel are only
+	 * ever sent to that channel's viewers, and channels take no lock in common, so
+	 * quiet channels cost nothing while a busy one is broadcasting.
+	 */
+	class Channel {
+		private String name;
+		private MessageRing history;	// Immediate message history
+		private MessageLog log;	// Every message ever posted, or null if not kept
+		private SearchIndex index;	// Words and authors of every logged message, or null if not kept
+		private volatile IOException failure;	// Why the log stopped taking messages, if it has
+		private Dispatcher dispatcher;	// Hands posts to the log and the viewers in order
+		private ConcurrentLinkedDeque<Viewer> viewers;	// Subscribers
+		private Upstream upstream;	// Link to this channel on the cluster leader, if this node follows one
+		private ConcurrentHashMap<String, AtomicLong> forwarded;	// Last ticket posted for each follower, if this node leads
+		private Compressor compressor;	// Deflates broadcasts for compressed viewers, once one has joined
+		
+		/**
+		 * Opens a channel, recovering its messages from the log
+		 * @param name channel name
+		 * @param dir directory of the channel's log, or null to keep no log
+		 * @throws IOException if the log cannot be opened
+		 */
+		Channel(String name, File dir) throws IOException {
+			this.name = name;
+			viewers = new ConcurrentLinkedDeque<>();
+			if (dir != null) {
+				log = new MessageLog(dir);
+				List<Message> recent = log.tail(HISTORY_SIZE);
+				history = new MessageRing(HISTORY_SIZE, recent.isEmpty() ? log.lastSeq() : recent.get(0).getSeq() - 1);
+				for (Message message : recent) {
+					history.publish(message);
+				}
+				Log.info("Recovered {} messages from {}", log.lastSeq(), dir);
+				openIndex(new File(dir, "index"));
+			} else {
+				history = new MessageRing(HISTORY_SIZE, 0);
+			}
+			dispatcher = new Dispatcher("Dispatcher-" + name, history.last(), DISPATCH_QUEUE, new Dispatcher.Handler() {
+				public void dispatch(List<Message> messages) {
+					deliver(messages);
+				}
+				
+				public void notice(String text) {
+					notifyViewers(text);
+				}
+			});
+			dispatcher.start();
+			forwarded = new ConcurrentHashMap<>();
+			if (leader != null) {
+				upstream = new Upstream(leader, name, node, CLUSTER_KEY, history.last(), DISPATCH_QUEUE, new Upstream.Handler() {
+					public void replicate(Message message) {
+						dispatcher.claim(1);	// Nothing else claims on a follower, so this is the message's own number
+						dispatcher.publish(message);
+					}
+				});
+				upstream.start();
+			}
+		}
+		
+		/**
+		 * Loads the search index and indexes whatever the log has past its last
+		 * checkpoint. An index that cannot be brought level with the log is dropped,
+		 * and the channel cannot be searched.
+		 */
+		private void openIndex(File dir) throws IOException {
+			index = new SearchIndex(dir);
+			if (index.last() > log.lastSeq()) {
+				Log.warn("Search index of {} is ahead of its log, indexing again", name);
+				index.clear();
+			}
+			long loaded = index.last();
+			for (MessageLog.Region region : log.regions(loaded + 1, log.lastSeq())) {
+				MessageLog.Reader reader = region.reader();
+				Message message;
+				while ((message = reader.next()) != null) {
+					index.add(message);
+				}
+			}
+			if (index.last() != log.lastSeq()) {
+				Log.warn("Could not index channel {} past message {}, not searching it", name, index.last());
+				index = null;
+				return;
+			}
+			Log.info("Indexed {} messages of {}, {} of them again", index.last(), name, index.last() - loaded);
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Queues a notice, such as a login, for the channel's viewers. It goes out
+		 * in order with the channel's posts.
+		 * @param text notice text
+		 */
+		void notice(String text) {
+			dispatcher.notice(text);
+		}
+		
+		/**
+		 * Internal method for posting a message by a User. Called by BoardHandlers.
+		 * Takes no lock: the message gets the next sequence number and is queued for
+		 * the dispatcher, which logs it and sends it to the viewers in sequence order.
+		 * On a cluster follower it is forwarded to the leader instead, and comes back
+		 * numbered like any other message from the leader.
+		 * @param message message content to be posted
+		 * @param usr reference to User
+		 * @return sequence number given to the message, or on a follower the ticket
+		 * it was forwarded under, to wait on with awaitDurable()
+		 * @throws IOException if the message log has failed, in which case nothing is posted
+		 */
+		long postMessage(String message, User usr) throws IOException {
+			checkLog();
+			if (upstream != null) {
+				return upstream.forward(usr.getUsername(), Collections.singletonList(message));
+			}
+			long seq = dispatcher.claim(1);
+			dispatcher.publish(new Message(seq, usr.getUsername(), message));
+			return seq;
+		}
+	
+		/**
+		 * Posts several messages by a User as one. They get consecutive sequence
+		 * numbers, with no other post in between, and the dispatcher sends them to
+		 * viewers together unless it was already part way through them.
+		 * @param messages message contents to be posted, in order
+		 * @param usr reference to User
+		 * @return sequence number given to the last message, or the ticket as for postMessage()
+		 * @throws IOException if the message log has failed, in which case nothing is posted
+		 */
+		long postMessages(List<String> messages, User usr) throws IOException {
+			return postMessages(messages, usr.getUsername());
+		}
+		
+		/**
+		 * Posts several messages under a username, such as for a cluster follower
+		 * @param messages message contents to be posted, in order
+		 * @param author username of whoever posted them
+		 * @return sequence number given to the last message, or the ticket as for postMessage()
+		 * @throws IOException if the message log has failed, in which case nothing is posted
+		 */
+		long postMessages(List<String> messages, String author) throws IOException {
+			checkLog();
+			if (upstream != null) {
+				return upstream.forward(author, messages);
+			}
+			long seq = dispatcher.claim(messages.size());
+			for (String message : messages) {
+				dispatcher.publish(new Message(seq++, author, message));
+			}
+			return seq - 1;
+		}
+	
+		private void checkLog() throws IOException {
+			if (failure != null) {
+				throw new IOException("Message log failed, not posting", failure);
+			}
+		}
+	
+		/**
+		 * Logs, stores and broadcasts a run of posted messages. Only ever called by
+		 * the dispatcher, so messages are appended and published in sequence order.
+		 * Everything up to the first message that cannot be logged still goes out;
+		 * that one and everything after it are dropped.
+		 * @param messages messages with consecutive sequence numbers
+		 */
+		private void deliver(List<Message> messages) {
+			long start = System.nanoTime();
+			int count = messages.size();
+			if (log != null) {
+				for (int i = 0; i < count; i++) {
+					try {
+						log.append(messages.get(i));
+					} catch (IOException e) {
+						if (failure == null) {
+							failure = e;
+							Log.error("Could not log message {}, no longer posting", messages.get(i).getSeq(), e);
+						}
+						count = i;
+						break;
+					}
+				}
+			}
+			if (count == 0) {
+				return;
+			}
+			List<Message> run = count == messages.size() ? messages : messages.subList(0, count);
+			synchronized (this) {
+				// Together, so addViewer() sees a message either in the history or on its way to the viewer
+				for (Message message : run) {
+					history.publish(message);
+				}
+				notifyViewers(run, null);
+			}
+			if (index != null) {
+				index.add(run);
+			}
+			posts.add(count);
+			postTime.record(System.nanoTime() - start);
+			for (Message message : run) {
+				Log.info("Message posted: {}", message);
+			}
+		}
+	
+		/**
+		 * Blocks until a posted message is safely on disk, on the leader as well as
+		 * here if this node follows one
+		 * @param seq sequence number returned by postMessage()
+		 * @throws IOException if interrupted while waiting, or if the log failed first
+		 */
+		void awaitDurable(long seq) throws IOException {
+			if (upstream != null) {
+				seq = upstream.awaitForwarded(seq);
+			}
+			if (log != null) {
+				try {
+					log.awaitDurable(seq);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting on message " + seq);
+				}
+			}
+		}
+	
+		/**
+		 * Tells a callback once a posted message is safely on disk, on the leader as
+		 * well as here if this node follows one, or once it never will be, without
+		 * blocking
+		 * @param seq sequence number returned by postMessage()
+		 * @param callback callback to tell, possibly on another thread
+		 */
+		void whenDurable(long seq, final MessageLog.Callback callback) {
+			if (upstream != null) {
+				upstream.whenForwarded(seq, new Upstream.Callback() {
+					public void forwarded(long numbered) {
+						whenNumberedDurable(numbered, callback);
+					}
+					
+					public void failed(IOException e) {
+						callback.failed(e);
+					}
+				});
+			} else {
+				whenNumberedDurable(seq, callback);
+			}
+		}
+		
+		private void whenNumberedDurable(long seq, MessageLog.Callback callback) {
+			if (log != null) {
+				log.whenDurable(seq, callback);
+			} else {
+				callback.durable();
+			}
+		}
+	
+		/**
+		 * Sends a notification to every viewer of the channel. The packet is encoded
+		 * once per framing and each viewer gets a duplicate of the same buffer.
+		 * @param message posted message to send, or null to send text instead
+		 * @param text notice to send when there is no message
+		 */
+		void notifyViewers(Message message, String text) {
+			notifyViewers(message != null ? Collections.singletonList(message) : null, text);
+		}
+	
+		/**
+		 * Sends a text notice, such as a login, to every viewer of the channel
+		 * @param text notice to send
+		 */
+		void notifyViewers(String text) {
+			notifyViewers((List<Message>)null, text);
+		}
+	
+		/**
+		 * Sends a notification to every viewer of the channel, encoded once per framing
+		 * @param messages posted messages to send together, or null to send text instead
+		 * @param text notice to send when there are no messages
+		 */
+		synchronized void notifyViewers(List<Message> messages, String text) {
+			long start = System.nanoTime();
+			ByteBuffer[] packets = new ByteBuffer[Framing.values().length];	// One per framing in use
+			ByteBuffer deflated = null;	// Shared by every compressed viewer
+			int count = 0;
+			for (Viewer handler : viewers) {
+				Framing framing = handler.getFraming();
+				if (packets[framing.ordinal()] == null) {
+					packets[framing.ordinal()] = messages != null ? notification(framing, messages) : framing.encode(Protocol.NOTIFY, text);
+				}
+				if (!handler.isCompressed()) {
+					handler.notifyMessage(packets[framing.ordinal()].duplicate());
+				} else {
+					if (deflated == null) {
+						if (compressor == null) {
+							compressor = new Compressor(dictionary, Compressor.LEVEL);
+						}
+						deflated = compressor.compress(packets[framing.ordinal()]);
+					}
+					handler.notifyMessage(deflated.duplicate());
+				}
+				count++;
+			}
+			broadcasts.increment();
+			deliveries.add(count);
+			broadcastTime.record(System.nanoTime() - start);
+		}
+	
+		/**
+		 * Adds a viewer to the channel's notification list. Every message after the returned
+		 * sequence number will reach the viewer through notifyMessage(); anything up
+		 * to it has to be replayed.
+		 * @param viewer viewer to be added
+		 * @return sequence number of the last message posted before the viewer was added
+		 */
+		synchronized long addViewer(Viewer viewer) {
+			viewers.add(viewer);
+			return history.last();
+		}
+	
+		/**
+		 * Sends a viewer the messages it missed, ahead of anything queued for it. A
+		 * BINARY viewer gets whole runs of the log, which never touch the heap; a TEXT
+		 * viewer gets the messages re-encoded one at a time.
+		 * @param viewer viewer to send to
+		 * @param request what the viewer asked for
+		 * @param upTo value returned by addViewer()
+		 * @throws IOException if no IO
+		 */
+		void replay(Viewer viewer, ReplayRequest request, long upTo) throws IOException {
+			long since = request.since(upTo);
+			if (log == null || since + 1 >= history.first() && viewer.getFraming() == Framing.TEXT) {
+				// Recent enough to come from memory, and a TEXT viewer gets re-encoded messages anyway
+				for (Message message : history.snapshot(since, upTo)) {
+					viewer.replay(notification(viewer.getFraming(), message));
+				}
+			} else {
+				for (MessageLog.Region region : log.regions(since + 1, upTo)) {
+					if (viewer.getFraming() == Framing.BINARY) {
+						viewer.replay(region);
+					} else {
+						MessageLog.Reader reader = region.reader();
+						Message message;
+						while ((message = reader.next()) != null) {
+							viewer.replay(notification(viewer.getFraming(), message));
+						}
+					}
+				}
+			}
+			if (request.explicit) {
+				// Only viewers that asked for a replay know to expect the end of it
+				viewer.replay(viewer.getFraming().encode(Protocol.NOTIFY_STOP, Long.toString(upTo)));
+			}
+		}
+	
+		void removeViewer(Viewer viewer) {
+			viewers.remove(viewer);
+		}
+		
+		/**
+		 * Finds logged messages by the words in them, who posted them and when
+		 * @param text words the messages must all have, or null
+		 * @param author username the messages must be posted by, or null
+		 * @param from earliest time in milliseconds
+		 * @param to latest time in milliseconds
+		 * @param limit most messages to return
+		 * @return the messages, newest first
+		 * @throws IOException if the channel cannot be searched, or no IO
+		 */
+		List<Message> search(String text, String author, long from, long to, int limit) throws IOException {
+			if (index == null) {
+				throw new IOException("Channel " + name + " cannot be searched");
+			}
+			long[] hits = index.search(text, author, from, to, limit);
+			Map<Long, Message> found = new HashMap<>();
+			long[] older = new long[hits.length];	// Hits no longer held in memory
+			int count = 0;
+			for (long seq : hits) {
+				List<Message> held = seq >= history.first() ? history.snapshot(seq - 1, seq) : Collections.<Message>emptyList();
+				if (held.isEmpty()) {
+					older[count++] = seq;
+				} else {
+					found.put(seq, held.get(0));
+				}
+			}
+			if (count > 0) {
+				for (Message message : log.read(Arrays.copyOf(older, count))) {
+					found.put(message.getSeq(), message);
+				}
+			}
+			List<Message> ret = new ArrayList<>(hits.length);
+			for (long seq : hits) {
+				Message message = found.get(seq);
+				if (message != null) {
+					ret.add(message);
+				}
+			}
+			return ret;
+		}
+	
+	}
+	
+	/**
+	 * Finds a channel, opening it if it is not open yet
+	 * @param name channel name, or null for the default channel
+	 * @return the channel
+	 * @throws IOException carrying the error for the client: a bad name, too many
+	 * channels, or a log that cannot be opened
+	 */
+	Channel channel(String name) throws IOException {
+		if (name == null) {
+			return main;
+		}
+		name = name.toLowerCase();
+		Channel ret = channels.get(name);
+		if (ret != null) {
+			return ret;
+		}
+		if (!name.matches("[a-z0-9_-]{1,32}")) {
+			throw new IOException("Bad channel name");
+		}
+		synchronized (channels) {
+			ret = channels.get(name);
+			if (ret == null) {
+				if (channels.size() >= MAX_CHANNELS) {
+					throw new IOException("Too many channels");
+				}
+				ret = new Channel(name, LOG_DIR.isEmpty() ? null : new File(new File(LOG_DIR, "channels"), name));
+				channels.put(name, ret);
+				Log.info("Opened channel {}", name);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return the channel of clients that do not ask for one
+	 */
+	Channel defaultChannel() {
+		return main;
+	}
+	
+	/**
+	 * Looks through the options of a client identifier packet for the channel the
+	 * client wants
+	 * @param hello client identifier packet
+	 * @return the channel name, or null for the default channel
+	 */
+	static String requestedChannel(Packet hello) {
+		return option(hello, Protocol.OPT_CHANNEL);
+	}
+	
+	/**
+	 * @param hello client identifier packet
+	 * @param name option name
+	 * @return the option's value, or null if the client did not give it
+	 */
+	static String option(Packet hello, String name) {
+		for (int i = 1; i + 1 < hello.size(); i += 2) {
+			if (hello.chunkEquals(i, name)) {
+				return hello.chunk(i + 1);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Encodes a posted message for viewers. BINARY viewers get the message's own
+	 * NOTIFY_MESSAGE frame, the same bytes the MessageLog keeps; TEXT viewers get
+	 * a NOTIFY with the sequence number as an extra chunk.
+	 * @param framing framing of the viewer
+	 * @param message message to encode
+	 * @return the encoded notification
+	 */
+	static ByteBuffer notification(Framing framing, Message message) {
+		if (framing == Framing.BINARY) {
+			return message.encode();
+		}
+		return framing.encode(Protocol.NOTIFY, message.toString(), Long.toString(message.getSeq()));
+	}
+	
+	/**
+	 * Encodes several posted messages as one notification: their packets back to
+	 * back in a single buffer, which the viewer reads as the separate packets
+	 * @param framing framing of the viewer
+	 * @param messages messages to encode
+	 * @return the encoded notification
+	 */
+	static ByteBuffer notification(Framing framing, List<Message> messages) {
+		if (messages.size() == 1) {
+			return notification(framing, messages.get(0));
+		}
+		ByteBuffer[] packets = new ByteBuffer[messages.size()];
+		int length = 0;
+		for (int i = 0; i < packets.length; i++) {
+			packets[i] = notification(framing, messages.get(i));
+			length += packets[i].remaining();
+		}
+		ByteBuffer ret = ByteBuffer.allocate(length);
+		for (ByteBuffer packet : packets) {
+			ret.put(packet);
+		}
+		ret.flip();
+		return ret.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Returns the outbound queue statistics of every connected viewer, one per line
+	 * @return queue statistics
+	 */
+	public String viewerStats() {
+		StringBuffer ret = new StringBuffer();
+		for (Channel channel : channels.values()) {
+			for (Viewer viewer : channel.viewers) {
+				ret.append(channel.getName()).append(' ').append(viewer).append(": ").append(viewer.getQueue()).append('\n');
+			}
+		}
+		return ret.toString();
+	}
+	
+	/**
+	 * Looks through the options of a client identifier packet for the framing the
+	 * client would like to use
+	 * @param hello client identifier packet
+	 * @return the framing to switch to after acknowledging the identifier
+	 */
+	static Framing requestedFraming(Packet hello) {
+		for (int i = 1; i + 1 < hello.size(); i += 2) {
+			if (hello.chunkEquals(i, Protocol.OPT_FRAMING) && hello.chunkEquals(i + 1, Protocol.FRAMING_BINARY)) {
+				return Framing.BINARY;
+			}
+		}
+		return Framing.TEXT;
+	}
+	
+	/**
+	 * Builds the acknowledgement of a client identifier. It is always TEXT, since
+	 * the client does not know the outcome yet; when BINARY was agreed on it
+	 * carries the framing name as an extra chunk and both sides switch after it.
+	 * @param framing agreed framing
+	 * @param text acknowledgement text
+	 * @return the encoded acknowledgement, to be sent before anything else
+	 */
+	static ByteBuffer acknowledgement(Framing framing, String text) {
+		if (framing == Framing.BINARY) {
+			return Framing.TEXT.encode(Protocol.STATUS_ACK, text, Protocol.FRAMING_BINARY);
+		}
+		return Framing.TEXT.encode(Protocol.STATUS_ACK, text);
+	}
+	
+	/**
+	 * Builds the acknowledgement of a viewer's identifier. When compression was
+	 * agreed on it also carries COMPRESS_DEFLATE and the preset dictionary, in
+	 * base64, after the framing name.
+	 * @param framing agreed framing
+	 * @param compressor the viewer's Compressor, or null if it gets no compression
+	 * @param text acknowledgement text
+	 * @return the encoded acknowledgement, to be sent before anything else
+	 */
+	ByteBuffer viewerAcknowledgement(Framing framing, Compressor compressor, String text) {
+		if (compressor != null) {
+			return Framing.TEXT.encode(Protocol.STATUS_ACK, text, Protocol.FRAMING_BINARY, Protocol.COMPRESS_DEFLATE,
+					Base64.getEncoder().encodeToString(dictionary));
+		}
+		return acknowledgement(framing, text);
+	}
+	
+	/**
+	 * @param hello a viewer's identifier packet
+	 * @param framing framing agreed on
+	 * @return a Compressor for the viewer's own packets if it asked for compression
+	 * and can have it, otherwise null
+	 */
+	Compressor requestedCompressor(Packet hello, Framing framing) {
+		String requested = option(hello, Protocol.OPT_COMPRESS);
+		if (dictionary == null || framing != Framing.BINARY || !Protocol.COMPRESS_DEFLATE.equals(requested)) {
+			return null;
+		}
+		return new Compressor(dictionary, Compressor.LEVEL);
+	}
+	
+	/**
+	 * Builds the acknowledgement of a post. A post that carried an id gets it back
+	 * as an extra chunk, so a pipelining client can tell which post it is for.
+	 * @param framing framing of the client
+	 * @param id id carried by the post, or null if it had none
+	 * @return the encoded acknowledgement
+	 */
+	static ByteBuffer postAcknowledgement(Framing framing, String id) {
+		if (id != null) {
+			return framing.encode(Protocol.STATUS_ACK, "Message Posted", id);
+		}
+		return framing.encode(Protocol.STATUS_ACK, "Message Posted");
+	}
+	
+	/**
+	 * Checks a post against the limits of its user and of the address it came
+	 * from. Every session of a user shares one limit, as does every connection
+	 * from an address. The limits are looked up on every post rather than held by
+	 * the session, since full ones are forgotten and made again when next needed.
+	 * @param user a logged in User
+	 * @param address remote address of the connection
+	 * @param count number of messages in the post
+	 * @return whether the post may go ahead
+	 */
+	boolean allowPost(User user, InetAddress address, int count) {
+		if (userLimits.get(user.getUsername().toLowerCase()).tryAcquire(count)
+				&& addressLimits.get(address).tryAcquire(count)) {
+			return true;
+		}
+		postsLimited.increment();
+		return false;
+	}
+	
+	/**
+	 * Builds the reply to a post refused by allowPost(). It carries the post's id
+	 * like an acknowledgement would, and the session carries on.
+	 * @param framing framing of the client
+	 * @param id id carried by the post, or null if it had none
+	 * @return the encoded refusal
+	 */
+	static ByteBuffer postRefusal(Framing framing, String id) {
+		if (id != null) {
+			return framing.encode(Protocol.STATUS_ERR, "Posting too fast", id);
+		}
+		return framing.encode(Protocol.STATUS_ERR, "Posting too fast");
+	}
+	
+	/**
+	 * Builds the reply to a post that was taken but never got to disk, because
+	 * the message log failed first. It carries the post's id like an
+	 * acknowledgement would.
+	 * @param framing framing of the client
+	 * @param id id carried by the post, or null if it had none
+	 * @return the encoded failure
+	 */
+	static ByteBuffer postFailure(Framing framing, String id) {
+		return commandReply(framing, false, "Message could not be saved", id);
+	}
+	
+	/**
+	 * Builds the reply to an ACT_POST_BATCH of more than MAX_BATCH posts. Like a
+	 * refusal by allowPost(), it carries the batch's id and the session carries on.
+	 * @param framing framing of the client
+	 * @param id id carried by the batch, or null if it had none
+	 * @return the encoded refusal
+	 */
+	static ByteBuffer batchRefusal(Framing framing, String id) {
+		return commandReply(framing, false, "Batch too large, at most " + MAX_BATCH + " posts", id);
+	}
+	
+	/**
+	 * @param user user posting
+	 * @param posts contents of the posts
+	 * @return whether the posts are within MAX_MESSAGE
+	 */
+	static boolean fits(User user, List<String> posts) {
+		long length = utf8Length(user.getUsername());
+		for (String post : posts) {
+			length += utf8Length(post);
+		}
+		return length <= MAX_MESSAGE;
+	}
+	
+	static boolean fits(User user, String post) {
+		return fits(user, Collections.singletonList(post));
+	}
+	
+	/**
+	 * @return bytes the text takes in UTF-8, without encoding it
+	 */
+	private static int utf8Length(String text) {
+		int ret = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				ret++;
+			} else if (c < 0x800 || Character.isSurrogate(c)) {
+				ret += 2;	// Each half of a pair, for four in all
+			} else {
+				ret += 3;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Builds the reply to a post or batch past MAX_MESSAGE. Like a refusal by
+	 * allowPost(), it carries the post's id and the session carries on.
+	 * @param framing framing of the client
+	 * @param id id carried by the post, or null if it had none
+	 * @return the encoded refusal
+	 */
+	static ByteBuffer lengthRefusal(Framing framing, String id) {
+		return commandReply(framing, false, "Message too long, at most " + MAX_MESSAGE + " bytes", id);
+	}
+	
+	/**
+	 * @param post ACT_POST or ACT_POST_BATCH packet
+	 * @return the id the post carried, or null if it had none
+	 */
+	static String postId(Packet post) {
+		int at = 2;
+		if (post.headerIs(Protocol.ACT_POST_BATCH)) {
+			List<String> posts = batchPosts(post);
+			at = posts != null ? posts.size() + 2 : post.size();
+		}
+		return post.size() > at ? post.chunk(at) : null;
+	}
+	
+	/**
+	 * Reads the posts out of an ACT_POST_BATCH packet. They are taken as they
+	 * are; commands only work through ACT_POST.
+	 * @param batch ACT_POST_BATCH packet
+	 * @return the posts, or null if the packet is malformed
+	 */
+	static List<String> batchPosts(Packet batch) {
+		int count;
+		try {
+			count = batch.size() > 1 ? Integer.parseInt(batch.chunk(1)) : 0;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (count < 1 || batch.size() < count + 2) {
+			return null;
+		}
+		List<String> ret = new ArrayList<>(count);
+		for (int i = 2; i < count + 2; i++) {
+			ret.add(batch.chunk(i));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Checks a login or registration packet against the user database, waiting for
+	 * the Verifier. New users are added to the database on registration.
+	 * @param loginPacket packet received from the client
+	 * @return the authenticated User
+	 * @throws LoginException carrying the error to be sent back to the client
+	 */
+	User authenticate(Packet loginPacket) throws LoginException {
+		try {
+			return authenticateLater(loginPacket).get();
+		} catch (ExecutionException e) {
+			throw loginFailure(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LoginException("Interrupted");
+		}
+	}
+	
+	/**
+	 * Checks a login or registration packet without waiting. Whatever can be
+	 * turned down straight away is; the password is hashed on the Verifier.
+	 * @param loginPacket packet received from the client, which may be reused once this returns
+	 * @return completed with the authenticated User, or exceptionally with what
+	 * loginFailure() turns into the error for the client
+	 */
+	CompletableFuture<User> authenticateLater(Packet loginPacket) {
+		final long start = System.nanoTime();
+		final boolean register = loginPacket.headerIs(Protocol.ACT_REGISTER);
+		CompletableFuture<User> result;
+		try {
+			result = checkLogin(loginPacket);
+		} catch (LoginException e) {
+			result = new CompletableFuture<>();
+			result.completeExceptionally(e);
+		}
+		return result.whenComplete(new BiConsumer<User, Throwable>() {
+			public void accept(User user, Throwable failure) {
+				if (failure == null) {
+					(register ? registrations : logins).increment();
+				} else {
+					loginFailures.increment();
+				}
+				(register ? registrationTime : loginTime).record(System.nanoTime() - start);
+			}
+		});
+	}
+	
+	/**
+	 * @param failure what authenticateLater() completed with
+	 * @return the error to send back to the client
+	 */
+	static LoginException loginFailure(Throwable failure) {
+		if (failure instanceof CompletionException && failure.getCause() != null) {
+			failure = failure.getCause();
+		}
+		if (failure instanceof LoginException) {
+			return (LoginException)failure;
+		}
+		Log.error("Could not check login", failure);
+		return new LoginException("Server error");
+	}
+	
+	private CompletableFuture<User> checkLogin(Packet loginPacket) throws LoginException {
+		if (loginPacket.headerIs(Protocol.ACT_RESUME) && loginPacket.size() >= 2) {
+			String username = RESUME_TTL > 0 ? verifier.redeem(loginPacket.chunk(1)) : null;
+			User user = username != null ? users.get(username) : null;
+			if (user == null) {
+				throw new LoginException("Session expired");
+			}
+			loginsResumed.increment();
+			return CompletableFuture.completedFuture(user);
+		}
+		if (loginPacket.size() < 3) {
+			throw new LoginException("Communication error");
+		}
+		final String username = loginPacket.chunk(1);
+		final String password = loginPacket.chunk(2);
+		if (badPassword(password)) {
+			throw new LoginException("Bad password");
+		}
+		if (loginPacket.headerIs(Protocol.ACT_LOGIN)) {
+			final User user = users.get(username);
+			if (user == null) {
+				throw new LoginException("User does not exist");
+			}
+			if (verifier.recentlyVerified(username, password)) {
+				loginsCached.increment();
+				return CompletableFuture.completedFuture(user);
+			}
+			return verify(new Callable<User>() {
+				public User call() throws LoginException {
+					if (!user.checkPass(password)) {
+						throw new LoginException("Incorrect password");
+					}
+					if (PasswordHash.isStale(user.getCredential())) {
+						rehash(user, password);
+					}
+					verifier.verified(username, password);
+					return user;
+				}
+			});
+		} else if (loginPacket.headerIs(Protocol.ACT_REGISTER)) {
+			if (users.containsKey(username)) {
+				throw new LoginException("User already exists");
+			}
+			return verify(new Callable<User>() {
+				public User call() throws LoginException {
+					User user = register(new User(username, password));
+					verifier.verified(username, password);
+					return user;
+				}
+			});
+		} else {
+			throw new LoginException("Communication error");
+		}
+	}
 	
 	/**
-	 * This variable defines the message backlog, which includes the message itself,
-	 * a timestamp, and the user who posted said message.
+	 * Queues work on the Verifier, or turns the client away if too much is queued already
 	 */
-	public static final int MESSAGE_CACHE = 10;;
+	private CompletableFuture<User> verify(Callable<User> check) throws LoginException {
+		try {
+			return verifier.submit(check);
+		} catch (RejectedExecutionException e) {
+			loginsBusy.increment();
+			throw new LoginException("Server busy, try again later");
+		}
+	}
+	
+	private User register(User key) throws LoginException {
+		if (users.putIfAbsent(key.getUsername(), key) != null) {
+			throw new LoginException("User already exists");
+		}
+		Log.info("Adding new user {}", key.getUsername());
+		if (store != null) {
+			try {
+				store.registered(key);
+			} catch (IOException e) {
+				users.remove(key.getUsername(), key);
+				throw new LoginException("Could not save user");
+			}
+		}
+		Log.info("User added. {} users in database", users.size());
+		return key;
+	}
 	
 	/**
-	 * Creates a new BoardServer on a given port
-	 * @param port port to initialize on
-	 * @throws IOException thrown if no IO
+	 * Replaces a weaker credential now that the password is known
 	 */
-	public BoardServer(int port) throws IOException {
-		server = new ServerSocket(port);
-		history = new ConcurrentLinkedDeque<>();
-		users = new ConcurrentHashMap<>();
-		online = new ConcurrentHashMap<>();
-		viewers = new ConcurrentLinkedDeque<>();
-		System.out.println("BoardServer created on " + InetAddress.getLocalHost().getHostAddress());
+	private void rehash(User user, String password) {
+		User rehashed = new User(user.getUsername(), password);
+		if (users.replace(user.getUsername(), user, rehashed) && store != null) {
+			try {
+				store.registered(rehashed);
+			} catch (IOException e) {
+				Log.warn("Could not save new credential for {}: {}", user.getUsername(), e.getMessage());
+			}
+		}
 	}
 	
 	/**
-	 * Creates a backup of the current user database (does not include login states)
-	 * @param filename name of file to write to
-	 * @throws IOException if no IO
+	 * Builds the acknowledgement of a login. It carries a fresh resume token, for
+	 * the client to log back in with through ACT_RESUME if its connection drops.
+	 * @param framing framing of the client
+	 * @param usr User who logged in
+	 * @return the encoded acknowledgement
 	 */
-	public void backup(String filename) throws IOException {
-//		FileWriter fileOut = new FileWriter()
+	ByteBuffer loginAcknowledgement(Framing framing, User usr) {
+		if (RESUME_TTL <= 0) {
+			return framing.encode(Protocol.STATUS_ACK, "Login successful!");
+		}
+		return framing.encode(Protocol.STATUS_ACK, "Login successful!", verifier.issue(usr.getUsername(), RESUME_TTL * 1000L));
 	}
 	
 	/**
-	 * Restores database data created by backup() method
-	 * @param filename file to read from
-	 * @throws IOException if no IO
+	 * Marks a User as online and lets the viewers of their channel know
+	 * @param usr User who logged in
+	 * @param session session the User is logged in through
+	 * @param channel channel the session posts to
 	 */
-	public void restore(String filename) throws IOException {
-		
+	void login(User usr, Session session, Channel channel) {
+		online.put(usr.getUsername(), session);
+		channel.notice(usr.getUsername() + " has logged in");
 	}
 	
 	/**
-	 * Creates and initializes the BoardServer
-	 * @throws IOException if no IO
+	 * Marks a User as offline, unless they have logged in again through another
+	 * session since, and lets the viewers of their channel know
+	 * @param usr User who logged out
+	 * @param session session they are leaving
+	 * @param channel channel the session was posting to
 	 */
-	public void start() throws IOException {
-		System.out.println("BoardServer started");
-		while(true) {
-			Socket temp = server.accept();
-			new PreHandler(temp).start();
-//			new ClientHandler(temp).start();
-		}
+	void logout(User usr, Session session, Channel channel) {
+		channel.notice(usr.getUsername() + " has logged out");
+		online.remove(usr.getUsername(), session);
 	}
 	
 	/**
-	 * Removes the user with the username specified
-	 * @param username username of User to be removed
-	 * @throws IOException if no IO
+	 * Moves a logged in User's session to another channel and lets the viewers of
+	 * both know
+	 * @param usr User moving
+	 * @param from channel they are leaving
+	 * @param to channel they are joining
 	 */
-	protected void removeUser(String username) throws IOException {
-		ClientHandler handler = online.get(username);
-		handler.logout();
-		handler.close();
-		users.remove(username);
+	void join(User usr, Channel from, Channel to) {
+		if (from != to) {
+			from.notice(usr.getUsername() + " has left");
+			to.notice(usr.getUsername() + " has joined");
+		}
 	}
 	
 	/**
-	 * Internal method for posting a message by a User. Called by BoardHandlers
-	 * @param message message content to be posted
-	 * @param usr reference to User
+	 * @param post ACT_POST packet
+	 * @return the channel named by a /join command, or null if the post is not one
 	 */
-	private synchronized void postMessage(String message, User usr) {
-		Message product = new Message(usr.getUsername(), message);
-		history.addLast(product);
-		while (history.size() >= MESSAGE_CACHE) {
-			history.removeFirst();
+	static String joinCommand(Packet post) {
+		if (!post.chunkStartsWith(1, "/join")) {
+			return null;
 		}
-		notifyViewers(product.toString());
-		System.out.println("Message posted: " + product);
+		return post.chunk(1).substring("/join".length()).trim();
+	}
+	
+	/**
+	 * Builds the answer to a command, which carries the command's id back like an
+	 * acknowledgement does
+	 * @param framing framing of the client
+	 * @param done whether the command worked
+	 * @param text what to tell the client
+	 * @param id id carried by the command, or null
+	 * @return the encoded answer
+	 */
+	static ByteBuffer commandReply(Framing framing, boolean done, String text, String id) {
+		String header = done ? Protocol.STATUS_ACK : Protocol.STATUS_ERR;
+		return id != null ? framing.encode(header, text, id) : framing.encode(header, text);
+	}
+	
+	/**
+	 * Builds the answer to a command the server does not know, so that a client
+	 * waiting on every command's answer is not left hanging
+	 * @param framing framing of the client
+	 * @param post ACT_POST packet holding the command
+	 * @return the encoded answer
+	 */
+	static ByteBuffer unknownCommand(Framing framing, Packet post) {
+		String command = post.chunk(1).trim().split("\\s+", 2)[0];
+		return commandReply(framing, false, "Unknown command " + command, postId(post));
 	}
 	
-	private synchronized void notifyViewers(String text) {
-		for (ViewerHandler handler : viewers) {
-			handler.notifyMessage(text);
+	/**
+	 * Runs an ACT_SEARCH and builds the answer: each message found, newest first,
+	 * as a notification like a viewer gets, then an acknowledgement saying how
+	 * many there were, all in one buffer. Like a command's answer, the last
+	 * packet carries the search's id.
+	 * @param channel channel to search
+	 * @param framing framing of the client
+	 * @param request ACT_SEARCH packet
+	 * @param user user searching, whose limit searches count against like posts
+	 * @param address remote address of the connection searched from
+	 * @return the encoded answer
+	 */
+	ByteBuffer search(Channel channel, Framing framing, Packet request, User user, InetAddress address) {
+		long start = System.nanoTime();
+		String id = searchOption(request, 6);
+		if (!allowPost(user, address, 1)) {
+			return commandReply(framing, false, "Searching too fast", id);
+		}
+		List<Message> found;
+		try {
+			String text = searchOption(request, 1);
+			String author = searchOption(request, 2);
+			long from = searchOption(request, 3) != null ? Long.parseLong(searchOption(request, 3)) : 0;
+			long to = searchOption(request, 4) != null ? Long.parseLong(searchOption(request, 4)) : Long.MAX_VALUE;
+			int limit = searchOption(request, 5) != null ? Integer.parseInt(searchOption(request, 5)) : SEARCH_LIMIT;
+			found = channel.search(text, author, from, to, Math.max(0, Math.min(limit, MAX_SEARCH)));
+		} catch (NumberFormatException e) {
+			return commandReply(framing, false, "Malformed search", id);
+		} catch (IOException e) {
+			return commandReply(framing, false, e.getMessage(), id);
 		}
+		ByteBuffer messages = notification(framing, found);
+		ByteBuffer reply = commandReply(framing, true, found.size() + " found", id);
+		ByteBuffer ret = ByteBuffer.allocate(messages.remaining() + reply.remaining());
+		ret.put(messages).put(reply).flip();
+		searches.increment();
+		searchTime.record(System.nanoTime() - start);
+		return ret.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * @return a chunk of an ACT_SEARCH, or null if it is missing or empty
+	 */
+	private static String searchOption(Packet request, int at) {
+		return request.size() > at && !request.chunk(at).isEmpty() ? request.chunk(at) : null;
 	}
 	
 	// Some utility methods
@@ -117,60 +1674,138 @@ public class BoardServer {
 		return !(length >= 4 && length <= 18);
 	}
 	
-	private class Message {
-		private String source;
-		private String content;
-		private Date time;
+	/**
+	 * Anything that receives notifications, regardless of how it is connected
+	 */
+	interface Viewer {
+		/**
+		 * @param packet encoded packet, positioned at its start. It may be shared
+		 * with other viewers, so it must not be modified.
+		 */
+		void notifyMessage(ByteBuffer packet);
+		/**
+		 * Sends a packet ahead of every queued notification. Only used while
+		 * replaying, before the first notification is taken off the queue.
+		 * @param packet encoded packet, which must not be modified
+		 */
+		void replay(ByteBuffer packet) throws IOException;
+		/**
+		 * Sends a run of logged messages ahead of every queued notification
+		 * @param region records, already in BINARY
+		 */
+		void replay(MessageLog.Region region) throws IOException;
+		Framing getFraming();
+		/**
+		 * @return whether the viewer agreed on compression, in which case it is
+		 * handed deflated notifications
+		 */
+		boolean isCompressed();
+		OutboundQueue<?> getQueue();
+	}
+	
+	/**
+	 * Which past messages a viewer wants replayed, from the options in its client
+	 * identifier. Without either option a viewer gets the usual MESSAGE_CACHE backlog.
+	 */
+	static class ReplayRequest {
+		private long last = MESSAGE_CACHE - 1;
+		private long since = -1;	// Takes precedence over last when set
+		private long max = MAX_REPLAY;
+		private boolean explicit;	// Whether the viewer asked for anything
 		
-		public Message(String source, String content) {
-			this.source = source;
-			this.content = content;
-			time = new Date();
-		}
-
-		public String getSource() {
-			return source;
-		}
-
-		public String getContent() {
-			return content;
+		/**
+		 * Asks for every message after one, however many there are, as a cluster
+		 * follower catching up does
+		 * @param since last sequence number already had
+		 */
+		ReplayRequest(long since) {
+			this.since = since;
+			max = Long.MAX_VALUE;
 		}
 		
-		public Date getTime() {
-			return time;
+		/**
+		 * @param hello client identifier packet
+		 */
+		ReplayRequest(Packet hello) {
+			for (int i = 1; i + 1 < hello.size(); i += 2) {
+				try {
+					if (hello.chunkEquals(i, Protocol.OPT_LAST)) {
+						last = Long.parseLong(hello.chunk(i + 1));
+						explicit = true;
+					} else if (hello.chunkEquals(i, Protocol.OPT_SINCE)) {
+						since = Long.parseLong(hello.chunk(i + 1));
+						explicit = true;
+					}
+				} catch (NumberFormatException e) {
+					// Ignore the option
+				}
+			}
 		}
 		
-		@Override
-		public String toString() {
-			return new StringBuffer("[").append(time.toString()).append("] ").append(source).append(": ").append(content).toString();
+		/**
+		 * @param upTo last message that will be replayed
+		 * @return sequence number the replay starts after
+		 */
+		long since(long upTo) {
+			long from = since >= 0 ? since : upTo - last;
+			return Math.max(Math.max(from, upTo - max), 0);
 		}
-		
 	}
 	
-	private class User {
+	/**
+	 * A logged in connection, regardless of how it is connected
+	 */
+	interface Session {
+		void logout();
+		void close() throws IOException;
+	}
+	
+	static class User {
 		private String username;
-		private int passHash;
+		private byte[] credential;	// Salted hash of the password, see PasswordHash
 		
+		/**
+		 * Creates a User, hashing the password. This is slow on purpose.
+		 * @param username username
+		 * @param password password
+		 */
 		public User(String username, String password) {
 			this.username = username;
-			passHash = getHash(password);
+			credential = PasswordHash.create(password);
+		}
+		
+		/**
+		 * Rebuilds a User saved by the UserStore
+		 * @param username username
+		 * @param credential what getCredential() returned
+		 */
+		User(String username, byte[] credential) {
+			this.username = username;
+			this.credential = credential;
 		}
 		
 		public String getUsername() {
 			return username;
 		}
 		
-		private int getHash(String data) {
-			// temporary bullshit hashing algorithm
-			return data.hashCode();
+		/**
+		 * @return what has to be saved to check the password later
+		 */
+		byte[] getCredential() {
+			return credential;
 		}
 		
 		protected boolean identity(String username) {
 			return username.equalsIgnoreCase(this.username);
 		}
 		
+		/**
+		 * Checks a password against the stored hash. This is slow on purpose.
+		 * @param password password to check
+		 * @return whether it is the User's password
+		 */
 		protected boolean checkPass(String password) {
-			return passHash == getHash(password);
+			return PasswordHash.verify(credential, password);
 		}
 		
 		@Override
@@ -194,117 +1829,437 @@ public class BoardServer {
 		}
 	}
 	
-	private class PreHandler extends Thread {
-		private Socket toSocket;
-		private BufferedReader in;
-		private PrintWriter out;
+	private class PreHandler implements Runnable {
+		private PacketStream stream;
 		
 		public PreHandler(Socket sock) throws IOException {
-			toSocket = sock;
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			out = new PrintWriter(sock.getOutputStream(), true);
+			sock.setTcpNoDelay(NO_DELAY);
+			sock.setSoTimeout(HANDSHAKE_TIMEOUT);
+			stream = new PacketStream(sock);
 		}
 		
 		public void run() {
-			String input;
 			try {
-				input = in.readLine();
-				String header = Protocol.getHeader(input);
-				switch(header) {
-				case Protocol.CLIENT_READONLY : new ViewerHandler(toSocket).start(); break;
-				case Protocol.CLIENT_READWRITE : new ClientHandler(toSocket).start(); break;
-				default : out.println(Protocol.createPacket(Protocol.STATUS_ERR, "Unknown client identifier"));
+				Packet input = stream.read();
+				if (input == null) {
+					stream.close();
+					return;
+				}
+				stream.getSocket().setSoTimeout(0);	// Sessions may sit idle as long as they like
+				Framing framing = requestedFraming(input);
+				Channel channel;
+				try {
+					channel = channel(requestedChannel(input));
+				} catch (IOException e) {
+					stream.write(Protocol.STATUS_ERR, e.getMessage());
+					stream.close();
+					return;
+				}
+				if (input.headerIs(Protocol.CLIENT_READONLY)) {
+					sessions.execute(new ViewerHandler(stream, framing, requestedCompressor(input, framing), channel, new ReplayRequest(input)));
+				} else if (input.headerIs(Protocol.CLIENT_READWRITE)) {
+					sessions.execute(new ClientHandler(stream, framing, channel));
+				} else {
+					stream.write(Protocol.STATUS_ERR, "Unknown client identifier");
+					stream.close();
 				}
 				
 				// The handler's will deal with closing the streams
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				Log.warn("Handshake with {} failed: {}", stream.getSocket().getRemoteSocketAddress(), e);
+				try {
+					stream.close();
+				} catch (IOException ignored) {
+				}
 			}
 			
 		}
 	}
 	
-	private class ViewerHandler extends Thread {
+	private class ViewerHandler implements Runnable, Viewer {
 		
 		private Socket toViewer;
-		private BufferedReader in;
-		private PrintWriter out;
+		private PacketStream stream;	// Written to directly, packets arrive already encoded
+		private Framing framing;
+		private Channel channel;	// Channel subscribed to
+		private ReplayRequest replay;
+		private OutboundQueue<ByteBuffer> queue;
+		private Compressor compressor;	// Deflates the replay, or null if the viewer gets no compression
 
-		public ViewerHandler(Socket viewer) throws IOException {
-			viewers.add(this);
-			toViewer = viewer;
-			in = new BufferedReader(new InputStreamReader(viewer.getInputStream()));
-			out = new PrintWriter(viewer.getOutputStream(), true);
+		public ViewerHandler(PacketStream viewer, Framing framing, Compressor compressor, Channel channel, ReplayRequest replay) throws IOException {
+			stream = viewer;
+			toViewer = viewer.getSocket();
+			this.framing = framing;
+			this.compressor = compressor;
+			this.channel = channel;
+			this.replay = replay;
+			queue = new OutboundQueue<>(VIEWER_QUEUE, VIEWER_OVERFLOW, new OutboundQueue.Gap<ByteBuffer>() {
+				public ByteBuffer skipped(int count) {
+					return getFraming().encode(Protocol.NOTIFY, "(" + count + " notifications skipped)");
+				}
+			});
 		}
 		
 		public void run() {
-			out.println(Protocol.createPacket(Protocol.STATUS_ACK, "ViewerHandler created"));
+			try {
+				stream.write(viewerAcknowledgement(framing, compressor, "ViewerHandler created"));
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			stream.setFraming(framing);
 			handleSession();
 		}
 		
+		/**
+		 * Replays the backlog straight into the socket, then drains the outbound
+		 * queue into it a batch at a time. This thread is the only one that ever
+		 * writes to the viewer, so a slow viewer only slows itself down.
+		 */
 		private void handleSession() {
-			// TODO finish server-side viewer protocol
-			synchronized (history) {
-				Iterator<Message> i = history.iterator();
-				while (i.hasNext()) {
-					notifyMessage(i.next().toString());
+			try {
+				channel.replay(this, replay, channel.addViewer(this));
+				ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+				int count;
+				while ((count = queue.take(batch, BATCH_LINGER)) > 0) {
+					stream.write(batch, count);
+					wrote();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) {
+				// Viewer went away
+			}
+			close();
+		}
+		
+		public Framing getFraming() {
+			return stream.getFraming();
+		}
+		
+		/**
+		 * Queues a notification for this viewer. Never blocks.
+		 * @param packet encoded notification
+		 */
+		public void notifyMessage(ByteBuffer packet) {
+			if (!queue.offer(packet)) {
+				slowViewer(this);
+				disconnect();
+			}
+		}
+		
+		// Replaying happens on this thread before the queue is drained, so it can write directly
+		public void replay(ByteBuffer packet) throws IOException {
+			stream.write(compressor != null ? compressor.compress(packet) : packet);
+		}
+		
+		public void replay(MessageLog.Region region) throws IOException {
+			if (compressor == null) {
+				stream.write(region);
+				return;
+			}
+			ByteBuffer records = region.map();
+			while (records.hasRemaining()) {
+				stream.write(compressor.next(records));	// A slice at a time, deflated as it is written
+			}
+		}
+		
+		public boolean isCompressed() {
+			return compressor != null;
+		}
+		
+		public OutboundQueue<?> getQueue() {
+			return queue;
+		}
+		
+		@Override
+		public String toString() {
+			return "ViewerHandler " + toViewer.getRemoteSocketAddress();
+		}
+		
+		/**
+		 * Drops the viewer without waiting for its queue to drain. Closing the
+		 * socket also unblocks the writer if it is stuck on a full send buffer.
+		 */
+		private void disconnect() {
+			channel.removeViewer(this);
+			queue.close();
+			try {
+				toViewer.close();
+			} catch (IOException e) {
+				Log.warn("Could not close {}: {}", this, e);
+			}
+		}
+		
+		public synchronized void close() {
+			channel.removeViewer(this);
+			queue.close();
+			try {
+				stream.write(Protocol.STATUS_END, "Server closed connection");
+			} catch (IOException e) {
+				// Viewer is already gone
+			}
+			try {
+				stream.close();
+			} catch (IOException e) {
+				Log.warn("Could not close {}: {}", this, e);
+			}
+		}
+	}
+	
+	/**
+	 * The leader's end of a cluster follower's link to one channel. The follower is
+	 * a viewer of the channel like any other, except that it is sent everything it
+	 * does not have however far behind it is, and is dropped rather than skipped
+	 * ahead if it falls behind. This thread reads the posts it forwards and posts
+	 * them under their authors' names; another one writes to it.
+	 */
+	private class PeerHandler implements Runnable, Viewer {
+		
+		private Socket sock;
+		private PacketStream stream;
+		private Channel channel;	// Channel followed
+		private OutboundQueue<ByteBuffer> queue;
+		
+		public PeerHandler(Socket sock) throws IOException {
+			this.sock = sock;
+			sock.setTcpNoDelay(true);
+			stream = new PacketStream(sock);
+			queue = new OutboundQueue<>(DISPATCH_QUEUE, OutboundQueue.Overflow.DISCONNECT, null);
+		}
+		
+		public void run() {
+			try {
+				Packet hello = stream.read();
+				if (hello == null) {
+					stream.close();
+					return;
+				}
+				String key = option(hello, Protocol.OPT_KEY);
+				String node = option(hello, Protocol.OPT_NODE);
+				final long since;
+				try {
+					since = Long.parseLong(option(hello, Protocol.OPT_SINCE));
+				} catch (NumberFormatException e) {
+					refuse("Bad peer identifier");
+					return;
 				}
+				if (!hello.headerIs(Protocol.CLIENT_PEER) || node == null) {
+					refuse("Bad peer identifier");
+					return;
+				}
+				if (!MessageDigest.isEqual(CLUSTER_KEY.getBytes(Framing.CHARSET), (key != null ? key : "").getBytes(Framing.CHARSET))) {
+					refuse("Bad cluster key");
+					return;
+				}
+				try {
+					channel = channel(requestedChannel(hello));
+					channel.checkLog();	// A follower keeps trying until the leader is restarted
+				} catch (IOException e) {
+					refuse(e.getMessage());
+					return;
+				}
+				if (since > channel.dispatcher.claimed()) {
+					refuse("Follower has messages the leader does not");
+					return;
+				}
+				AtomicLong last = new AtomicLong();
+				AtomicLong existing = channel.forwarded.putIfAbsent(node, last);
+				stream.write(acknowledgement(Framing.BINARY, "Peer accepted"));
+				stream.setFraming(Framing.BINARY);
+				peers.add(this);
+				Log.info("Cluster follower {} joined channel {} from message {}", sock.getRemoteSocketAddress(), channel.getName(), since);
+				Thread writer = new Thread(new Runnable() {
+					public void run() {
+						send(since);
+					}
+				}, "PeerHandler writer " + sock.getRemoteSocketAddress());
+				writer.setDaemon(true);
+				writer.start();
+				readForwards(existing != null ? existing : last);
+			} catch (IOException e) {
+				// Follower went away
 			}
+			close();
+		}
+		
+		private void refuse(String reason) throws IOException {
+			Log.warn("Refused cluster follower {}: {}", sock.getRemoteSocketAddress(), reason);
+			stream.write(Protocol.STATUS_ERR, reason);
+			stream.close();
 		}
 		
-		public synchronized void notifyMessage(String text) {
+		/**
+		 * Catches the follower up from the log, then drains the outbound queue into
+		 * it a batch at a time
+		 * @param since last sequence number the follower has
+		 */
+		private void send(long since) {
 			try {
-				out.println(Protocol.createPacket(Protocol.NOTIFY, text));
-			} catch (Exception e) {
-				e.printStackTrace();
-				close();
+				channel.replay(this, new ReplayRequest(since), channel.addViewer(this));
+				ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+				int count;
+				while ((count = queue.take(batch, BATCH_LINGER)) > 0) {
+					stream.write(batch, count);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) {
+				// Follower went away
+			}
+			close();
+		}
+		
+		/**
+		 * Posts what the follower forwards, in the order it was forwarded
+		 * @param last last ticket posted for the follower's node, over all its links
+		 */
+		private void readForwards(AtomicLong last) throws IOException {
+			Packet packet;
+			while ((packet = stream.read()) != null && !packet.headerIs(Protocol.STATUS_END)) {
+				if (!packet.headerIs(Protocol.ACT_FORWARD)) {
+					throw new IOException("Unexpected packet from follower");
+				}
+				if (packet.size() < 4) {
+					throw new IOException("Malformed forward");
+				}
+				List<String> posts = new ArrayList<>();
+				long ticket;
+				try {
+					int count = Integer.parseInt(packet.chunk(2));
+					if (count < 1 || packet.size() != count + 4) {
+						throw new IOException("Malformed forward");
+					}
+					for (int i = 0; i < count; i++) {
+						posts.add(packet.chunk(3 + i));
+					}
+					ticket = Long.parseLong(packet.chunk(packet.size() - 1));
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed forward");
+				}
+				String id = Long.toString(ticket);
+				long seq;
+				try {
+					synchronized (last) {
+						if (ticket <= last.get()) {
+							seq = channel.dispatcher.claimed();	// Sent again after a reconnect; anything later covers it
+						} else {
+							seq = channel.postMessages(posts, packet.chunk(1));
+							last.set(ticket);
+						}
+					}
+				} catch (IOException e) {
+					queue.add(Framing.BINARY.encode(Protocol.STATUS_ERR, e.getMessage(), id));
+					continue;
+				}
+				final ByteBuffer ack = Framing.BINARY.encode(Protocol.STATUS_ACK, Long.toString(seq), id);
+				channel.whenDurable(seq, new MessageLog.Callback() {
+					public void durable() {
+						queue.add(ack);
+					}
+					
+					public void failed(IOException e) {
+						queue.add(Framing.BINARY.encode(Protocol.STATUS_ERR, e.getMessage(), id));
+					}
+				});
+			}
+		}
+		
+		public void notifyMessage(ByteBuffer packet) {
+			if (!queue.offer(packet)) {
+				Log.warn("Disconnecting cluster follower {}, it fell behind", sock.getRemoteSocketAddress());
+				try {
+					sock.close();	// Both threads give up, and the follower catches up from the log
+				} catch (IOException e) {
+					// Already gone
+				}
 			}
 		}
 		
+		// Replaying happens on the writer thread before the queue is drained, so it can write directly
+		public void replay(ByteBuffer packet) throws IOException {
+			stream.write(packet);
+		}
+		
+		public void replay(MessageLog.Region region) throws IOException {
+			stream.write(region);
+		}
+		
+		public Framing getFraming() {
+			return Framing.BINARY;
+		}
+		
+		public boolean isCompressed() {
+			return false;
+		}
+		
+		public OutboundQueue<?> getQueue() {
+			return queue;
+		}
+		
+		@Override
+		public String toString() {
+			return "PeerHandler " + sock.getRemoteSocketAddress();
+		}
+		
 		public synchronized void close() {
-			out.println(Protocol.createPacket(Protocol.STATUS_END, "Server closed connection"));
-			out.close();
-			viewers.remove(this);
+			peers.remove(this);
+			if (channel != null) {
+				channel.removeViewer(this);
+			}
+			queue.close();
 			try {
-				in.close();
-				toViewer.close();
+				stream.close();
 			} catch (IOException e) {
-				e.printStackTrace();
+				// Already gone
 			}
 		}
 	}
 	
-	private class ClientHandler extends Thread {
+	private class ClientHandler implements Runnable, Session {
 		
 		private Socket toClient;
-		private BufferedReader in;
-		private PrintWriter out;
+		private PacketStream stream;
+		private Framing framing;
+		private Channel channel;	// Channel posted to
 		private boolean loggedIn = false;
 		private User user;
+		private ByteBuffer[] unacked;	// Acknowledgements of posts not yet known to be on disk
+		private int pending;	// Number of entries in unacked
+		private long lastPosted;	// Sequence number of the last post in unacked
 		
-		public ClientHandler(Socket sock) throws IOException {
-			toClient = sock;
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			out = new PrintWriter(sock.getOutputStream(), true);
+		public ClientHandler(PacketStream client, Framing framing, Channel channel) throws IOException {
+			stream = client;
+			toClient = client.getSocket();
+			this.framing = framing;
+			this.channel = channel;
 		}
 		
 		@Override
 		public void run() {
-			out.println(Protocol.createPacket(Protocol.STATUS_ACK, "ClientHandler Started"));
-			System.out.println("ClientHandler for " + toClient.getInetAddress() + " started");
+			try {
+				stream.write(acknowledgement(framing, "ClientHandler Started"));
+			} catch (IOException e) {
+				// Client went away, the next read will notice
+			}
+			stream.setFraming(framing);
+			Log.info("ClientHandler for {} started", toClient.getInetAddress());
 			try {
 				if (handleLogin()) {
-					System.out.println("Login successful");
+					Log.info("Login successful");
 					handleSession();
 				} else {
-					System.out.println("Login failed");
+					Log.info("Login failed");
 				}
 				logout();
 				close();
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				Log.warn("ClientHandler for {} ended: {}", toClient.getInetAddress(), e);
+				logout();
+				try {
+					stream.close();
+				} catch (IOException ignored) {
+				}
 			}
 		}
 		
@@ -312,89 +2267,162 @@ public class BoardServer {
 //			
 //		}
 		
+		/**
+		 * Reads and posts messages. While a pipelining client has more posts on the
+		 * way, they are posted straight away and their acknowledgements held back;
+		 * once it pauses, or MAX_PIPELINE are held, the whole lot is acknowledged
+		 * after a single wait for the disk.
+		 */
 		private void handleSession() throws IOException {
-			do {
-				String input = in.readLine();
-				String header = Protocol.getHeader(input);
-				String chunk = Protocol.getChunks(input)[1];
-				if (header.equals(Protocol.ACT_POST)) {
-					if (chunk.startsWith("/")) {
-						// Manage commands
-						chunk = chunk.substring(1);
-						if (chunk.startsWith("quit")) {
+			unacked = new ByteBuffer[MAX_PIPELINE];
+			try {
+				do {
+					if (pending > 0 && (pending == unacked.length || !stream.ready())) {
+						acknowledge();
+					}
+					Packet packet = stream.read();
+					if (packet == null) {
+						return;	// Client hung up
+					}
+					if (packet.headerIs(Protocol.ACT_POST)) {
+						if (packet.chunkStartsWith(1, "/")) {
+							// Manage commands
+							if (packet.chunkStartsWith(1, "/quit")) {
+								return;
+							} else if (joinCommand(packet) != null) {
+								if (pending > 0) {
+									acknowledge();	// Held posts are waited on in the channel they went to
+								}
+								send(join(joinCommand(packet), postId(packet)));
+							} else {
+								send(unknownCommand(framing, packet));
+							}
+						} else if (!fits(user, packet.chunk(1))) {
+							unacked[pending++] = lengthRefusal(framing, postId(packet));
+						} else if (!allowPost(user, toClient.getInetAddress(), 1)) {
+							unacked[pending++] = postRefusal(framing, postId(packet));
+						} else {
+							// Message contained in chunk
+							lastPosted = channel.postMessage(packet.chunk(1), user);
+							unacked[pending++] = postAcknowledgement(framing, postId(packet));
+						}
+					} else if (packet.headerIs(Protocol.ACT_SEARCH)) {
+						if (pending > 0) {
+							acknowledge();	// So the client's own posts can be found
+						}
+						send(search(channel, framing, packet, user, toClient.getInetAddress()));
+					} else if (packet.headerIs(Protocol.ACT_POST_BATCH)) {
+						List<String> posts = batchPosts(packet);
+						if (posts == null) {
+							send(Protocol.STATUS_ERR, "Malformed batch");
 							return;
 						}
+						if (posts.size() > MAX_BATCH) {
+							unacked[pending++] = batchRefusal(framing, postId(packet));
+						} else if (!fits(user, posts)) {
+							unacked[pending++] = lengthRefusal(framing, postId(packet));
+						} else if (!allowPost(user, toClient.getInetAddress(), posts.size())) {
+							unacked[pending++] = postRefusal(framing, postId(packet));
+						} else {
+							lastPosted = channel.postMessages(posts, user);
+							unacked[pending++] = postAcknowledgement(framing, postId(packet));
+						}
 					} else {
-						// Message contained in chunk
-						postMessage(chunk, user);
-						out.println(Protocol.createPacket(Protocol.STATUS_ACK, "Message Posted"));
+						return;
 					}
-				} else {
-					return;
+				} while (true);
+			} finally {
+				if (pending > 0) {
+					acknowledge();
 				}
-			} while (true);
+			}
+		}
+		
+		/**
+		 * Waits for every post held back to reach the disk, then acknowledges them all at once
+		 */
+		private void acknowledge() throws IOException {
+			channel.awaitDurable(lastPosted);
+			try {
+				stream.write(unacked, pending);
+			} catch (IOException e) {
+				// Client went away, the next read will notice
+			}
+			Arrays.fill(unacked, 0, pending, null);
+			pending = 0;
 		}
 		
 		private boolean handleLogin() throws IOException {
-			String loginPacket = in.readLine();
-			System.out.println("Received login packet: " + loginPacket);
-			String header = Protocol.getHeader(loginPacket);
-			String[] chunks = Protocol.getChunks(loginPacket);
-			String username = chunks[1];
-			String password = chunks[2];
-			if (badPassword(password)) {
-				out.println(Protocol.createPacket(Protocol.STATUS_ERR, "Bad password"));
+			Packet loginPacket = stream.read();
+			if (loginPacket == null) {
 				return false;
 			}
-			User key = new User(username, password);
-			if (header.equals(Protocol.ACT_LOGIN)) {
-				if (users.containsKey(username)) {
-					if (users.get(username).checkPass(password)) {
-						user = key;
-						login();
-						return true;
-					} else {
-						out.println(Protocol.createPacket(Protocol.STATUS_ERR, "Incorrect password"));
-						return false;
-					}
-					
-				} else {
-					out.println(Protocol.createPacket(Protocol.STATUS_ERR, "User does not exist"));
-					return false;
-				}
-			} else if (header.equals(Protocol.ACT_REGISTER)) {
-				if (users.containsValue(key)) {
-					loggedIn = false;
-					out.println(Protocol.createPacket(Protocol.STATUS_ERR, "User already exists"));
-					return false;
-				} else {
-					System.out.println("Adding new user " + username);
-					users.put(username, key);
-					System.out.println("User added. " + users.size() + " users in database");
-					user = key;
-					login();
-//					out.println(Protocol.createPacket(Protocol.STATUS_ACK, "Registration and login successful"));
-					return true;
-				}
-			} else {
+			Log.debug("Received login packet: {}", loginPacket.chunk(0));
+			try {
+				user = authenticate(loginPacket);
+				login();
+				return true;
+			} catch (LoginException e) {
 				loggedIn = false;
-				out.println(Protocol.createPacket(Protocol.STATUS_ERR, "Communication error"));
+				send(Protocol.STATUS_ERR, e.getMessage());
 				return false;
 			}
 		}
 		
+		/**
+		 * Moves the session to another channel
+		 * @param name channel to join
+		 * @param id id carried by the command, or null
+		 * @return the answer to the command
+		 */
+		private ByteBuffer join(String name, String id) {
+			Channel to;
+			try {
+				to = channel(name);
+			} catch (IOException e) {
+				return commandReply(framing, false, e.getMessage(), id);
+			}
+			BoardServer.this.join(user, channel, to);
+			channel = to;
+			lastPosted = 0;	// Its posts were acknowledged before the join, and numbers are per channel
+			return commandReply(framing, true, "Joined " + to.getName(), id);
+		}
+		
+		/**
+		 * Sends a packet made of a header and one chunk of data
+		 * @param header packet header
+		 * @param data packet data
+		 */
+		private void send(String header, String data) {
+			try {
+				stream.write(header, data);
+			} catch (IOException e) {
+				// Client went away, the next read will notice
+			}
+		}
+		
+		private void send(ByteBuffer packet) {
+			try {
+				stream.write(packet);
+			} catch (IOException e) {
+				// Client went away, the next read will notice
+			}
+		}
+		
 		private synchronized void login() {
 			loggedIn = true;
-			online.put(user.getUsername(), this);
-			out.println(Protocol.createPacket(Protocol.STATUS_ACK, "Login successful!"));
-			notifyViewers(user.getUsername() + " has logged in");
+			try {
+				stream.write(loginAcknowledgement(framing, user));
+			} catch (IOException e) {
+				// Client went away, the next read will notice
+			}
+			BoardServer.this.login(user, this, channel);
 		}
 		
-		private synchronized void logout() {
+		public synchronized void logout() {
 			loggedIn = false;
 			if (user != null) {
-				notifyViewers(user.getUsername() + " has logged out");
-				online.remove(user.getUsername());
+				BoardServer.this.logout(user, this, channel);
 				user = null;
 			}
 		}
@@ -403,19 +2431,22 @@ public class BoardServer {
 		
 		public synchronized final void close() throws IOException {
 			
-			out.println(Protocol.createPacket(Protocol.STATUS_END, "Server closed connection"));
-			System.out.println("stat_end sent");
-			in.close();
-			out.close();
-			toClient.close();
-			System.out.println("ClientHandler closed");
+			send(Protocol.STATUS_END, "Server closed connection");
+			Log.debug("stat_end sent");
+			stream.close();
+			Log.info("ClientHandler closed");
 		}
 	}
 	
-	// Usage: java BoardServer [port number]
+	// Usage: java BoardServer [port number] [-nio | -virtual]
 	public static void main(String[] args) throws IOException {
 		int port = Integer.parseInt(args[0]);
+		String mode = args.length > 1 ? args[1] : "";
 		BoardServer server = new BoardServer(port);
-		server.start();
+		if (mode.equals("-nio")) {
+			server.startNonBlocking(Runtime.getRuntime().availableProcessors());
+		} else {
+			server.start(mode.equals("-virtual"));
+		}
 	}
 }
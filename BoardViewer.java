@@ -1,73 +1,283 @@
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 public class BoardViewer {
 
+	private String host;
+	private int port;
 	private Socket viewer;
-	private BufferedReader in;
-	private PrintWriter out;
+	private PacketStream stream;
+	private boolean binary;
+	private boolean compressed;	// Whether to ask for deflated notifications
+	private String[] replay;	// Replay option name and value, or none
+	private String channel;	// Channel to watch, null for the server's default
+	private long lastSeq;	// Sequence number of the last message seen
+	private int reconnects = BoardClient.RECONNECT_ATTEMPTS;
 	private Scanner stdin;
 	
+	private static final long RECONNECT_DELAY = 250;	// Milliseconds before the first retry, doubled for each after
+	
 	private static final String ERR_APPEND = "Error: ";
 	
 	public BoardViewer(String host, int port) throws IOException {
+		this(host, port, false);
+	}
+	
+	/**
+	 * Creates a new BoardViewer
+	 * @param host host to connect to
+	 * @param port port to connect to
+	 * @param binary true to ask the server for BINARY framing
+	 * @throws IOException if no IO
+	 */
+	public BoardViewer(String host, int port, boolean binary) throws IOException {
+		this.host = host;
+		this.port = port;
 		viewer = new Socket(host, port);
-		in = new BufferedReader(new InputStreamReader(viewer.getInputStream()));
-		out = new PrintWriter(viewer.getOutputStream(), true);
-		System.out.println("Connection made to " + viewer.getInetAddress());
+		stream = new PacketStream(viewer);
+		this.binary = binary;
+		replay = new String[0];
+		display("Connection made to " + viewer.getInetAddress());
+	}
+	
+	/**
+	 * Sets how many times a dropped connection is retried. Each retry asks for
+	 * every message after the last one seen, so nothing is missed or shown twice.
+	 * @param attempts retries, 0 to give up straight away
+	 */
+	public void setReconnects(int attempts) {
+		reconnects = Math.max(attempts, 0);
+	}
+	
+	/**
+	 * Asks the server to deflate what it sends, which it only does along with
+	 * BINARY framing. Worth it over a slow link; it costs CPU at both ends.
+	 * @param compressed true to ask for compression
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+	
+	/**
+	 * Sets the channel to watch. Sequence numbers are counted per channel, so
+	 * -since and reconnecting refer to this channel's messages.
+	 * @param channel channel name, or null for the server's default
+	 */
+	public void setChannel(String channel) {
+		this.channel = channel;
+	}
+	
+	/**
+	 * Asks for the last count messages instead of the usual backlog
+	 * @param count number of messages to replay
+	 */
+	public void replayLast(long count) {
+		replay = new String[] {Protocol.OPT_LAST, Long.toString(count)};
+	}
+	
+	/**
+	 * Asks for every message after one already seen, such as after reconnecting
+	 * @param seq sequence number of the last message seen
+	 */
+	public void replaySince(long seq) {
+		replay = new String[] {Protocol.OPT_SINCE, Long.toString(seq)};
+	}
+	
+	/**
+	 * @return sequence number of the last message seen, to pass to replaySince() on reconnecting
+	 */
+	public long getLastSeq() {
+		return lastSeq;
 	}
 	
 	public void start() throws IOException {
-		System.out.println("Viewer started");
-		out.println(Protocol.createPacket(Protocol.CLIENT_READONLY));
-		String response = in.readLine();
-		System.out.println("ID Response: " + response);
-		String header = Protocol.getHeader(response);
-		if (header.equals(Protocol.STATUS_ACK)) {
-			handleSession();
-		} else {
-			printError(Protocol.getChunks(response)[1]);
+		display("Viewer started");
+		try {
+			while (view()) {
+				if (!reconnect()) {
+					break;
+				}
+			}
+		} finally {
+			close();
 		}
-		
-		
-		close();
 	}
 	
-	public void handleSession() throws IOException {
+	/**
+	 * Identifies the viewer to the server and shows what it sends
+	 * @return true if the connection dropped, false if the viewing ended
+	 */
+	private boolean view() {
+		try {
+			return hello() && handleSession();
+		} catch (IOException e) {
+			return true;
+		}
+	}
+	
+	/**
+	 * Connects again after the connection dropped, asking for the messages missed.
+	 * Retries wait longer each time, with some randomness, so that viewers cut off
+	 * together do not all come back at the same moment.
+	 * @return whether the viewer is connected again
+	 */
+	private boolean reconnect() {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// Already gone
+		}
+		replaySince(lastSeq);
+		long delay = RECONNECT_DELAY;
+		for (int attempt = 1; attempt <= reconnects; attempt++) {
+			display("Connection lost, reconnecting (" + attempt + " of " + reconnects + ")");
+			try {
+				Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			delay *= 2;
+			try {
+				viewer = new Socket(host, port);
+				stream = new PacketStream(viewer);
+				return true;
+			} catch (IOException e) {
+				// Try again
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return whether the server took the viewer on and the session ran
+	 */
+	private boolean hello() throws IOException {
+		List<String> hello = new ArrayList<>();
+		hello.add(Protocol.CLIENT_READONLY);
+		if (binary) {
+			hello.add(Protocol.OPT_FRAMING);
+			hello.add(Protocol.FRAMING_BINARY);
+		}
+		if (compressed) {
+			hello.add(Protocol.OPT_COMPRESS);
+			hello.add(Protocol.COMPRESS_DEFLATE);
+		}
+		if (channel != null) {
+			hello.add(Protocol.OPT_CHANNEL);
+			hello.add(channel);
+		}
+		hello.addAll(Arrays.asList(replay));
+		stream.write(hello.toArray(new String[hello.size()]));
+		Packet response = stream.read();
+		if (response == null) {
+			throw new EOFException("Server closed connection");
+		}
+		String[] chunks = response.chunks();
+		display("ID Response: " + String.join(" ", Arrays.copyOf(chunks, Math.min(chunks.length, 4))));	// Not the dictionary
+		if (response.headerIs(Protocol.STATUS_ACK)) {
+			if (response.chunkEquals(2, Protocol.FRAMING_BINARY)) {
+				stream.setFraming(Framing.BINARY);
+			}
+			if (response.chunkEquals(3, Protocol.COMPRESS_DEFLATE) && response.size() > 4) {
+				try {
+					stream.setInflating(Base64.getDecoder().decode(response.chunk(4)));
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Bad compression dictionary");
+				}
+			}
+			return true;
+		}
+		printError(response.chunk(1));
+		return false;
+	}
+	
+	/**
+	 * Shows notifications until the connection ends
+	 * @return true if it dropped, false if the server ended it
+	 * @throws IOException if no IO
+	 */
+	public boolean handleSession() throws IOException {
 		// TODO finish client-side protocol
 		
 		while (true) {
-			String input = in.readLine();
-			String header = Protocol.getHeader(input);
-			String chunk = Protocol.getChunks(input)[1];
-			if (header.equals(Protocol.NOTIFY)) {
-				System.out.println(chunk);
+			Packet input = stream.read();
+			if (input == null) {
+				return true;
+			}
+			if (input.headerIs(Protocol.NOTIFY_MESSAGE)) {
+				Message message = Message.decode(input);
+				if (message == null) {
+					printError("Damaged message");
+					continue;
+				}
+				lastSeq = message.getSeq();
+				display(message.toString());
+				continue;
+			}
+			String chunk = input.chunk(1);
+			if (input.headerIs(Protocol.NOTIFY)) {
+				if (input.size() > 2) {
+					lastSeq = Long.parseLong(input.chunk(2));	// Posted message, not a notice
+				}
+				display(chunk);
+			} else if (input.headerIs(Protocol.NOTIFY_STOP)) {
+				display("(caught up to message " + chunk + ")");
+			} else if (input.headerIs(Protocol.STATUS_END)) {
+				display(chunk);
+				return false;
 			} else {
 				printError(chunk);
 			}
 		}
 	}
 	
+	/**
+	 * Shows a line to the user. Everything the viewer prints goes through here.
+	 * @param line line to show
+	 */
+	protected void display(String line) {
+		System.out.println(line);
+	}
+	
 	public void printError(String err) {
-		System.out.println(new StringBuffer(ERR_APPEND).append(err).toString());
+		display(new StringBuffer(ERR_APPEND).append(err).toString());
 	}
 	
 	public void close() throws IOException {
-		out.println(Protocol.createPacket(Protocol.STATUS_END, "Viewer closed connection"));
-		in.close();
-		out.close();
-		viewer.close();
+		if (viewer.isClosed()) {
+			return;
+		}
+		stream.write(Protocol.STATUS_END, "Viewer closed connection");
+		stream.close();
 	}
 	
+	// Usage: java BoardViewer [hostname] [port number] [-bin [-zip]] [-last count | -since seq] [-reconnect attempts] [-channel name]
 	public static void main(String[] args) throws IOException {
 		String host = args[0];
 		int port = Integer.parseInt(args[1]);
-		BoardViewer viewer = new BoardViewer(host, port);
+		boolean binary = Arrays.asList(args).contains("-bin");
+		BoardViewer viewer = new BoardViewer(host, port, binary);
+		viewer.setCompressed(Arrays.asList(args).contains("-zip"));
+		for (int i = 2; i + 1 < args.length; i++) {
+			if (args[i].equals("-last")) {
+				viewer.replayLast(Long.parseLong(args[i + 1]));
+			} else if (args[i].equals("-since")) {
+				viewer.replaySince(Long.parseLong(args[i + 1]));
+			} else if (args[i].equals("-reconnect")) {
+				viewer.setReconnects(Integer.parseInt(args[i + 1]));
+			} else if (args[i].equals("-channel")) {
+				viewer.setChannel(args[i + 1]);
+			}
+		}
 		viewer.start();
 		viewer.close();
 	}
@@ -0,0 +1,87 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * BoundedExecutor caps the number of tasks that may be running at once on top
+ * of another Executor. Tasks submitted past the cap are rejected right away
+ * instead of piling up, so a burst of work cannot start threads without limit.
+ * @author Andy
+ *
+ */
+public class BoundedExecutor implements Executor {
+
+	private Executor executor;
+	private Semaphore permits;
+
+	/**
+	 * Creates a new BoundedExecutor
+	 * @param executor executor that actually runs the tasks
+	 * @param bound maximum number of tasks running at once
+	 */
+	public BoundedExecutor(Executor executor, int bound) {
+		this.executor = executor;
+		permits = new Semaphore(bound);
+	}
+
+	/**
+	 * Runs a task if there is room for it
+	 * @param task task to run
+	 * @throws RejectedExecutionException if the bound has been reached
+	 */
+	@Override
+	public void execute(final Runnable task) {
+		if (!permits.tryAcquire()) {
+			throw new RejectedExecutionException("Executor is full");
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return number of tasks that could still be started right now
+	 */
+	public int available() {
+		return permits.availablePermits();
+	}
+
+	/**
+	 * Returns an executor that starts a new thread for every task, using virtual
+	 * threads when the running JVM has them and plain threads otherwise.
+	 * @param virtual true to ask for virtual threads
+	 * @return a thread-per-task executor
+	 */
+	public static Executor threadPerTask(boolean virtual) {
+		if (virtual) {
+			try {
+				// Looked up reflectively so the server still builds and runs on JVMs without Loom
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				ExecutorService executor = (ExecutorService)factory.invoke(null);
+				Log.info("Running sessions on virtual threads");
+				return executor;
+			} catch (ReflectiveOperationException e) {
+				Log.warn("Virtual threads are not available, falling back to platform threads");
+			}
+		}
+		return new Executor() {
+			public void execute(Runnable task) {
+				new Thread(task).start();
+			}
+		};
+	}
+}
@@ -0,0 +1,174 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Compressor deflates BINARY frames for viewers that asked for it (see
+ * Protocol.OPT_COMPRESS). The frames go out wrapped in Protocol.NOTIFY_DEFLATE
+ * frames, which the viewer inflates back into the frames inside.
+ *
+ * Each NOTIFY_DEFLATE is deflated on its own, starting from a preset dictionary
+ * instead of from whatever went to the viewer before. That way its bytes only
+ * depend on the frames in it, so a broadcast is deflated once and every viewer
+ * that asked for compression gets the same buffer. The dictionary is a sample
+ * of recent messages, which holds the usernames being posted under, the leading
+ * digits of the current time and the layout of a NOTIFY_MESSAGE; the viewer is
+ * sent it once, when it connects.
+ *
+ * A Compressor keeps its Deflater between calls, so it is not safe to share
+ * between threads. The Channel has one for broadcasts, each viewer one for
+ * its replay.
+ * @author Andy
+ *
+ */
+public class Compressor {
+
+	/**
+	 * Deflate level, from 1 for fastest to 9 for smallest. Set with -Dbbs.compress.level=
+	 */
+	public static final int LEVEL = Integer.getInteger("bbs.compress.level", 6);
+
+	/**
+	 * Most bytes of frames deflated into one NOTIFY_DEFLATE. Longer runs are cut
+	 * between frames into several.
+	 */
+	public static final int SLICE = 64 << 10;
+
+	private Deflater deflater;
+	private byte[] dictionary;
+	private byte[] in;	// Frames being deflated, when they are not in an array already
+	private byte[] out;
+
+	/**
+	 * @param dictionary preset dictionary, which viewers have to be given, or an
+	 * empty array for none
+	 * @param level deflate level
+	 */
+	public Compressor(byte[] dictionary, int level) {
+		this.dictionary = dictionary;
+		deflater = new Deflater(level, true);
+		in = new byte[1024];
+		out = new byte[1024];
+	}
+
+	/**
+	 * Builds a preset dictionary out of recent messages, encoded as they are sent.
+	 * Deflate finds matches nearest the end soonest, so the newest go last.
+	 * @param recent messages to sample, oldest first
+	 * @param size most bytes wanted
+	 * @return the dictionary, which is never empty
+	 */
+	public static byte[] dictionary(List<Message> recent, int size) {
+		byte[] ret = new byte[size];
+		int at = size;
+		for (int i = recent.size() - 1; i >= 0 && at > 0; i--) {
+			ByteBuffer frame = recent.get(i).encode();
+			int length = Math.min(frame.remaining(), at);
+			frame.position(frame.limit() - length);
+			at -= length;
+			frame.get(ret, at, length);
+		}
+		if (at == size) {
+			// Nothing posted yet: at least the layout of a message and the time
+			ByteBuffer frame = new Message(1, "", "").encode();
+			at -= Math.min(frame.remaining(), size);
+			frame.get(ret, at, size - at);
+		}
+		return Arrays.copyOfRange(ret, at, size);
+	}
+
+	/**
+	 * Deflates frames into as many NOTIFY_DEFLATE frames as they need
+	 * @param frames one or more whole BINARY frames, back to back
+	 * @return the NOTIFY_DEFLATE frames back to back, or the frames themselves
+	 * where deflating does not make them any smaller
+	 */
+	public ByteBuffer compress(ByteBuffer frames) {
+		frames = frames.duplicate();
+		ByteBuffer first = next(frames);
+		if (!frames.hasRemaining()) {
+			return first;
+		}
+		ByteBuffer ret = ByteBuffer.allocate(first.remaining() + frames.remaining());	// No slice comes out longer
+		ret.put(first);
+		while (frames.hasRemaining()) {
+			ret.put(next(frames));
+		}
+		ret.flip();
+		return ret.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Deflates the next SLICE or so of frames into one NOTIFY_DEFLATE, without
+	 * ever cutting a frame in two, so a long replay can be sent a piece at a time
+	 * @param frames whole BINARY frames, moved past the ones taken
+	 * @return the NOTIFY_DEFLATE frame, or the frames themselves if deflating does
+	 * not make them any smaller
+	 */
+	public ByteBuffer next(ByteBuffer frames) {
+		int length = sliceLength(frames);
+		byte[] data;
+		int offset;
+		if (frames.hasArray()) {
+			data = frames.array();
+			offset = frames.arrayOffset() + frames.position();
+		} else {
+			if (length > in.length) {
+				in = new byte[Math.max(length, in.length * 2)];
+			}
+			frames.duplicate().get(in, 0, length);
+			data = in;
+			offset = 0;
+		}
+		ByteBuffer plain = frames.slice();
+		plain.limit(length);
+		frames.position(frames.position() + length);
+		deflater.reset();
+		if (dictionary.length > 0) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+		int size = 0;
+		while (!deflater.finished()) {
+			if (size == out.length) {
+				if (size >= length) {
+					return plain.asReadOnlyBuffer();	// Already no smaller
+				}
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			size += deflater.deflate(out, size, out.length - size);
+		}
+		if (size + 8 >= length) {
+			return plain.asReadOnlyBuffer();	// Not worth the NOTIFY_DEFLATE around it
+		}
+		return Framing.frame(Protocol.NOTIFY_DEFLATE, out, 0, size);
+	}
+
+	/**
+	 * @return length of the whole frames from the buffer's position that fit in a
+	 * SLICE, or of the first frame if that alone is longer
+	 */
+	private static int sliceLength(ByteBuffer frames) {
+		int start = frames.position();
+		int at = start;
+		while (at < frames.limit()) {
+			int length = 0;
+			int shift = 0;
+			int size = 0;
+			byte b;
+			do {
+				b = frames.get(at + size++);
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0 && at + size < frames.limit());
+			int end = at + size + length;
+			if (end - start > SLICE && at > start || end > frames.limit()) {
+				break;
+			}
+			at = end;
+		}
+		return at > start ? at - start : frames.remaining();
+	}
+}
@@ -1,5 +1,6 @@
-// Usage: java ConsoleClient [hostname] [port number]
+// Usage: java ConsoleClient [hostname] [port number] [-bin] [-channel name]
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Scanner;
 
 
@@ -8,7 +9,11 @@ public class ConsoleClient extends BoardClient {
 	Scanner stdin;
 	
 	public ConsoleClient(String host, int port) throws IOException {
-		super(host, port);
+		this(host, port, false);
+	}
+	
+	public ConsoleClient(String host, int port, boolean binary) throws IOException {
+		super(host, port, binary);
 		stdin = new Scanner(System.in);
 		// TODO Auto-generated constructor stub
 	}
@@ -52,11 +57,17 @@ public class ConsoleClient extends BoardClient {
 		return stdin.nextLine();
 	}
 	
-	// Usage: java ConsoleClient [hostname] [port number]
+	// Usage: java ConsoleClient [hostname] [port number] [-bin] [-channel name]
 	public static void main(String[] args) throws IOException {
 		String host = args[0];
 		int port = Integer.parseInt(args[1]);
-		BoardClient client = new ConsoleClient(host, port);
+		boolean binary = Arrays.asList(args).contains("-bin");
+		BoardClient client = new ConsoleClient(host, port, binary);
+		for (int i = 2; i + 1 < args.length; i++) {
+			if (args[i].equals("-channel")) {
+				client.setChannel(args[i + 1]);
+			}
+		}
 		client.start();
 		client.close();
 	}
@@ -0,0 +1,198 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dispatcher takes posted messages from any number of threads without a lock and
+ * hands them on, strictly in sequence order, on a thread of its own.
+ *
+ * A poster claims sequence numbers with one atomic add and drops each message in
+ * the slot its sequence number maps to. The dispatcher thread collects whatever
+ * run of messages is complete from the next expected number on and hands the run
+ * to its Handler in one call, so under load many posts share one log append
+ * pass and one broadcast. Since only the dispatcher ever hands anything on,
+ * everyone downstream sees the same order. Notices, which have no sequence
+ * number, are handed on between runs.
+ *
+ * A poster more than a full ring ahead of the dispatcher waits for it to catch up.
+ * @author Andy
+ *
+ */
+public class Dispatcher {
+
+	/**
+	 * Receives messages and notices on the dispatcher thread
+	 */
+	public interface Handler {
+		/**
+		 * @param messages messages with consecutive sequence numbers, following on
+		 * from the last call. The list is reused once this returns.
+		 */
+		void dispatch(List<Message> messages);
+		void notice(String text);
+	}
+
+	/**
+	 * Most messages handed on in one call
+	 */
+	public static final int MAX_RUN = 256;
+
+	private Handler handler;
+	private AtomicLong claimed;	// Last sequence number handed out
+	private AtomicLong dispatched;	// Last sequence number handed on
+	private AtomicReferenceArray<Message> slots;
+	private int mask;
+	private ConcurrentLinkedQueue<String> notices;
+	private Thread thread;
+	private volatile boolean parked;
+	private Object space = new Object();	// Posters too far ahead wait on this
+	private volatile int waiting;
+
+	/**
+	 * @param name name of the dispatcher thread
+	 * @param last sequence number of the last message already handed on
+	 * @param capacity number of messages that may wait, rounded up to a power of two
+	 * @param handler receives everything dispatched
+	 */
+	public Dispatcher(String name, long last, int capacity, Handler handler) {
+		this.handler = handler;
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		slots = new AtomicReferenceArray<>(size);
+		mask = size - 1;
+		claimed = new AtomicLong(last);
+		dispatched = new AtomicLong(last);
+		notices = new ConcurrentLinkedQueue<>();
+		thread = new Thread(new Runnable() {
+			public void run() {
+				dispatchLoop();
+			}
+		}, name);
+		thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Hands out sequence numbers. Every one handed out must be published.
+	 * @param count how many consecutive numbers are needed
+	 * @return the first of them
+	 */
+	public long claim(int count) {
+		return claimed.getAndAdd(count) + 1;
+	}
+
+	/**
+	 * Queues a message under a sequence number from claim()
+	 * @param message message to queue
+	 */
+	public void publish(Message message) {
+		long seq = message.getSeq();
+		if (seq - dispatched.get() > slots.length()) {
+			awaitSpace(seq);
+		}
+		slots.set((int)seq & mask, message);
+		wake();
+	}
+
+	/**
+	 * Waits until the slot for a sequence number has been handed on. A number once
+	 * claimed has to be published or the dispatcher stalls, so this does not give
+	 * up when interrupted; it just leaves the thread interrupted.
+	 */
+	private void awaitSpace(long seq) {
+		boolean interrupted = false;
+		synchronized (space) {
+			waiting++;
+			while (seq - dispatched.get() > slots.length()) {
+				try {
+					space.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			waiting--;
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queues a notice, to be handed on after the messages already complete
+	 * @param text notice text
+	 */
+	public void notice(String text) {
+		notices.add(text);
+		wake();
+	}
+
+	/**
+	 * @return last sequence number handed out by claim()
+	 */
+	public long claimed() {
+		return claimed.get();
+	}
+
+	/**
+	 * @return sequence number of the last message handed on
+	 */
+	public long dispatched() {
+		return dispatched.get();
+	}
+
+	/**
+	 * @return number of messages claimed but not yet handed on
+	 */
+	public long backlog() {
+		return claimed.get() - dispatched.get();
+	}
+
+	private void wake() {
+		if (parked) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private void dispatchLoop() {
+		List<Message> run = new ArrayList<>(MAX_RUN);
+		long next = dispatched.get() + 1;
+		while (true) {
+			String notice;
+			while ((notice = notices.poll()) != null) {
+				handler.notice(notice);
+			}
+			Message message;
+			while (run.size() < MAX_RUN && (message = slots.get((int)next & mask)) != null) {
+				slots.set((int)next & mask, null);
+				run.add(message);
+				next++;
+			}
+			if (!run.isEmpty()) {
+				try {
+					handler.dispatch(run);
+				} catch (RuntimeException e) {
+					Log.error("Dispatcher: could not hand on messages up to {}", next - 1, e);
+				}
+				run.clear();
+				dispatched.set(next - 1);
+				if (waiting > 0) {
+					synchronized (space) {
+						space.notifyAll();
+					}
+				}
+				continue;
+			}
+			// Nothing to do. Say so before looking once more, so a poster either sees it or is seen.
+			parked = true;
+			if (slots.get((int)next & mask) == null && notices.isEmpty()) {
+				LockSupport.park(this);
+			}
+			parked = false;
+		}
+	}
+}
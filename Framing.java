@@ -0,0 +1,171 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Framing is the way packets are laid out on the wire. Every connection starts
+ * out in TEXT, the original line based format. A client may ask for BINARY in its
+ * client identifier packet (see Protocol.OPT_FRAMING); if the server agrees, both
+ * sides switch right after the identifier's acknowledgement.
+ *
+ * A BINARY frame is a varint length followed by that many bytes: a one byte
+ * opcode standing in for the header, then every chunk as a varint length and
+ * its UTF-8 bytes. Chunks may contain anything, line breaks and separators
+ * included, and the receiver never has to scan for a frame boundary.
+ * @author Andy
+ *
+ */
+public enum Framing {
+
+	TEXT {
+		@Override
+		public ByteBuffer encode(String... chunks) {
+			return Protocol.encodePacket(chunks);
+		}
+	},
+
+	BINARY {
+		@Override
+		public ByteBuffer encode(String... chunks) {
+			byte[][] fields = new byte[chunks.length][];
+			int length = 1;	// Opcode
+			for (int i = 1; i < chunks.length; i++) {
+				fields[i] = chunks[i].getBytes(CHARSET);
+				length += varintSize(fields[i].length) + fields[i].length;
+			}
+			ByteBuffer ret = ByteBuffer.allocate(varintSize(length) + length);
+			putVarint(ret, length);
+			ret.put(opcode(chunks[0]));
+			for (int i = 1; i < chunks.length; i++) {
+				putVarint(ret, fields[i].length);
+				ret.put(fields[i]);
+			}
+			ret.flip();
+			return ret.asReadOnlyBuffer();
+		}
+	};
+
+	/**
+	 * Character set of BINARY chunks. TEXT uses the platform default, like PrintWriter.
+	 */
+	public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	/**
+	 * Largest BINARY frame a receiver will accept
+	 */
+	public static final int MAX_FRAME = 1 << 20;
+
+	// Opcodes are the index of the header in this table, so never reorder it
+	private static final String[] HEADERS = {
+		null,
+		Protocol.STATUS_ACK, Protocol.STATUS_ERR, Protocol.STATUS_END,
+		Protocol.ACT_LOGIN, Protocol.ACT_REGISTER, Protocol.ACT_POST,
+		Protocol.NOTIFY, Protocol.NOTIFY_STOP,
+		Protocol.CLIENT_READONLY, Protocol.CLIENT_READWRITE,
+		Protocol.NOTIFY_MESSAGE, Protocol.ACT_POST_BATCH, Protocol.ACT_RESUME,
+		Protocol.CLIENT_PEER, Protocol.ACT_FORWARD, Protocol.ACT_SEARCH, Protocol.NOTIFY_DEFLATE
+	};
+
+	/**
+	 * Encodes a packet, frame boundary included, into a read-only buffer that can
+	 * be shared between connections through duplicate()
+	 * @param chunks header followed by the data chunks
+	 * @return encoded packet
+	 */
+	public abstract ByteBuffer encode(String... chunks);
+
+	/**
+	 * Encodes a BINARY packet with a single chunk of raw bytes, for data that is
+	 * not text, such as Protocol.NOTIFY_DEFLATE
+	 * @param header packet header
+	 * @param data array holding the chunk
+	 * @param offset where the chunk starts
+	 * @param length length of the chunk
+	 * @return encoded packet, shareable through duplicate()
+	 */
+	public static ByteBuffer frame(String header, byte[] data, int offset, int length) {
+		int body = 1 + varintSize(length) + length;
+		ByteBuffer ret = ByteBuffer.allocate(varintSize(body) + body);
+		putVarint(ret, body);
+		ret.put(opcode(header));
+		putVarint(ret, length);
+		ret.put(data, offset, length);
+		ret.flip();
+		return ret.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param header one of the Protocol headers
+	 * @return the BINARY opcode standing in for it
+	 * @throws IllegalArgumentException if the header has no opcode
+	 */
+	public static byte opcode(String header) {
+		for (int i = 1; i < HEADERS.length; i++) {
+			if (HEADERS[i].equals(header)) {
+				return (byte)i;
+			}
+		}
+		throw new IllegalArgumentException("No opcode for " + header);
+	}
+
+	/**
+	 * @param opcode BINARY opcode
+	 * @return the Protocol header it stands for, or null if it is unknown
+	 */
+	public static String header(int opcode) {
+		return opcode > 0 && opcode < HEADERS.length ? HEADERS[opcode] : null;
+	}
+
+	/**
+	 * @param value non-negative value
+	 * @return number of bytes putVarint() takes to write it
+	 */
+	public static int varintSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes a value 7 bits at a time, low bits first, with the top bit of each
+	 * byte set when more bytes follow
+	 * @param buf buffer to write to
+	 * @param value non-negative value
+	 */
+	public static void putVarint(ByteBuffer buf, int value) {
+		while ((value & ~0x7F) != 0) {
+			buf.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte)value);
+	}
+
+	/**
+	 * Number of bytes a String takes up in UTF-8, counting unpaired surrogates
+	 * as the single replacement byte the encoder writes for them
+	 * @param data string to measure
+	 * @return encoded length
+	 */
+	public static int utf8Length(CharSequence data) {
+		int length = 0;
+		int size = data.length();
+		for (int i = 0; i < size; i++) {
+			char c = data.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(data.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+}
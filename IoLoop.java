@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * IoLoop owns a Selector and services every NioSession registered with it on a
+ * single thread. Other threads never touch the selector directly; they hand
+ * work to the loop through execute(), which queues the task and wakes the
+ * selector up.
+ * @author Andy
+ *
+ */
+public class IoLoop extends Thread {
+
+	private BoardServer board;
+	private Selector selector;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+
+	public IoLoop(BoardServer board, int id) throws IOException {
+		super("IoLoop-" + id);
+		this.board = board;
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+		setDaemon(true);
+	}
+
+	/**
+	 * Hands a freshly accepted connection to this loop
+	 * @param sock accepted connection
+	 */
+	public void register(final SocketChannel sock) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					sock.configureBlocking(false);
+					sock.socket().setTcpNoDelay(BoardServer.NO_DELAY);
+					SelectionKey key = sock.register(selector, SelectionKey.OP_READ);
+					key.attach(new NioSession(board, IoLoop.this, key));
+				} catch (IOException e) {
+					Log.warn("Could not register {}: {}", sock, e);
+					try {
+						sock.close();
+					} catch (IOException ignored) {
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a task on the loop thread. Safe to call from any thread.
+	 * @param task task to run
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (Thread.currentThread() != this) {
+			selector.wakeup();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+			try {
+				selector.select();
+			} catch (IOException e) {
+				Log.error("{} stopped", getName(), e);
+				return;
+			}
+			Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+			while (i.hasNext()) {
+				SelectionKey key = i.next();
+				i.remove();
+				NioSession session = (NioSession)key.attachment();
+				try {
+					if (key.isValid() && key.isReadable()) {
+						session.handleRead();
+					}
+					if (key.isValid() && key.isWritable()) {
+						session.handleWrite();
+					}
+				} catch (IOException e) {
+					session.abort();
+				} catch (RuntimeException e) {
+					// A malformed packet must not take the whole loop down with it
+					Log.error("{} failed", session, e);
+					session.abort();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts latencies in nanoseconds the way HdrHistogram does:
+ * every power of two is split into the same number of linear sub-buckets, so
+ * any recorded value is known to within about 0.1% (three significant digits)
+ * from a microsecond up to minutes, in a fixed amount of memory.
+ *
+ * Recording is a single atomic increment and may be done from any number of
+ * threads at once.
+ * @author Andy
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 11;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;	// Linear buckets below 2^SUB_BUCKET_BITS
+	private static final int HALF = SUB_BUCKETS / 2;	// Sub-buckets per power of two above that
+
+	/**
+	 * Largest value tracked, about 18 minutes. Larger values count as this.
+	 */
+	public static final long MAX_VALUE = (1L << 40) - 1;
+
+	private AtomicLongArray counts;
+	private AtomicLongArray totals;	// Count, largest value and sum, so the report needs no scan for them
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+		totals = new AtomicLongArray(3);
+	}
+
+	/**
+	 * @param nanos latency to record; negative values count as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		counts.incrementAndGet(index(value));
+		totals.incrementAndGet(0);
+		totals.addAndGet(2, value);
+		long max;
+		while (value > (max = totals.get(1)) && !totals.compareAndSet(1, max, value)) {
+			// Another thread moved the max; check again
+		}
+	}
+
+	public long count() {
+		return totals.get(0);
+	}
+
+	public long max() {
+		return totals.get(1);
+	}
+
+	/**
+	 * @return sum of every value recorded, in nanoseconds
+	 */
+	public long sum() {
+		return totals.get(2);
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the value that percentile of recorded values is at or below, to
+	 * within the histogram's precision; 0 if nothing was recorded
+	 */
+	public long percentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		long target = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highest(i), max());
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Prints count, p50, p99, p999 and max on one line
+	 * @param out stream to print to
+	 * @param name what was measured
+	 */
+	public void report(PrintStream out, String name) {
+		out.printf("%-10s count=%-9d p50=%9.3fms p99=%9.3fms p999=%9.3fms max=%9.3fms%n", name, count(),
+				percentile(50) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6, max() / 1e6);
+	}
+
+	/**
+	 * Prints the percentile distribution in HdrHistogram's text format, which
+	 * its plotting tools read, with values in milliseconds
+	 * @param out stream to print to
+	 */
+	public void distribution(PrintStream out) {
+		out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			long count = counts.get(i);
+			if (count == 0) {
+				continue;
+			}
+			seen += count;
+			double fraction = (double)seen / total;
+			out.printf("%12.3f %2.12f %10d %14.2f%n", highest(i) / 1e6, fraction, seen,
+					fraction < 1 ? 1 / (1 - fraction) : Double.POSITIVE_INFINITY);
+		}
+		out.printf("#[Max     = %12.3f, Total count    = %12d]%n", max() / 1e6, total);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * HALF + (int)(value >>> shift);
+	}
+
+	/**
+	 * @return largest value that lands in a bucket
+	 */
+	private static long highest(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / HALF - 1;
+		long sub = index - shift * HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,387 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator drives a BoardServer with many simulated posters and viewers
+ * from one JVM. Posters are BoardClients and viewers are BoardViewers, so they
+ * speak the protocol exactly as the real clients do.
+ *
+ * Every post carries the time it was meant to be sent. Posters keep to a fixed
+ * schedule whatever the server does, so when the server falls behind, the
+ * waiting shows up in the latencies instead of quietly lowering the rate.
+ * Latency from that time to the post's ACK, and to its arrival at each viewer,
+ * is recorded in LatencyHistograms and reported at p50, p99 and p999.
+ *
+ * Usage: java LoadGenerator [hostname] [port number] [options]
+ *   -posters n     simulated posters (100)
+ *   -viewers n     simulated viewers (100)
+ *   -rate n        posts per second across all posters (1000)
+ *   -size n        characters per post (80)
+ *   -posts n       posts per connection; a poster then logs out and reconnects (100)
+ *   -window n      posts each poster may have waiting on their ACKs (1)
+ *   -batch n       messages per post, sent together as one ACT_POST_BATCH (1)
+ *   -duration n    seconds to post for (30)
+ *   -bin           use BINARY framing
+ *   -virtual       run clients on virtual threads, where available
+ *   -server        start a BoardServer on the port inside this JVM first, without post rate
+ *                  limits and with cheap password hashes
+ *   -nio           with -server, run it non-blocking
+ *   -hgrm prefix   also write the full distributions to prefix-ack.hgrm and prefix-delivery.hgrm
+ * @author Andy
+ *
+ */
+public class LoadGenerator {
+
+	private static final String PASSWORD = "password";
+	private static final int CONNECTING = 128;	// Viewers connecting at once, below BoardServer.MAX_HANDSHAKES
+
+	private String host;
+	private int port;
+	private int posters = 100;
+	private int viewers = 100;
+	private double rate = 1000;
+	private int size = 80;
+	private int postsPerConnect = 100;
+	private int window = 1;
+	private int batch = 1;
+	private int duration = 30;
+	private boolean binary;
+	private boolean virtual;
+	private String hgrm;
+
+	private String marker;	// Starts the text of every post, so this run's posts can be told apart
+	private volatile boolean running = true;
+	private PrintStream out = System.out;
+	private LatencyHistogram ackLatency = new LatencyHistogram();
+	private LatencyHistogram deliveryLatency = new LatencyHistogram();
+	private AtomicLong sent = new AtomicLong();
+	private AtomicLong acked = new AtomicLong();
+	private AtomicLong delivered = new AtomicLong();
+	private AtomicLong connects = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+	private List<LoadViewer> connected = new CopyOnWriteArrayList<>();
+
+	public LoadGenerator(String host, int port) {
+		this.host = host;
+		this.port = port;
+		marker = "lg" + Integer.toHexString(ThreadLocalRandom.current().nextInt()) + ":";
+	}
+
+	/**
+	 * Connects the viewers, runs the posters for the set duration and prints the report
+	 * @throws InterruptedException if interrupted
+	 */
+	public void run() throws InterruptedException {
+		Executor threads = BoundedExecutor.threadPerTask(virtual);
+		out.println("Connecting " + viewers + " viewers");
+		CountDownLatch caughtUp = new CountDownLatch(viewers);
+		Semaphore connecting = new Semaphore(CONNECTING);
+		for (int i = 0; i < viewers; i++) {
+			threads.execute(new Runnable() {
+				public void run() {
+					view(caughtUp, connecting);
+				}
+			});
+		}
+		if (!caughtUp.await(60, TimeUnit.SECONDS)) {
+			out.println("Only " + (viewers - caughtUp.getCount()) + " viewers connected, going on anyway");
+		}
+
+		out.println("Running " + posters + " posters at " + rate + " posts/s for " + duration + "s");
+		CountDownLatch finished = new CountDownLatch(posters);
+		long interval = (long)(posters * 1e9 / rate);	// Between two posts of one poster
+		long start = System.nanoTime();
+		for (int i = 0; i < posters; i++) {
+			Poster poster = new Poster(i, start + interval * i / posters, interval);
+			threads.execute(new Runnable() {
+				public void run() {
+					poster.run();
+					finished.countDown();
+				}
+			});
+		}
+		for (int second = 1; second <= duration; second++) {
+			Thread.sleep(1000);
+			if (second % 5 == 0) {
+				out.printf("%3ds sent=%d acked=%d delivered=%d failures=%d%n", second, sent.get(), acked.get(), delivered.get(), failures.get());
+			}
+		}
+		running = false;
+		finished.await(30, TimeUnit.SECONDS);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		Thread.sleep(1000);	// Let the last notifications reach the viewers
+		for (LoadViewer viewer : connected) {
+			try {
+				viewer.close();
+			} catch (IOException e) {
+				// Already gone
+			}
+		}
+
+		out.printf("%nsent=%d acked=%d (%.0f/s) delivered=%d (%.0f/s) connects=%d failures=%d%n",
+				sent.get(), acked.get(), acked.get() / elapsed, delivered.get(), delivered.get() / elapsed,
+				connects.get(), failures.get());
+		ackLatency.report(out, "post->ack");
+		deliveryLatency.report(out, "post->view");
+		if (hgrm != null) {
+			try (PrintStream file = new PrintStream(hgrm + "-ack.hgrm")) {
+				ackLatency.distribution(file);
+			} catch (FileNotFoundException e) {
+				out.println("Cannot write " + e.getMessage());
+			}
+			try (PrintStream file = new PrintStream(hgrm + "-delivery.hgrm")) {
+				deliveryLatency.distribution(file);
+			} catch (FileNotFoundException e) {
+				out.println("Cannot write " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Keeps one viewer connected until the end of the run, reconnecting if it is
+	 * turned away or cut off
+	 */
+	private void view(CountDownLatch caughtUp, Semaphore connecting) {
+		boolean counted = false;	// Whether this viewer has counted towards caughtUp yet
+		while (running) {
+			LoadViewer viewer = null;
+			connecting.acquireUninterruptibly();
+			try {
+				viewer = new LoadViewer(connecting, counted ? null : caughtUp);
+				connected.add(viewer);
+				viewer.start();	// Returns once the connection is over
+			} catch (IOException e) {
+				// Turned away or cut off
+			} finally {
+				if (viewer != null) {
+					connected.remove(viewer);
+				}
+			}
+			if (viewer != null && viewer.caughtUp) {
+				counted = true;
+			} else {
+				connecting.release();	// Never got far enough to release it itself
+				failures.incrementAndGet();
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+			}
+		}
+	}
+
+	/**
+	 * One simulated user, posting on a fixed schedule over as many connections as it takes
+	 */
+	private class Poster {
+		private String username;
+		private long next;	// When the next post is meant to be sent
+		private long interval;
+		private boolean registered;
+
+		public Poster(int index, long first, long interval) {
+			username = marker.substring(0, marker.length() - 1) + "_" + index;
+			next = first;
+			this.interval = interval;
+		}
+
+		public void run() {
+			while (running) {
+				LoadPoster client = null;
+				try {
+					client = new LoadPoster(this);
+					connects.incrementAndGet();
+					client.start();
+				} catch (IOException e) {
+					// Turned away or cut off
+				}
+				if (client == null || !client.loggedIn) {
+					failures.incrementAndGet();
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+				}
+			}
+		}
+	}
+
+	/**
+	 * A BoardClient whose input comes from its Poster's schedule
+	 */
+	private class LoadPoster extends BoardClient {
+		private Poster poster;
+		private int posts;
+		private boolean loggedIn;
+
+		public LoadPoster(Poster poster) throws IOException {
+			super(host, port, binary);
+			this.poster = poster;
+			setWindow(window);
+			setReconnects(0);	// Poster.run() reconnects, and counts it
+		}
+
+		@Override
+		protected void printMessage(String mes) {
+			if (mes.startsWith("Error: ")) {
+				failures.incrementAndGet();
+			}
+		}
+
+		@Override
+		protected boolean isRegistering() {
+			return !poster.registered;
+		}
+
+		@Override
+		protected String getUsername() {
+			return poster.username;
+		}
+
+		@Override
+		protected String getPassword(boolean register) {
+			return PASSWORD;
+		}
+
+		@Override
+		protected String getPost() {
+			loggedIn = true;
+			poster.registered = true;
+			if (posts == postsPerConnect || !running) {
+				return "/quit";
+			}
+			long intended = poster.next;
+			poster.next += poster.interval;
+			long wait;
+			while ((wait = intended - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			posts++;
+			sent.addAndGet(batch);
+			StringBuilder post = new StringBuilder((size + 1) * batch);
+			for (int i = 0; i < batch; i++) {
+				if (i > 0) {
+					post.append('\n');
+				}
+				int start = post.length();
+				post.append(marker).append(intended).append(':');
+				while (post.length() - start < size) {
+					post.append('x');
+				}
+			}
+			return post.toString();
+		}
+
+		@Override
+		protected void posted(String post) {
+			long latency = System.nanoTime() - sentAt(post, 0);
+			for (int i = 0; i < batch; i++) {
+				ackLatency.record(latency);
+			}
+			acked.addAndGet(batch);
+		}
+	}
+
+	/**
+	 * A BoardViewer that times the posts it sees instead of showing them
+	 */
+	private class LoadViewer extends BoardViewer {
+		private Semaphore connecting;
+		private CountDownLatch first;	// Counted down on catching up, if this is the viewer's first connection
+		private volatile boolean caughtUp;
+
+		public LoadViewer(Semaphore connecting, CountDownLatch first) throws IOException {
+			super(host, port, binary);
+			this.connecting = connecting;
+			this.first = first;
+			replayLast(0);	// Only this run's posts are of interest
+			setReconnects(0);	// view() reconnects, and counts it
+		}
+
+		@Override
+		protected void display(String line) {
+			int at = line.indexOf(marker);
+			if (at >= 0) {
+				deliveryLatency.record(System.nanoTime() - sentAt(line, at));
+				delivered.incrementAndGet();
+			} else if (line.startsWith("(caught up") && !caughtUp) {
+				caughtUp = true;
+				connecting.release();
+				if (first != null) {
+					first.countDown();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the intended send time written into a post by LoadPoster
+	 */
+	private long sentAt(String text, int at) {
+		int start = at + marker.length();
+		return Long.parseLong(text.substring(start, text.indexOf(':', start)));
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		LoadGenerator load = new LoadGenerator(host, port);
+		boolean server = false;
+		boolean nio = false;
+		for (int i = 2; i < args.length; i++) {
+			switch (args[i]) {
+			case "-posters" : load.posters = Integer.parseInt(args[++i]); break;
+			case "-viewers" : load.viewers = Integer.parseInt(args[++i]); break;
+			case "-rate" : load.rate = Double.parseDouble(args[++i]); break;
+			case "-size" : load.size = Integer.parseInt(args[++i]); break;
+			case "-posts" : load.postsPerConnect = Integer.parseInt(args[++i]); break;
+			case "-window" : load.window = Integer.parseInt(args[++i]); break;
+			case "-batch" : load.batch = Integer.parseInt(args[++i]); break;
+			case "-duration" : load.duration = Integer.parseInt(args[++i]); break;
+			case "-hgrm" : load.hgrm = args[++i]; break;
+			case "-bin" : load.binary = true; break;
+			case "-virtual" : load.virtual = true; break;
+			case "-server" : server = true; break;
+			case "-nio" : nio = true; break;
+			default : System.out.println("Unknown option " + args[i]); return;
+			}
+		}
+		if (server) {
+			// Every simulated user posts from this one address, at whatever rate was asked for
+			for (String limit : new String[] {"bbs.rate.user", "bbs.rate.address"}) {
+				if (System.getProperty(limit) == null) {
+					System.setProperty(limit, "0");
+				}
+			}
+			// Registering every simulated user at full strength would take the first seconds of the run
+			if (System.getProperty("bbs.hash.iterations") == null) {
+				System.setProperty("bbs.hash.iterations", "1000");
+			}
+			// The server reports every post on the console, which would bury the results
+			Log.setLevel(Log.Level.WARN);
+			BoardServer board = new BoardServer(port);
+			boolean nonBlocking = nio;
+			Thread accept = new Thread(new Runnable() {
+				public void run() {
+					try {
+						if (nonBlocking) {
+							board.startNonBlocking(Runtime.getRuntime().availableProcessors());
+						} else {
+							board.start(load.virtual);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}, "BoardServer");
+			accept.setDaemon(true);
+			accept.start();
+		}
+		load.run();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,142 @@
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log is the server's console output. Lines below the current level are thrown
+ * away before anything is formatted, and the rest are handed to a background
+ * thread, so a post never waits on the console. If the console cannot keep up,
+ * lines are dropped and counted rather than holding up the caller.
+ *
+ * Messages use {} for each argument, filled in on the background thread:
+ * Log.info("Message posted: {}", message). The level is set with -Dbbs.level=
+ * to DEBUG, INFO, WARN, ERROR or OFF.
+ * @author Andy
+ *
+ */
+public class Log {
+
+	public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+	/**
+	 * Lines that may wait for the console before new ones are dropped. Set with -Dbbs.console.queue=
+	 */
+	public static final int QUEUE = Integer.getInteger("bbs.console.queue", 8192);
+
+	private static volatile Level level = Level.valueOf(System.getProperty("bbs.level", "INFO"));
+	private static final BlockingQueue<Line> lines = new ArrayBlockingQueue<>(QUEUE);
+	private static final AtomicLong dropped = new AtomicLong();
+
+	static {
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						lines.take().print();
+					}
+				} catch (InterruptedException e) {
+					// Shutting down
+				}
+			}
+		}, "Log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}));
+	}
+
+	private Log() {
+	}
+
+	public static void setLevel(Level level) {
+		Log.level = level;
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param at level to check
+	 * @return whether lines at that level are printed
+	 */
+	public static boolean enabled(Level at) {
+		return at.compareTo(level) >= 0;
+	}
+
+	public static void debug(String format, Object... args) {
+		log(Level.DEBUG, format, args);
+	}
+
+	public static void info(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+
+	public static void warn(String format, Object... args) {
+		log(Level.WARN, format, args);
+	}
+
+	/**
+	 * A Throwable as the last argument has its stack trace printed after the line
+	 */
+	public static void error(String format, Object... args) {
+		log(Level.ERROR, format, args);
+	}
+
+	/**
+	 * @return number of lines dropped because the console fell behind
+	 */
+	public static long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Prints whatever is still queued on the calling thread
+	 */
+	public static void flush() {
+		Line line;
+		while ((line = lines.poll()) != null) {
+			line.print();
+		}
+		System.out.flush();
+	}
+
+	private static void log(Level at, String format, Object[] args) {
+		if (enabled(at) && !lines.offer(new Line(at, format, args))) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private static class Line {
+		private Level level;
+		private String format;
+		private Object[] args;
+
+		public Line(Level level, String format, Object[] args) {
+			this.level = level;
+			this.format = format;
+			this.args = args;
+		}
+
+		public void print() {
+			StringBuilder text = new StringBuilder(format.length() + 32);
+			int arg = 0;
+			int from = 0;
+			int at;
+			while ((at = format.indexOf("{}", from)) >= 0) {
+				text.append(format, from, at).append(arg < args.length ? args[arg++] : "{}");
+				from = at + 2;
+			}
+			text.append(format, from, format.length());
+			PrintStream out = level == Level.ERROR ? System.err : System.out;
+			out.println(text);
+			if (args.length > arg && args[args.length - 1] instanceof Throwable) {
+				((Throwable)args[args.length - 1]).printStackTrace();
+			}
+		}
+	}
+}
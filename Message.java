@@ -0,0 +1,178 @@
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A message posted to the board: its content, a timestamp, the user who posted
+ * it, and the sequence number the board gave it. Sequence numbers start at 1 and
+ * only ever go up, so they order messages and tell a viewer what it has missed.
+ *
+ * Messages never change, and the history keeps a great many of them, so each is
+ * kept small: the time is a plain count of milliseconds, and every message by
+ * the same user shares one copy of the username. The encoded frame is made the
+ * first time it is asked for and kept, since the log and every BINARY viewer
+ * want the same bytes.
+ * @author Andy
+ *
+ */
+public class Message {
+
+	private static final int MAX_AUTHORS = 65536;	// Past this many usernames are no longer shared
+	private static final ConcurrentHashMap<String, String> authors = new ConcurrentHashMap<>();
+
+	private static final int STAMPS = 64;	// Seconds whose timestamps are remembered, a power of two
+	private static final Stamp[] stamps = new Stamp[STAMPS];
+
+	private final long seq;
+	private final long time;	// Milliseconds since the epoch
+	private final String source;
+	private final String content;
+	private volatile byte[] encoded;	// NOTIFY_MESSAGE frame, once made
+
+	/**
+	 * The formatted timestamp of one second
+	 */
+	private static class Stamp {
+		private final long second;
+		private final String text;
+
+		Stamp(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Creates a message posted now
+	 */
+	public Message(long seq, String source, String content) {
+		this(seq, source, content, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param seq sequence number
+	 * @param source username of the poster
+	 * @param content message text
+	 * @param time when it was posted, in milliseconds since the epoch
+	 */
+	public Message(long seq, String source, String content, long time) {
+		this.seq = seq;
+		this.source = author(source);
+		this.content = content;
+		this.time = time;
+	}
+
+	/**
+	 * @return the one copy of a username every message by the user shares
+	 */
+	private static String author(String source) {
+		String ret = authors.get(source);
+		if (ret != null) {
+			return ret;
+		}
+		if (authors.size() >= MAX_AUTHORS) {
+			return source;
+		}
+		ret = authors.putIfAbsent(source, source);
+		return ret != null ? ret : source;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public String getContent() {
+		return content;
+	}
+
+	/**
+	 * @return when the message was posted, in milliseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Encodes the message as a BINARY Protocol.NOTIFY_MESSAGE frame: sequence
+	 * number, time, source, content and a CRC32 of those four chunks. This is both
+	 * the MessageLog record and what BINARY viewers are sent.
+	 * @return encoded frame, shareable through duplicate()
+	 */
+	public ByteBuffer encode() {
+		byte[] frame = encoded;
+		if (frame == null) {
+			// Two threads may both make it; they make the same bytes
+			String seq = Long.toString(this.seq);
+			String time = Long.toString(this.time);
+			String crc = Long.toString(checksum(seq, time, source, content));
+			ByteBuffer buf = Framing.BINARY.encode(Protocol.NOTIFY_MESSAGE, seq, time, source, content, crc);
+			frame = new byte[buf.remaining()];
+			buf.get(frame);
+			encoded = frame;
+		}
+		return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads a message back out of a Protocol.NOTIFY_MESSAGE packet
+	 * @param packet parsed packet
+	 * @return the message, or null if the packet is not one or is damaged
+	 */
+	public static Message decode(Packet packet) {
+		if (!packet.headerIs(Protocol.NOTIFY_MESSAGE) || packet.size() != 6) {
+			return null;
+		}
+		String seq = packet.chunk(1);
+		String time = packet.chunk(2);
+		String source = packet.chunk(3);
+		String content = packet.chunk(4);
+		try {
+			if (Long.parseLong(packet.chunk(5)) != checksum(seq, time, source, content)) {
+				return null;
+			}
+			return new Message(Long.parseLong(seq), source, content, Long.parseLong(time));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static long checksum(String... chunks) {
+		CRC32 crc = new CRC32();
+		for (String chunk : chunks) {
+			crc.update(chunk.getBytes(Framing.CHARSET));
+			crc.update(Protocol.SPLIT_CHAR);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Formats a time the way Date.toString() does. That only goes down to the
+	 * second, and a busy board posts many messages a second, so the text of
+	 * recent seconds is remembered.
+	 * @param time milliseconds since the epoch
+	 * @return the formatted time
+	 */
+	static String timestamp(long time) {
+		long second = Math.floorDiv(time, 1000);
+		int slot = (int)second & (STAMPS - 1);
+		Stamp stamp = stamps[slot];	// Fields are final, so a Stamp seen at all is seen whole
+		if (stamp == null || stamp.second != second) {
+			stamp = new Stamp(second, new Date(second * 1000).toString());
+			stamps[slot] = stamp;
+		}
+		return stamp.text;
+	}
+
+	@Override
+	public String toString() {
+		String stamp = timestamp(time);
+		return new StringBuilder(stamp.length() + source.length() + content.length() + 5)
+				.append('[').append(stamp).append("] ").append(source).append(": ").append(content).toString();
+	}
+
+}
@@ -0,0 +1,623 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MessageLog keeps every posted Message on disk in an append-only log, split
+ * into segment files named after the sequence number of their first message.
+ *
+ * Each record is the message's BINARY Protocol.NOTIFY_MESSAGE frame (see
+ * Message.encode()), so a run of records can be sent to a BINARY viewer as is.
+ * Sequence numbers have no gaps, which makes the n-th record of a segment the
+ * message numbered base + n.
+ *
+ * Appending only writes to the file. A single flusher thread calls force() for
+ * everything written since its last pass, so a burst of posts shares one fsync
+ * (group commit). Callers that need a message on disk before going on wait for
+ * it with awaitDurable() or whenDurable(). If forcing fails, the log fails as
+ * if an append had: the waiters are told so and nothing more is taken.
+ *
+ * On startup only the last segment is scanned, which finds the last complete
+ * record and cuts off whatever a crash left half written after it. Earlier
+ * segments were sealed when the log rolled past them.
+ * @author Andy
+ *
+ */
+public class MessageLog {
+
+	/**
+	 * Size at which a segment is sealed and a new one started. Set with -Dbbs.log.segment=
+	 */
+	public static final long SEGMENT_SIZE = Long.getLong("bbs.log.segment", 64L << 20);
+
+	/**
+	 * Whether appends are forced to disk before they count as durable. Set with -Dbbs.log.fsync=
+	 */
+	public static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("bbs.log.fsync", "true"));
+
+	/**
+	 * Records between two entries of the offset index
+	 */
+	private static final int INDEX_INTERVAL = 1024;
+
+	private static final String SUFFIX = ".log";
+
+	private File dir;
+	private long[] bases;	// Base sequence number of every segment, in order
+	private FileChannel current;
+	private long currentBase;	// Sequence number of the first message in the current segment
+	private long lastSeq;	// Last sequence number written
+	private long durableSeq;	// Last sequence number known to be on disk
+	private IOException failure;	// Why the last append failed, after which nothing more becomes durable
+	private ConcurrentLinkedQueue<Waiter> waiters;
+	private ConcurrentSkipListMap<Long, Long> index;	// Sequence number to offset in its segment, every INDEX_INTERVAL records
+
+	/**
+	 * Told whether a message made it to disk, by whenDurable()
+	 */
+	public interface Callback {
+		/**
+		 * The message is on disk
+		 */
+		void durable();
+		/**
+		 * The log failed first, and the message will never be on disk
+		 * @param e why the log failed
+		 */
+		void failed(IOException e);
+	}
+
+	/**
+	 * Opens the log in a directory, creating it if needed, and recovers the end of
+	 * the last segment
+	 * @param dir directory holding the segments
+	 * @throws IOException if no IO
+	 */
+	public MessageLog(File dir) throws IOException {
+		this.dir = dir;
+		dir.mkdirs();
+		waiters = new ConcurrentLinkedQueue<>();
+		index = new ConcurrentSkipListMap<>();
+		bases = segments();
+		if (bases.length == 0) {
+			lastSeq = 0;
+			openSegment(1);
+		} else {
+			currentBase = bases[bases.length - 1];
+			current = FileChannel.open(segment(currentBase).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			lastSeq = recover();
+		}
+		durableSeq = lastSeq;
+		Thread flusher = new Thread(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, "MessageLog-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * @return sequence number of the last message in the log, 0 if it is empty
+	 */
+	public synchronized long lastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * Appends a message. Messages must be appended in sequence order. The message
+	 * is written but not necessarily on disk when this returns. Once an append has
+	 * failed the log takes nothing more, and waiting on later messages fails too.
+	 * @param message message to append
+	 * @throws IOException if no IO
+	 */
+	public synchronized void append(Message message) throws IOException {
+		if (failure != null) {
+			throw new IOException("Message log failed earlier", failure);
+		}
+		try {
+			write(message);
+		} catch (IOException e) {
+			failure = e;
+			notifyAll();
+			fail(e);
+			throw e;
+		}
+	}
+
+	private void write(Message message) throws IOException {
+		if (message.getSeq() != lastSeq + 1) {
+			throw new IllegalArgumentException("Message " + message.getSeq() + " is out of order");
+		}
+		ByteBuffer record = message.encode();
+		if (current.position() > 0 && current.position() + record.remaining() > SEGMENT_SIZE) {
+			current.force(false);	// Seal the segment; the flusher only ever forces the current one
+			current.close();
+			openSegment(message.getSeq());
+		}
+		if (message.getSeq() % INDEX_INTERVAL == 0) {
+			index.put(message.getSeq(), current.position());
+		}
+		while (record.hasRemaining()) {
+			current.write(record);
+		}
+		lastSeq = message.getSeq();
+		if (!FSYNC) {
+			durableSeq = lastSeq;
+			release(lastSeq);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until a message is on disk. The message need not have been appended yet.
+	 * @param seq sequence number of the message
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IOException if the log failed before the message got to disk
+	 */
+	public synchronized void awaitDurable(long seq) throws InterruptedException, IOException {
+		while (durableSeq < seq && failure == null) {
+			wait();
+		}
+		if (durableSeq < seq) {
+			throw new IOException("Message log failed", failure);
+		}
+	}
+
+	/**
+	 * Tells a callback once a message is on disk, or once the log has failed
+	 * first, without blocking the caller. It is told either right away or on the
+	 * thread that made the message durable or failed the log.
+	 * @param seq sequence number of the message, which need not have been appended yet
+	 * @param callback callback to tell
+	 */
+	public void whenDurable(long seq, Callback callback) {
+		IOException failed;
+		synchronized (this) {
+			failed = failure;
+			if (failed == null && durableSeq < seq) {
+				waiters.add(new Waiter(seq, callback));
+				return;
+			}
+		}
+		if (failed != null) {
+			callback.failed(failed);
+		} else {
+			callback.durable();
+		}
+	}
+
+	/**
+	 * Reads the last messages in the log, oldest first
+	 * @param count number of messages wanted
+	 * @return up to count messages
+	 * @throws IOException if no IO
+	 */
+	public List<Message> tail(int count) throws IOException {
+		long last = lastSeq();
+		List<Message> ret = new ArrayList<>();
+		for (Region region : regions(Math.max(1, last - count + 1), last)) {
+			Reader reader = region.reader();
+			Message message;
+			while ((message = reader.next()) != null) {
+				ret.add(message);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Finds where a run of messages is stored. Nothing is read into memory: the
+	 * records are only skipped over, starting from the nearest index entry.
+	 * @param from sequence number of the first message wanted
+	 * @param to sequence number of the last message wanted, at most lastSeq()
+	 * @return one Region per segment the run touches, in order
+	 * @throws IOException if no IO
+	 */
+	public List<Region> regions(long from, long to) throws IOException {
+		long[] bases;
+		long last;
+		long currentSize;
+		synchronized (this) {
+			bases = this.bases;
+			last = lastSeq;
+			currentSize = current.position();
+		}
+		List<Region> ret = new ArrayList<>();
+		to = Math.min(to, last);
+		for (int i = 0; i < bases.length && from <= to; i++) {
+			long end = i + 1 < bases.length ? bases[i + 1] - 1 : last;	// Last message in the segment
+			if (end < from) {
+				continue;
+			}
+			File file = segment(bases[i]);
+			long size = i + 1 < bases.length ? file.length() : currentSize;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long start = offset(channel, bases[i], from, size);
+				long stop = to < end ? offset(channel, bases[i], to + 1, size) : size;
+				ret.add(new Region(file, start, stop - start));
+			}
+			from = end + 1;
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads scattered messages, such as the hits of a search. Each segment they
+	 * are in is opened and mapped once, and the records between them are skipped
+	 * over from the nearest index entry without being decoded.
+	 * @param seqs sequence numbers of the messages wanted, in any order
+	 * @return the messages that could be read, oldest first
+	 * @throws IOException if no IO
+	 */
+	public List<Message> read(long[] seqs) throws IOException {
+		long[] wanted = seqs.clone();
+		Arrays.sort(wanted);
+		long[] bases;
+		long last;
+		long currentSize;
+		synchronized (this) {
+			bases = this.bases;
+			last = lastSeq;
+			currentSize = current.position();
+		}
+		List<Message> ret = new ArrayList<>(wanted.length);
+		int next = 0;
+		for (int i = 0; i < bases.length && next < wanted.length && wanted[next] <= last; i++) {
+			long end = i + 1 < bases.length ? bases[i + 1] - 1 : last;	// Last message in the segment
+			if (wanted[next] > end) {
+				continue;
+			}
+			File file = segment(bases[i]);
+			long size = i + 1 < bases.length ? file.length() : currentSize;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				Reader reader = new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+				long at = bases[i];	// Sequence number of the record at the reader's position
+				for (; next < wanted.length && wanted[next] <= end; next++) {
+					long seq = wanted[next];
+					if (seq < at) {
+						continue;	// Asked for twice, or before the segment
+					}
+					Map.Entry<Long, Long> entry = index.floorEntry(seq);
+					if (entry != null && entry.getKey() > at) {
+						reader.seek(entry.getValue());
+						at = entry.getKey();
+					}
+					while (at < seq && reader.skip()) {
+						at++;
+					}
+					Message message = at == seq ? reader.next() : null;
+					if (message == null) {
+						break;	// Damaged, nothing past it in the segment can be found
+					}
+					ret.add(message);
+					at++;
+				}
+			}
+			while (next < wanted.length && wanted[next] <= end) {
+				next++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return offset of a message within its segment, or size if it is past the end
+	 */
+	private long offset(FileChannel channel, long base, long seq, long size) throws IOException {
+		long at = base;
+		long position = 0;
+		Map.Entry<Long, Long> entry = index.floorEntry(seq);
+		if (entry != null && entry.getKey() >= base) {
+			at = entry.getKey();
+			position = entry.getValue();
+		}
+		if (at == seq || position >= size) {
+			return position;
+		}
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, size - position);
+		while (at < seq && map.hasRemaining()) {
+			int length = readVarint(map);
+			if (length < 1 || length > map.remaining()) {
+				break;
+			}
+			map.position(map.position() + length);
+			at++;
+			if (at % INDEX_INTERVAL == 0) {
+				index.putIfAbsent(at, position + map.position());
+			}
+		}
+		return position + map.position();
+	}
+
+	private void flush() {
+		while (true) {
+			long target;
+			FileChannel channel;
+			synchronized (this) {
+				while (durableSeq >= lastSeq) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				target = lastSeq;
+				channel = current;
+			}
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				continue;	// Rolled over to a new segment, which still has to be forced
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+					Log.error("MessageLog: could not force {} to disk, nothing more becomes durable", segment(currentBase), e);
+				}
+				fail(e);
+				return;
+			}
+			synchronized (this) {
+				durableSeq = Math.max(durableSeq, target);
+				notifyAll();
+			}
+			release(target);
+		}
+	}
+
+	/**
+	 * Runs the actions waiting on messages up to a sequence number
+	 */
+	private void release(long upTo) {
+		Iterator<Waiter> i = waiters.iterator();
+		while (i.hasNext()) {
+			Waiter waiter = i.next();
+			if (waiter.seq <= upTo) {
+				i.remove();
+				if (waiter.claim()) {
+					waiter.callback.durable();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tells every waiting callback the log has failed. Once failure is set no more
+	 * are added.
+	 */
+	private void fail(IOException e) {
+		Waiter waiter;
+		while ((waiter = waiters.poll()) != null) {
+			if (waiter.claim()) {
+				waiter.callback.failed(e);
+			}
+		}
+	}
+
+	/**
+	 * Scans the current segment for its last complete, intact record and cuts the
+	 * file off right after it
+	 * @return sequence number of the last record, or the one before the segment's base
+	 */
+	private long recover() throws IOException {
+		long seq = currentBase - 1;
+		long end = 0;
+		if (current.size() > 0) {
+			Reader reader = new Reader(current.map(FileChannel.MapMode.READ_ONLY, 0, current.size()));
+			Message message;
+			while ((message = reader.next()) != null && message.getSeq() == seq + 1) {
+				seq++;
+				end = reader.position();
+			}
+		}
+		if (end < current.size()) {
+			Log.warn("MessageLog: dropping {} bytes of incomplete records", current.size() - end);
+			current.truncate(end);
+		}
+		current.position(end);
+		return seq;
+	}
+
+	/**
+	 * @return the varint at the buffer's position, or -1 if it is cut off or too long
+	 */
+	private static int readVarint(ByteBuffer buf) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (!buf.hasRemaining() || shift > 28) {
+				return -1;
+			}
+			b = buf.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private void openSegment(long base) throws IOException {
+		bases = Arrays.copyOf(bases, bases.length + 1);
+		bases[bases.length - 1] = base;
+		currentBase = base;
+		current = FileChannel.open(segment(base).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		current.position(current.size());
+	}
+
+	private File segment(long base) {
+		return new File(dir, String.format("%020d%s", base, SUFFIX));
+	}
+
+	/**
+	 * @return base sequence numbers of every segment, in order
+	 */
+	private long[] segments() {
+		String[] names = dir.list();
+		if (names == null) {
+			return new long[0];
+		}
+		long[] bases = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.endsWith(SUFFIX)) {
+				try {
+					bases[count++] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					count--;	// Not one of ours
+				}
+			}
+		}
+		bases = Arrays.copyOf(bases, count);
+		Arrays.sort(bases);
+		return bases;
+	}
+
+	public synchronized void close() throws IOException {
+		current.force(false);
+		current.close();
+	}
+
+	/**
+	 * A run of whole records in one segment. The bytes are already BINARY
+	 * notification frames, so they can go to a BINARY viewer untouched.
+	 */
+	public static class Region {
+		private File file;
+		private long position;
+		private long count;
+
+		private Region(File file, long position, long count) {
+			this.file = file;
+			this.position = position;
+			this.count = count;
+		}
+
+		/**
+		 * Copies the records to a channel without bringing them onto the heap. For a
+		 * socket this is FileChannel.transferTo(), which the OS can do with sendfile.
+		 * @param target channel to write to
+		 * @throws IOException if no IO
+		 */
+		public void transferTo(WritableByteChannel target) throws IOException {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long sent = 0;
+				while (sent < count) {
+					sent += channel.transferTo(position + sent, count - sent, target);
+				}
+			}
+		}
+
+		/**
+		 * Maps the records into memory. The buffer lives outside the heap and stays
+		 * valid after the file is closed, so it can be queued like any other packet.
+		 * @return read-only buffer holding the records
+		 * @throws IOException if no IO
+		 */
+		public ByteBuffer map() throws IOException {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, position, count);
+			}
+		}
+
+		/**
+		 * @return a Reader decoding the records one at a time
+		 * @throws IOException if no IO
+		 */
+		public Reader reader() throws IOException {
+			return new Reader(map());
+		}
+	}
+
+	/**
+	 * Decodes records off a buffer one Message at a time, so a long run of them is
+	 * never on the heap all at once
+	 */
+	public static class Reader {
+		private ByteBuffer buf;
+		private Packet packet;
+		private byte[] frame;
+
+		public Reader(ByteBuffer buf) {
+			this.buf = buf;
+			packet = new Packet();
+			frame = new byte[256];
+		}
+
+		/**
+		 * @return the next message, or null at the end or at a damaged record
+		 */
+		public Message next() {
+			int length = readVarint(buf);
+			if (length < 1 || length > buf.remaining()) {
+				return null;
+			}
+			if (length > frame.length) {
+				frame = new byte[Math.max(length, frame.length * 2)];
+			}
+			buf.get(frame, 0, length);
+			try {
+				return Message.decode(packet.parseFrame(frame, 0, length));
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Steps over the next record without decoding it
+		 * @return false at the end or at a damaged length
+		 */
+		public boolean skip() {
+			int length = readVarint(buf);
+			if (length < 1 || length > buf.remaining()) {
+				return false;
+			}
+			buf.position(buf.position() + length);
+			return true;
+		}
+
+		/**
+		 * @param position offset of a record to go on from
+		 */
+		public void seek(long position) {
+			buf.position((int)position);
+		}
+
+		/**
+		 * @return offset just past the last record read
+		 */
+		public int position() {
+			return buf.position();
+		}
+	}
+
+	private static class Waiter {
+		private long seq;
+		private Callback callback;
+		private AtomicBoolean told;	// Release and failure may both come across it
+
+		public Waiter(long seq, Callback callback) {
+			this.seq = seq;
+			this.callback = callback;
+			told = new AtomicBoolean();
+		}
+
+		boolean claim() {
+			return told.compareAndSet(false, true);
+		}
+	}
+}
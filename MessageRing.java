@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * MessageRing holds the most recent messages in a fixed number of slots. The
+ * message numbered seq lives in slot seq % capacity until a newer message
+ * takes the slot over, so nothing is ever trimmed or counted.
+ *
+ * A message is stored in its slot before the published sequence number moves
+ * past it, so a reader that sees the number also sees the message. Readers take
+ * no locks: they read the published number, then check each slot still holds
+ * the message they expect, skipping any that a poster has lapped in the meantime.
+ * Only one thread may publish at a time.
+ * @author Andy
+ *
+ */
+public class MessageRing {
+
+	private AtomicReferenceArray<Message> slots;
+	private AtomicLong published;	// Sequence number of the last message published
+
+	/**
+	 * @param capacity number of messages kept
+	 * @param last sequence number of the last message posted before this ring
+	 */
+	public MessageRing(int capacity, long last) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		slots = new AtomicReferenceArray<>(capacity);
+		published = new AtomicLong(last);
+	}
+
+	/**
+	 * Adds the next message, overwriting the oldest one once the ring is full
+	 * @param message message numbered one past last()
+	 */
+	public void publish(Message message) {
+		if (message.getSeq() != published.get() + 1) {
+			throw new IllegalArgumentException("Message " + message.getSeq() + " is out of order");
+		}
+		slots.set(slot(message.getSeq()), message);
+		published.set(message.getSeq());
+	}
+
+	/**
+	 * @return sequence number of the last message published, 0 if none ever was
+	 */
+	public long last() {
+		return published.get();
+	}
+
+	/**
+	 * @return sequence number of the oldest message still held
+	 */
+	public long first() {
+		return Math.max(1, published.get() - slots.length() + 1);
+	}
+
+	public int capacity() {
+		return slots.length();
+	}
+
+	/**
+	 * Copies out a run of messages without blocking posters. Messages that are no
+	 * longer held, or get overwritten while copying, are left out.
+	 * @param since sequence number the run starts after
+	 * @param upTo sequence number of the last message wanted
+	 * @return the messages, oldest first
+	 */
+	public List<Message> snapshot(long since, long upTo) {
+		long last = Math.min(upTo, published.get());
+		long from = Math.max(since + 1, last - slots.length() + 1);
+		List<Message> ret = new ArrayList<>((int)Math.max(0, last - from + 1));
+		for (long seq = Math.max(from, 1); seq <= last; seq++) {
+			Message message = slots.get(slot(seq));
+			if (message != null && message.getSeq() == seq) {
+				ret.add(message);
+			}
+		}
+		return ret;
+	}
+
+	private int slot(long seq) {
+		return (int)(seq % slots.length());
+	}
+}
@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Metrics is a registry of named counters, latency histograms and gauges. Counters
+ * and histograms are cheap enough to update on every post; gauges are only read
+ * when someone looks.
+ *
+ * Everything registered can be read over JMX, as attributes of one MBean, and as
+ * plain text in the Prometheus exposition format from a small HTTP endpoint.
+ * @author Andy
+ *
+ */
+public class Metrics {
+
+	/**
+	 * A value read when the metrics are, such as the size of a collection
+	 */
+	public interface Gauge {
+		long value();
+	}
+
+	/**
+	 * A count that only goes up. Updates from many threads do not contend.
+	 */
+	public static class Counter {
+		private LongAdder count = new LongAdder();
+
+		public void increment() {
+			count.increment();
+		}
+
+		public void add(long n) {
+			count.add(n);
+		}
+
+		public long get() {
+			return count.sum();
+		}
+	}
+
+	private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+	private String prefix;
+	private Map<String, Entry> metrics;
+
+	/**
+	 * @param prefix put in front of every metric name, e.g. "bbs_"
+	 */
+	public Metrics(String prefix) {
+		this.prefix = prefix;
+		metrics = new ConcurrentSkipListMap<>();
+	}
+
+	public Counter counter(String name, String help) {
+		return register(name, help, new Counter());
+	}
+
+	/**
+	 * @return a histogram of durations, recorded in nanoseconds and exposed in seconds
+	 */
+	public LatencyHistogram histogram(String name, String help) {
+		return register(name, help, new LatencyHistogram());
+	}
+
+	public void gauge(String name, String help, Gauge gauge) {
+		register(name, help, gauge);
+	}
+
+	private <T> T register(String name, String help, T metric) {
+		metrics.put(prefix + name, new Entry(help, metric));
+		return metric;
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text format. Histograms are written as
+	 * summaries: p50, p99, p999, count and sum, in seconds.
+	 * @param out where to write
+	 */
+	public void write(StringBuilder out) {
+		for (Map.Entry<String, Entry> metric : metrics.entrySet()) {
+			String name = metric.getKey();
+			Object value = metric.getValue().metric;
+			out.append("# HELP ").append(name).append(' ').append(metric.getValue().help).append('\n');
+			if (value instanceof Counter) {
+				out.append("# TYPE ").append(name).append(" counter\n");
+				out.append(name).append(' ').append(((Counter)value).get()).append('\n');
+			} else if (value instanceof Gauge) {
+				out.append("# TYPE ").append(name).append(" gauge\n");
+				out.append(name).append(' ').append(((Gauge)value).value()).append('\n');
+			} else {
+				LatencyHistogram histogram = (LatencyHistogram)value;
+				out.append("# TYPE ").append(name).append(" summary\n");
+				for (double quantile : QUANTILES) {
+					out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+							.append(histogram.percentile(quantile * 100) / 1e9).append('\n');
+				}
+				out.append(name).append("_count ").append(histogram.count()).append('\n');
+				out.append(name).append("_sum ").append(histogram.sum() / 1e9).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server
+	 * @param objectName name to register under, e.g. "bbs:type=Metrics"
+	 * @throws JMException if it cannot be registered
+	 */
+	public void registerMBean(String objectName) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(objectName));
+	}
+
+	/**
+	 * Serves the metrics as text on /metrics, on a thread of its own
+	 * @param port port to listen on
+	 * @return the running server
+	 * @throws IOException if the port cannot be bound
+	 */
+	public HttpServer serve(int port) throws IOException {
+		HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+		http.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				StringBuilder text = new StringBuilder(4096);
+				write(text);
+				byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		http.start();
+		return http;
+	}
+
+	private static class Entry {
+		private String help;
+		private Object metric;
+
+		public Entry(String help, Object metric) {
+			this.help = help;
+			this.metric = metric;
+		}
+	}
+
+	/**
+	 * Exposes counters and gauges as long attributes named after the metric, and
+	 * each histogram as name_count plus name_p50, name_p99, name_p999 and name_max
+	 * in milliseconds. The attributes are worked out on every call, so metrics
+	 * registered later show up too.
+	 */
+	private class MBean implements DynamicMBean {
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Entry entry = metrics.get(attribute);
+			if (entry != null && entry.metric instanceof Counter) {
+				return ((Counter)entry.metric).get();
+			} else if (entry != null && entry.metric instanceof Gauge) {
+				return ((Gauge)entry.metric).value();
+			}
+			int split = attribute.lastIndexOf('_');
+			entry = split > 0 ? metrics.get(attribute.substring(0, split)) : null;
+			if (entry != null && entry.metric instanceof LatencyHistogram) {
+				LatencyHistogram histogram = (LatencyHistogram)entry.metric;
+				switch (attribute.substring(split + 1)) {
+				case "count" : return histogram.count();
+				case "p50" : return histogram.percentile(50) / 1e6;
+				case "p99" : return histogram.percentile(99) / 1e6;
+				case "p999" : return histogram.percentile(99.9) / 1e6;
+				case "max" : return histogram.max() / 1e6;
+				default : break;
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList ret = new AttributeList();
+			for (String attribute : attributes) {
+				try {
+					ret.add(new Attribute(attribute, getAttribute(attribute)));
+				} catch (AttributeNotFoundException e) {
+					// Left out, as the interface allows
+				}
+			}
+			return ret;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<>();
+			for (Map.Entry<String, Entry> metric : metrics.entrySet()) {
+				String name = metric.getKey();
+				String help = metric.getValue().help;
+				if (metric.getValue().metric instanceof LatencyHistogram) {
+					attributes.add(new MBeanAttributeInfo(name + "_count", "long", help, true, false, false));
+					for (String stat : new String[] {"p50", "p99", "p999", "max"}) {
+						attributes.add(new MBeanAttributeInfo(name + "_" + stat, "double", help + " (ms)", true, false, false));
+					}
+				} else {
+					attributes.add(new MBeanAttributeInfo(name, "long", help, true, false, false));
+				}
+			}
+			return new MBeanInfo(Metrics.class.getName(), "BoardServer metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+		}
+	}
+}
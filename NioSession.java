@@ -0,0 +1,561 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * NioSession is the non-blocking counterpart of the PreHandler, ViewerHandler and
+ * ClientHandler threads. It reads lines off a SocketChannel as they arrive and
+ * steps through the same handshake, login and posting states that the handler
+ * threads walk through with readLine(). All socket IO happens on the owning
+ * IoLoop; other threads only queue outgoing packets.
+ * @author Andy
+ *
+ */
+public class NioSession implements BoardServer.Viewer, BoardServer.Session {
+
+	private static final int READ_BUFFER = 4096;
+	private static final int REPLAY_AHEAD = 256;	// Most replayed packets queued ahead of the socket
+
+	private enum State { HANDSHAKE, LOGIN, VERIFYING, POSTING, VIEWING, CLOSED }
+
+	private BoardServer board;
+	private IoLoop loop;
+	private SelectionKey key;
+	private SocketChannel sock;
+	private ByteBuffer readBuf;
+	private byte[] line;	// Bytes of the line or frame being read so far
+	private int lineLength;
+	private int frameLength = -1;	// Length of the BINARY frame being read, -1 while reading its prefix
+	private int prefix;	// Length prefix read so far
+	private int prefixShift;
+	private volatile Framing framing = Framing.TEXT;
+	private Packet packet;
+	private OutboundQueue<ByteBuffer> outbound;
+	private ByteBuffer[] pending;	// Packets taken off the queue and not yet fully written
+	private int written;	// Index of the first packet in pending not yet fully written
+	private int taken;	// Number of packets in pending
+	private AtomicBoolean writeScheduled;
+	private volatile ByteBuffer endPacket;	// Last packet to be written before closing
+	private AtomicBoolean closing;	// Set once, by whichever thread closes first
+	private State state = State.HANDSHAKE;
+	private BoardServer.Channel channel;	// Channel viewed or posted to
+	private BoardServer.User user;
+	private InetAddress address;	// Where the connection comes from, whose rate limit it shares
+	private Compressor compressor;	// Deflates the replay of a viewer that asked for compression
+
+	public NioSession(BoardServer board, IoLoop loop, SelectionKey key) {
+		this.board = board;
+		this.loop = loop;
+		this.key = key;
+		sock = (SocketChannel)key.channel();
+		address = sock.socket().getInetAddress();
+		readBuf = ByteBuffer.allocate(READ_BUFFER);
+		line = new byte[256];
+		packet = new Packet();
+		outbound = new OutboundQueue<>(BoardServer.VIEWER_QUEUE, BoardServer.VIEWER_OVERFLOW,
+				new OutboundQueue.Gap<ByteBuffer>() {
+					public ByteBuffer skipped(int count) {
+						return framing.encode(Protocol.NOTIFY, "(" + count + " notifications skipped)");
+					}
+				});
+		pending = new ByteBuffer[BoardServer.BATCH_SIZE];
+		writeScheduled = new AtomicBoolean(false);
+		closing = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Called by the IoLoop when the channel is readable. Splits the input into
+	 * lines the same way BufferedReader.readLine() does, or into frames once
+	 * BINARY framing has been agreed on, and handles each one. Packets are
+	 * parsed straight from their bytes, without decoding them first.
+	 * @throws IOException if no IO
+	 */
+	public void handleRead() throws IOException {
+		int read = sock.read(readBuf);
+		if (read < 0) {
+			abort();
+			return;
+		}
+		readBuf.flip();
+		handleInput();
+	}
+
+	/**
+	 * Handles what has been read so far. Anything after a login is left in the
+	 * buffer until the login has been checked.
+	 * @throws IOException if no IO
+	 */
+	private void handleInput() throws IOException {
+		while (readBuf.hasRemaining() && !closing.get() && state != State.VERIFYING) {
+			if (framing == Framing.BINARY) {
+				readFrame();
+				continue;
+			}
+			byte b = readBuf.get();
+			if (b == '\n') {
+				int length = lineLength;
+				if (length > 0 && line[length - 1] == '\r') {
+					length--;
+				}
+				lineLength = 0;
+				handleLine(packet.parse(line, 0, length));
+			} else {
+				if (lineLength == Framing.MAX_FRAME) {
+					throw new IOException("Line too long");	// TEXT lines are held to the BINARY limit
+				}
+				if (lineLength == line.length) {
+					grow(lineLength * 2);
+				}
+				line[lineLength++] = b;
+			}
+		}
+		readBuf.compact();
+	}
+
+	private void readFrame() throws IOException {
+		if (frameLength < 0) {
+			byte b = readBuf.get();
+			prefix |= (b & 0x7F) << prefixShift;
+			prefixShift += 7;
+			if ((b & 0x80) != 0) {
+				if (prefixShift >= 35) {
+					throw new IOException("Bad frame length");
+				}
+				return;
+			}
+			if (prefix < 1 || prefix > Framing.MAX_FRAME) {
+				throw new IOException("Bad frame length " + prefix);
+			}
+			frameLength = prefix;
+			prefix = 0;
+			prefixShift = 0;
+			lineLength = 0;
+			if (frameLength > line.length) {
+				grow(frameLength);
+			}
+			return;
+		}
+		int n = Math.min(readBuf.remaining(), frameLength - lineLength);
+		readBuf.get(line, lineLength, n);
+		lineLength += n;
+		if (lineLength == frameLength) {
+			int length = frameLength;
+			frameLength = -1;
+			lineLength = 0;
+			Packet input;
+			try {
+				input = packet.parseFrame(line, 0, length);
+			} catch (IllegalArgumentException e) {
+				throw new IOException(e.getMessage());
+			}
+			handleLine(input);
+		}
+	}
+
+	private void grow(int size) {
+		byte[] temp = new byte[Math.max(size, line.length * 2)];
+		System.arraycopy(line, 0, temp, 0, lineLength);
+		line = temp;
+	}
+
+	/**
+	 * Called by the IoLoop when the channel is writable. Drains as much of the
+	 * outbound queue as the socket will take, handing everything that has piled
+	 * up since the last write to the kernel in one gathering write. The time the
+	 * loop takes to get round to this session is the batching window.
+	 * @throws IOException if no IO
+	 */
+	public void handleWrite() throws IOException {
+		while (true) {
+			if (written == taken) {
+				written = 0;
+				taken = outbound.drainTo(pending, 0);
+				if (taken == 0) {
+					break;
+				}
+				board.wrote();
+			}
+			sock.write(pending, written, taken - written);
+			while (written < taken && !pending[written].hasRemaining()) {
+				if (pending[written] == endPacket) {
+					abort();
+					return;
+				}
+				pending[written++] = null;
+			}
+			if (written < taken) {
+				return;	// Socket buffer is full, wait for the next OP_WRITE
+			}
+		}
+		writeScheduled.set(false);
+		if (key.isValid()) {
+			key.interestOps(readOps());
+			if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+				key.interestOps(readOps() | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	/**
+	 * @return OP_READ, unless reading is held up while a login is checked
+	 */
+	private int readOps() {
+		return state == State.VERIFYING ? 0 : SelectionKey.OP_READ;
+	}
+
+	private void handleLine(Packet input) throws IOException {
+		switch (state) {
+		case HANDSHAKE : handleHandshake(input); break;
+		case LOGIN : handleLogin(input); break;
+		case POSTING : handlePost(input); break;
+		case VIEWING : break;	// Viewers have nothing to say yet
+		default : break;
+		}
+	}
+
+	private void handleHandshake(Packet input) throws IOException {
+		Framing requested = BoardServer.requestedFraming(input);
+		try {
+			channel = board.channel(BoardServer.requestedChannel(input));
+		} catch (IOException e) {
+			send(framing.encode(Protocol.STATUS_ERR, e.getMessage()));
+			close();
+			return;
+		}
+		if (input.headerIs(Protocol.CLIENT_READONLY)) {
+			compressor = board.requestedCompressor(input, requested);
+			send(board.viewerAcknowledgement(requested, compressor, "ViewerHandler created"));
+			framing = requested;
+			state = State.VIEWING;
+			replay(new BoardServer.ReplayRequest(input));
+		} else if (input.headerIs(Protocol.CLIENT_READWRITE)) {
+			send(BoardServer.acknowledgement(requested, "ClientHandler Started"));
+			framing = requested;
+			Log.info("NioSession for {} started", sock.socket().getInetAddress());
+			state = State.LOGIN;
+		} else {
+			send(framing.encode(Protocol.STATUS_ERR, "Unknown client identifier"));
+			close();
+		}
+	}
+
+	/**
+	 * Replays the backlog on a thread of its own, since it may read the log, a
+	 * slice at a time as the socket takes it. Notifications posted meanwhile are
+	 * held back until it is done.
+	 */
+	private void replay(final BoardServer.ReplayRequest request) {
+		outbound.hold(true);
+		final long upTo = channel.addViewer(this);
+		board.offLoop(new Runnable() {
+			public void run() {
+				try {
+					channel.replay(NioSession.this, request, upTo);
+					outbound.hold(false);
+					scheduleWrite();
+				} catch (IOException e) {
+					Log.debug("Replay to {} stopped: {}", NioSession.this, e);
+					loop.execute(new Runnable() {
+						public void run() {
+							abort();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hands the login to the board's Verifier and stops reading until it has been
+	 * checked, so the loop never waits on a password hash
+	 */
+	private void handleLogin(Packet loginPacket) {
+		Log.debug("Received login packet: {}", loginPacket.chunk(0));
+		state = State.VERIFYING;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		board.authenticateLater(loginPacket).whenComplete(new BiConsumer<BoardServer.User, Throwable>() {
+			public void accept(final BoardServer.User verified, final Throwable failure) {
+				loop.execute(new Runnable() {
+					public void run() {
+						verified(verified, failure);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Finishes a login once the Verifier is done with it, on the loop thread
+	 */
+	private void verified(BoardServer.User verified, Throwable failure) {
+		if (state != State.VERIFYING) {
+			return;	// Aborted while waiting
+		}
+		if (failure != null) {
+			state = State.LOGIN;
+			send(framing.encode(Protocol.STATUS_ERR, BoardServer.loginFailure(failure).getMessage()));
+			Log.info("Login failed");
+			close();
+			return;
+		}
+		user = verified;
+		send(board.loginAcknowledgement(framing, user));
+		board.login(user, this, channel);
+		state = State.POSTING;
+		Log.info("Login successful");
+		try {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			readBuf.flip();
+			handleInput();
+		} catch (IOException e) {
+			abort();
+		} catch (RuntimeException e) {
+			Log.error("{} failed after login", this, e);
+			abort();
+		}
+	}
+
+	private void handlePost(Packet input) throws IOException {
+		if (input.headerIs(Protocol.ACT_POST)) {
+			if (input.chunkStartsWith(1, "/")) {
+				// Manage commands
+				if (input.chunkStartsWith(1, "/quit")) {
+					logout();
+					close();
+				} else if (BoardServer.joinCommand(input) != null) {
+					join(BoardServer.joinCommand(input), BoardServer.postId(input));
+				} else {
+					send(BoardServer.unknownCommand(framing, input));
+				}
+			} else if (!BoardServer.fits(user, input.chunk(1))) {
+				send(BoardServer.lengthRefusal(framing, BoardServer.postId(input)));
+			} else if (!board.allowPost(user, address, 1)) {
+				send(BoardServer.postRefusal(framing, BoardServer.postId(input)));
+			} else {
+				acknowledgeWhenDurable(channel.postMessage(input.chunk(1), user), input);
+			}
+		} else if (input.headerIs(Protocol.ACT_SEARCH)) {
+			search(input);
+		} else if (input.headerIs(Protocol.ACT_POST_BATCH)) {
+			List<String> posts = BoardServer.batchPosts(input);
+			if (posts == null) {
+				send(framing.encode(Protocol.STATUS_ERR, "Malformed batch"));
+				logout();
+				close();
+				return;
+			}
+			if (posts.size() > BoardServer.MAX_BATCH) {
+				send(BoardServer.batchRefusal(framing, BoardServer.postId(input)));
+				return;
+			}
+			if (!BoardServer.fits(user, posts)) {
+				send(BoardServer.lengthRefusal(framing, BoardServer.postId(input)));
+				return;
+			}
+			if (!board.allowPost(user, address, posts.size())) {
+				send(BoardServer.postRefusal(framing, BoardServer.postId(input)));
+				return;
+			}
+			acknowledgeWhenDurable(channel.postMessages(posts, user), input);
+		} else {
+			logout();
+			close();
+		}
+	}
+
+	/**
+	 * Acknowledges a post once it is on disk, without holding up the loop, or
+	 * tells the client it never will be
+	 * @param seq what postMessage() returned
+	 * @param post the post's packet
+	 */
+	private void acknowledgeWhenDurable(long seq, Packet post) {
+		final String id = BoardServer.postId(post);
+		channel.whenDurable(seq, new MessageLog.Callback() {
+			public void durable() {
+				send(BoardServer.postAcknowledgement(framing, id));
+			}
+
+			public void failed(IOException e) {
+				send(BoardServer.postFailure(framing, id));
+			}
+		});
+	}
+
+	/**
+	 * Runs a search on a thread of its own, since it may read the log. The answer
+	 * may come after acknowledgements of later posts, as those may come out of order.
+	 */
+	private void search(Packet input) {
+		final BoardServer.Channel in = channel;
+		final BoardServer.User by = user;
+		final Packet request = input.copy();	// The loop parses the next packet into input
+		board.offLoop(new Runnable() {
+			public void run() {
+				send(board.search(in, framing, request, by, address));
+			}
+		});
+	}
+
+	/**
+	 * Moves the session to another channel. Acknowledgements of posts to the old
+	 * one still arrive once they are on disk, and may come after the answer.
+	 */
+	private void join(String name, String id) {
+		BoardServer.Channel to;
+		try {
+			to = board.channel(name);
+		} catch (IOException e) {
+			send(BoardServer.commandReply(framing, false, e.getMessage(), id));
+			return;
+		}
+		board.join(user, channel, to);
+		channel = to;
+		send(BoardServer.commandReply(framing, true, "Joined " + to.getName(), id));
+	}
+
+	/**
+	 * Replayed packets go on the control side of the queue, which is sent before
+	 * any notification
+	 */
+	public void replay(ByteBuffer packet) throws IOException {
+		send(compressor != null ? compressor.compress(packet) : packet);
+		awaitRoom();
+	}
+
+	/**
+	 * The region is mapped rather than read, so the socket is written straight
+	 * from the page cache and the backlog never lands on the heap
+	 */
+	public void replay(MessageLog.Region region) throws IOException {
+		ByteBuffer records = region.map();
+		if (compressor == null) {
+			send(records);
+			awaitRoom();
+			return;
+		}
+		while (records.hasRemaining()) {
+			send(compressor.next(records));	// Only the deflated slices land on the heap
+			awaitRoom();
+		}
+	}
+
+	/**
+	 * Waits for the replay to be written far enough to queue more of it
+	 * @throws IOException if the session closed first, or if interrupted
+	 */
+	private void awaitRoom() throws IOException {
+		try {
+			if (!outbound.awaitRoom(REPLAY_AHEAD)) {
+				throw new IOException("Closed during replay");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted during replay");
+		}
+	}
+
+	/**
+	 * Queues a packet for sending. Safe to call from any thread.
+	 * @param packet packet to send
+	 */
+	public void send(ByteBuffer packet) {
+		outbound.add(packet);
+		scheduleWrite();
+	}
+
+	private void scheduleWrite() {
+		if (writeScheduled.compareAndSet(false, true)) {
+			loop.execute(new Runnable() {
+				public void run() {
+					if (key.isValid()) {
+						key.interestOps(readOps() | SelectionKey.OP_WRITE);
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public void notifyMessage(ByteBuffer packet) {
+		if (closing.get()) {
+			return;
+		}
+		if (outbound.offer(packet)) {
+			scheduleWrite();
+		} else {
+			board.slowViewer(this);
+			close();
+		}
+	}
+
+	@Override
+	public Framing getFraming() {
+		return framing;
+	}
+
+	@Override
+	public boolean isCompressed() {
+		return compressor != null;
+	}
+
+	@Override
+	public OutboundQueue<?> getQueue() {
+		return outbound;
+	}
+
+	@Override
+	public String toString() {
+		return "NioSession " + sock.socket().getRemoteSocketAddress();
+	}
+
+	@Override
+	public void logout() {
+		if (user != null) {
+			board.logout(user, this, channel);
+			user = null;
+		}
+	}
+
+	/**
+	 * Sends the end of stream packet and closes the connection once everything
+	 * queued so far has been written. Safe to call from any thread.
+	 */
+	@Override
+	public void close() {
+		if (!closing.compareAndSet(false, true)) {
+			return;
+		}
+		endPacket = framing.encode(Protocol.STATUS_END, "Server closed connection");
+		outbound.add(endPacket);
+		scheduleWrite();
+	}
+
+	/**
+	 * Closes the connection immediately, without flushing the outbound queue
+	 */
+	public void abort() {
+		if (state == State.CLOSED) {
+			return;
+		}
+		if (state == State.VIEWING) {
+			channel.removeViewer(this);
+		}
+		state = State.CLOSED;
+		closing.set(true);
+		outbound.close();	// Lets a replay waiting on room give up
+		logout();
+		key.cancel();
+		try {
+			sock.close();
+		} catch (IOException e) {
+			Log.warn("Could not close {}: {}", this, e);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+import java.util.ArrayDeque;
+
+/**
+ * OutboundQueue holds the packets waiting to be written to one connection. Posting
+ * threads only ever offer() into it, which never blocks; a writer belonging to the
+ * connection drains it at whatever pace the socket allows. Notifications are
+ * bounded by a capacity and an Overflow policy decides what happens to a viewer
+ * that cannot keep up. Control packets (acknowledgements, end of stream) are
+ * never dropped and go out ahead of any pending notifications.
+ *
+ * A viewer being replayed to holds its notifications back until the replay is
+ * done, and the replaying thread waits for room among the control packets, so
+ * a long replay is never queued all at once.
+ * @author Andy
+ *
+ * @param <E> packet type
+ */
+public class OutboundQueue<E> {
+
+	/**
+	 * What to do when a notification is offered to a full queue
+	 */
+	public enum Overflow {
+		/** Throw away the oldest pending notification */
+		DROP_OLDEST,
+		/** Refuse the notification; the owner should disconnect the viewer */
+		DISCONNECT,
+		/** Replace everything pending with a single gap notice */
+		COALESCE
+	}
+
+	/**
+	 * Builds the notice that stands in for coalesced notifications
+	 * @param <E> packet type
+	 */
+	public interface Gap<E> {
+		E skipped(int count);
+	}
+
+	private ArrayDeque<E> control;
+	private ArrayDeque<E> data;
+	private int capacity;
+	private Overflow policy;
+	private Gap<E> gap;
+	private boolean closed = false;
+	private boolean holding = false;	// Whether notifications are held back
+	private int roomWaiters = 0;	// Threads in awaitRoom()
+
+	// Metrics
+	private int highWater = 0;
+	private long offered = 0;
+	private long dropped = 0;
+
+	/**
+	 * Creates a new OutboundQueue
+	 * @param capacity maximum number of pending notifications
+	 * @param policy what to do when the queue is full
+	 * @param gap builds gap notices for the COALESCE policy (may be null otherwise)
+	 */
+	public OutboundQueue(int capacity, Overflow policy, Gap<E> gap) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.gap = gap;
+		control = new ArrayDeque<>();
+		data = new ArrayDeque<>();
+	}
+
+	/**
+	 * Queues a notification, applying the overflow policy if the queue is full
+	 * @param packet notification to queue
+	 * @return false if the viewer should be disconnected, true otherwise
+	 */
+	public synchronized boolean offer(E packet) {
+		if (closed) {
+			return true;
+		}
+		offered++;
+		if (data.size() >= capacity) {
+			switch (policy) {
+			case DISCONNECT :
+				dropped++;
+				return false;
+			case COALESCE :
+				int skipped = data.size();
+				dropped += skipped;
+				data.clear();
+				data.add(gap.skipped(skipped));
+				break;
+			default :
+				data.removeFirst();
+				dropped++;
+			}
+		}
+		data.add(packet);
+		highWater = Math.max(highWater, data.size());
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Queues a control packet. These are not subject to the capacity.
+	 * @param packet packet to queue
+	 */
+	public synchronized void add(E packet) {
+		if (!closed) {
+			control.add(packet);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return the next packet to write, or null if there is none
+	 */
+	public synchronized E poll() {
+		E next = control.poll();
+		if (next != null) {
+			if (roomWaiters > 0) {
+				notifyAll();
+			}
+			return next;
+		}
+		return holding ? null : data.poll();
+	}
+
+	/**
+	 * Holds notifications back, or lets them go again. Control packets still go.
+	 * @param holding whether to hold them back
+	 */
+	public synchronized void hold(boolean holding) {
+		this.holding = holding;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until fewer than a number of control packets are waiting, so a thread
+	 * queueing a great many of them goes no faster than they are written
+	 * @param limit most control packets to leave waiting
+	 * @return false if the queue was closed first
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized boolean awaitRoom(int limit) throws InterruptedException {
+		roomWaiters++;
+		try {
+			while (control.size() >= limit && !closed) {
+				wait();
+			}
+		} finally {
+			roomWaiters--;
+		}
+		return !closed;
+	}
+
+	/**
+	 * Waits for the next packet to write
+	 * @return the next packet, or null once the queue is closed and drained
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized E take() throws InterruptedException {
+		while (isEmpty() && !closed) {
+			wait();
+		}
+		return poll();
+	}
+
+	/**
+	 * Takes as many packets as are waiting, in the order poll() would return them
+	 * @param batch array to fill
+	 * @param from index in batch to start filling at
+	 * @return index after the last packet in batch
+	 */
+	public synchronized int drainTo(E[] batch, int from) {
+		E next;
+		while (from < batch.length && (next = poll()) != null) {
+			batch[from++] = next;
+		}
+		return from;
+	}
+
+	/**
+	 * Waits for the next packet, then takes whatever else is waiting along with it.
+	 * A lone packet is handed back at once, so a quiet connection gains no latency.
+	 * When more than one was waiting a burst is under way, and the batch is given
+	 * up to linger milliseconds to fill before it is handed back.
+	 * @param batch array to fill; its length is the most packets taken at once
+	 * @param linger longest time to hold back a partial batch, in milliseconds
+	 * @return number of packets put in batch, or 0 once the queue is closed and drained
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized int take(E[] batch, long linger) throws InterruptedException {
+		while (isEmpty() && !closed) {
+			wait();
+		}
+		int count = drainTo(batch, 0);
+		if (count > 1 && linger > 0) {
+			long deadline = System.currentTimeMillis() + linger;
+			long left;
+			while (count < batch.length && !closed && (left = deadline - System.currentTimeMillis()) > 0) {
+				wait(left);
+				count = drainTo(batch, count);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Stops accepting packets. Whatever is already queued can still be drained.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return whether there is nothing to write, not counting held notifications
+	 */
+	public synchronized boolean isEmpty() {
+		return control.isEmpty() && (holding || data.isEmpty());
+	}
+
+	/**
+	 * @return number of notifications waiting to be written
+	 */
+	public synchronized int depth() {
+		return data.size();
+	}
+
+	/**
+	 * @return largest depth this queue has reached
+	 */
+	public synchronized int highWater() {
+		return highWater;
+	}
+
+	/**
+	 * @return number of notifications dropped or coalesced away
+	 */
+	public synchronized long dropped() {
+		return dropped;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return new StringBuffer("depth=").append(data.size()).append(" max=").append(highWater)
+				.append(" offered=").append(offered).append(" dropped=").append(dropped).toString();
+	}
+}
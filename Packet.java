@@ -0,0 +1,276 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Packet is a reusable, in-place view over a single received packet. parse()
+ * only records where each chunk starts and ends, so asking for the header or
+ * comparing a chunk against one of the Protocol constants allocates nothing.
+ * A chunk is only turned into a String when chunk() is called.
+ *
+ * A Packet can be backed either by characters (a line that has already been
+ * read as a String), by the raw bytes of a line straight off a socket, or by a
+ * BINARY frame. Header constants are plain ASCII, so they can be matched
+ * against any of these forms.
+ * @author Andy
+ *
+ */
+public class Packet {
+
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private CharSequence chars;
+	private byte[] bytes;
+	private Charset charset;
+	private String opHeader;	// Header of a BINARY frame, which carries an opcode instead
+	private int[] starts = new int[8];
+	private int[] ends = new int[8];
+	private int count;
+
+	/**
+	 * Points this Packet at a line of text
+	 * @param line received line, without its line terminator
+	 * @return this Packet
+	 */
+	public Packet parse(CharSequence line) {
+		chars = line;
+		bytes = null;
+		opHeader = null;
+		count = 0;
+		int start = 0;
+		int length = line.length();
+		for (int i = 0; i < length; i++) {
+			if (line.charAt(i) == Protocol.SPLIT_CHAR) {
+				mark(start, i);
+				start = i + 1;
+			}
+		}
+		finish(start, length);
+		return this;
+	}
+
+	/**
+	 * Points this Packet at the raw bytes of a line. The array is not copied, so
+	 * it must not change while the Packet is in use.
+	 * @param line buffer holding the line
+	 * @param offset where the line starts
+	 * @param length length of the line, without its line terminator
+	 * @return this Packet
+	 */
+	public Packet parse(byte[] line, int offset, int length) {
+		bytes = line;
+		chars = null;
+		charset = CHARSET;
+		opHeader = null;
+		count = 0;
+		int start = offset;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			if (line[i] == Protocol.SPLIT_CHAR) {
+				mark(start, i);
+				start = i + 1;
+			}
+		}
+		finish(start, end);
+		return this;
+	}
+
+	/**
+	 * Points this Packet at the body of a BINARY frame, the part following its
+	 * length prefix. The array is not copied.
+	 * @param frame buffer holding the frame
+	 * @param offset where the opcode is
+	 * @param length length of the frame body
+	 * @return this Packet
+	 * @throws IllegalArgumentException if the frame is malformed
+	 */
+	public Packet parseFrame(byte[] frame, int offset, int length) {
+		if (length < 1) {
+			throw new IllegalArgumentException("Empty frame");
+		}
+		bytes = frame;
+		chars = null;
+		charset = Framing.CHARSET;
+		count = 0;
+		int end = offset + length;
+		opHeader = Framing.header(frame[offset]);
+		mark(offset, offset);	// Placeholder for the header
+		int i = offset + 1;
+		while (i < end) {
+			int size = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (i >= end || shift > 28) {
+					throw new IllegalArgumentException("Bad chunk length");
+				}
+				b = frame[i++];
+				size |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			if (size < 0 || size > end - i) {
+				throw new IllegalArgumentException("Chunk runs past the end of the frame");
+			}
+			mark(i, i + size);
+			i += size;
+		}
+		return this;
+	}
+
+	private void mark(int start, int end) {
+		if (count == starts.length) {
+			int[] temp = new int[count * 2];
+			System.arraycopy(starts, 0, temp, 0, count);
+			starts = temp;
+			temp = new int[count * 2];
+			System.arraycopy(ends, 0, temp, 0, count);
+			ends = temp;
+		}
+		starts[count] = start;
+		ends[count] = end;
+		count++;
+	}
+
+	private void finish(int start, int end) {
+		boolean split = count > 0;
+		mark(start, end);
+		// Same as String.split(): trailing empty chunks are dropped, unless there was no separator at all
+		while (split && count > 0 && starts[count - 1] == ends[count - 1]) {
+			count--;
+		}
+	}
+
+	/**
+	 * Copies the packet, for use after this Packet has been parsed again
+	 * @return a new Packet over a copy of this one's chunks
+	 */
+	public Packet copy() {
+		Packet ret = new Packet();
+		int from = count > 0 ? starts[0] : 0;
+		int to = count > 0 ? ends[count - 1] : 0;
+		if (chars != null) {
+			ret.chars = chars.subSequence(from, to).toString();
+		} else if (bytes != null) {
+			ret.bytes = Arrays.copyOfRange(bytes, from, to);
+		}
+		ret.charset = charset;
+		ret.opHeader = opHeader;
+		ret.starts = new int[Math.max(count, 1)];
+		ret.ends = new int[Math.max(count, 1)];
+		for (int i = 0; i < count; i++) {
+			ret.starts[i] = starts[i] - from;
+			ret.ends[i] = ends[i] - from;
+		}
+		ret.count = count;
+		return ret;
+	}
+
+	/**
+	 * @return number of chunks, including the header
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Checks the header without building a String
+	 * @param header one of the Protocol header constants
+	 * @return true if this packet carries that header
+	 */
+	public boolean headerIs(String header) {
+		return chunkEquals(0, header);
+	}
+
+	/**
+	 * Compares a chunk against a String without building a String
+	 * @param index chunk index, 0 being the header
+	 * @param value value to compare against
+	 * @return true if the chunk exists and is equal to value
+	 */
+	public boolean chunkEquals(int index, String value) {
+		if (index == 0 && opHeader != null) {
+			return opHeader.equals(value);
+		}
+		return index < count && ends[index] - starts[index] == value.length() && regionMatches(index, value);
+	}
+
+	/**
+	 * Checks the start of a chunk without building a String
+	 * @param index chunk index, 0 being the header
+	 * @param prefix prefix to look for
+	 * @return true if the chunk exists and starts with prefix
+	 */
+	public boolean chunkStartsWith(int index, String prefix) {
+		if (index == 0 && opHeader != null) {
+			return opHeader.startsWith(prefix);
+		}
+		return index < count && ends[index] - starts[index] >= prefix.length() && regionMatches(index, prefix);
+	}
+
+	private boolean regionMatches(int index, String value) {
+		int start = starts[index];
+		int length = value.length();
+		if (chars != null) {
+			for (int i = 0; i < length; i++) {
+				if (chars.charAt(start + i) != value.charAt(i)) {
+					return false;
+				}
+			}
+		} else {
+			for (int i = 0; i < length; i++) {
+				if (bytes[start + i] != value.charAt(i)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds a String out of a chunk
+	 * @param index chunk index, 0 being the header
+	 * @return the chunk
+	 * @throws ArrayIndexOutOfBoundsException if there is no such chunk
+	 */
+	public String chunk(int index) {
+		if (index >= count) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		if (index == 0 && opHeader != null) {
+			return opHeader;
+		}
+		if (chars != null) {
+			return chars.subSequence(starts[index], ends[index]).toString();
+		}
+		return new String(bytes, starts[index], ends[index] - starts[index], charset);
+	}
+
+	/**
+	 * Gives a chunk's bytes as they came, for chunks that hold binary data rather
+	 * than text. The buffer is only good until the Packet is parsed again.
+	 * @param index chunk index, 1 or more
+	 * @return read-only buffer over the chunk
+	 * @throws ArrayIndexOutOfBoundsException if there is no such chunk
+	 * @throws IllegalStateException if the packet was parsed from characters
+	 */
+	public ByteBuffer rawChunk(int index) {
+		if (index >= count) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		if (chars != null) {
+			throw new IllegalStateException("Packet has no bytes");
+		}
+		return ByteBuffer.wrap(bytes, starts[index], ends[index] - starts[index]).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return every chunk as a String, the same array Protocol.getChunks() returns
+	 */
+	public String[] chunks() {
+		String[] ret = new String[count];
+		for (int i = 0; i < count; i++) {
+			ret[i] = chunk(i);
+		}
+		return ret;
+	}
+}
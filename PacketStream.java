@@ -0,0 +1,294 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * PacketStream reads and writes packets over a blocking socket in whichever
+ * Framing the connection has agreed on. It is shared by the server's handler
+ * threads and by the clients, so both sides frame packets the same way.
+ * Reading is meant for a single thread; writing may be done from any thread.
+ *
+ * A viewer that agreed on compression has the NOTIFY_DEFLATE packets it reads
+ * inflated here, and gets the packets inside them one at a time as if they had
+ * come one by one.
+ * @author Andy
+ *
+ */
+public class PacketStream {
+
+	private Socket sock;
+	private InputStream in;
+	private WritableByteChannel out;
+	private volatile Framing framing = Framing.TEXT;
+	private Packet packet;
+	private PacketWriter writer;
+	private byte[] buf;	// Bytes of the packet being read
+	private Inflater inflater;	// Set once compression is agreed on
+	private byte[] dictionary;
+	private byte[] inflated;	// Frames out of the last NOTIFY_DEFLATE
+	private int inflatedAt;	// Where the next of them starts
+	private int inflatedEnd;
+
+	public PacketStream(Socket sock) throws IOException {
+		this.sock = sock;
+		in = new BufferedInputStream(sock.getInputStream());
+		// Sockets accepted by the server have a channel, which takes read-only buffers without copying them
+		out = sock.getChannel() != null ? sock.getChannel() : Channels.newChannel(sock.getOutputStream());
+		packet = new Packet();
+		writer = new PacketWriter();
+		buf = new byte[256];
+	}
+
+	public Framing getFraming() {
+		return framing;
+	}
+
+	/**
+	 * Switches both directions of the stream to another framing
+	 * @param framing framing to use from now on
+	 */
+	public synchronized void setFraming(Framing framing) {
+		this.framing = framing;
+		writer = new PacketWriter(framing, 256);
+	}
+
+	/**
+	 * Has NOTIFY_DEFLATE packets inflated as they are read, once the other side
+	 * has agreed to send them
+	 * @param dictionary the preset dictionary the other side deflates with
+	 */
+	public void setInflating(byte[] dictionary) {
+		this.dictionary = dictionary;
+		inflater = new Inflater(true);
+		inflated = new byte[1024];
+	}
+
+	/**
+	 * Reads the next packet. The returned Packet is reused by the next call.
+	 * @return the packet, or null if the other side hung up
+	 * @throws IOException if no IO
+	 */
+	public Packet read() throws IOException {
+		if (inflatedAt < inflatedEnd) {
+			return nextInflated();
+		}
+		if (framing == Framing.BINARY) {
+			Packet ret = readFrame();
+			if (ret != null && inflater != null && ret.headerIs(Protocol.NOTIFY_DEFLATE) && ret.size() > 1) {
+				inflate(ret.rawChunk(1));
+				return nextInflated();
+			}
+			return ret;
+		}
+		int length = 0;
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				if (length == 0) {
+					return null;
+				}
+				break;	// Last line had no terminator
+			}
+			if (length == Framing.MAX_FRAME) {
+				throw new IOException("Line too long");	// TEXT lines are held to the BINARY limit
+			}
+			if (length == buf.length) {
+				grow(length * 2);
+			}
+			buf[length++] = (byte)b;
+		}
+		if (length > 0 && buf[length - 1] == '\r') {
+			length--;
+		}
+		return packet.parse(buf, 0, length);
+	}
+
+	private Packet readFrame() throws IOException {
+		int length = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.read();
+			if (b < 0) {
+				if (shift == 0) {
+					return null;
+				}
+				throw new EOFException("Connection closed inside a frame");
+			}
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0 && shift < 35);
+		if (length < 1 || length > Framing.MAX_FRAME) {
+			throw new IOException("Bad frame length " + length);
+		}
+		if (length > buf.length) {
+			grow(length);
+		}
+		int read = 0;
+		while (read < length) {
+			int n = in.read(buf, read, length - read);
+			if (n < 0) {
+				throw new EOFException("Connection closed inside a frame");
+			}
+			read += n;
+		}
+		try {
+			return packet.parseFrame(buf, 0, length);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private void inflate(ByteBuffer data) throws IOException {
+		inflater.reset();
+		inflater.setDictionary(dictionary);
+		inflater.setInput(data);
+		inflatedAt = 0;
+		inflatedEnd = 0;
+		try {
+			while (!inflater.finished()) {
+				if (inflatedEnd == inflated.length) {
+					if (inflated.length >= 2 * Framing.MAX_FRAME) {
+						throw new IOException("Compressed packet inflates too far");
+					}
+					inflated = Arrays.copyOf(inflated, inflated.length * 2);
+				}
+				int n = inflater.inflate(inflated, inflatedEnd, inflated.length - inflatedEnd);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Compressed packet is cut short");
+				}
+				inflatedEnd += n;
+			}
+		} catch (DataFormatException e) {
+			inflatedEnd = 0;
+			throw new IOException("Damaged compressed packet: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the next frame out of the last NOTIFY_DEFLATE
+	 */
+	private Packet nextInflated() throws IOException {
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (inflatedAt == inflatedEnd || shift > 28) {
+				throw new IOException("Bad frame length in compressed packet");
+			}
+			b = inflated[inflatedAt++];
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		if (length < 1 || length > inflatedEnd - inflatedAt) {
+			inflatedAt = inflatedEnd;
+			throw new IOException("Bad frame length in compressed packet");
+		}
+		int start = inflatedAt;
+		inflatedAt += length;
+		try {
+			return packet.parseFrame(inflated, start, length);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * @return whether the next read() can start without waiting on the network
+	 * @throws IOException if no IO
+	 */
+	public boolean ready() throws IOException {
+		return inflatedAt < inflatedEnd || in.available() > 0;
+	}
+
+	private void grow(int size) {
+		byte[] temp = new byte[Math.max(size, buf.length * 2)];
+		System.arraycopy(buf, 0, temp, 0, buf.length);
+		buf = temp;
+	}
+
+	/**
+	 * Sends a packet
+	 * @param chunks header followed by the data chunks
+	 * @throws IOException if no IO
+	 */
+	public synchronized void write(String... chunks) throws IOException {
+		writer.begin(chunks[0]);
+		for (int i = 1; i < chunks.length; i++) {
+			writer.chunk(chunks[i]);
+		}
+		write(writer.finish());
+	}
+
+	/**
+	 * Sends a packet that has already been encoded in this stream's framing
+	 * @param packet encoded packet, which is not modified
+	 * @throws IOException if no IO
+	 */
+	public synchronized void write(ByteBuffer packet) throws IOException {
+		packet = packet.duplicate();
+		while (packet.hasRemaining()) {
+			out.write(packet);
+		}
+	}
+
+	/**
+	 * Sends several encoded packets with as few writes as the socket allows. On a
+	 * socket with a channel they all go to the kernel in one gathering write.
+	 * @param packets encoded packets; the entries are replaced by duplicates, the
+	 * packets themselves are not modified
+	 * @param count number of packets to send from the start of the array
+	 * @throws IOException if no IO
+	 */
+	public synchronized void write(ByteBuffer[] packets, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			packets[i] = packets[i].duplicate();
+		}
+		if (!(out instanceof GatheringByteChannel)) {
+			for (int i = 0; i < count; i++) {
+				while (packets[i].hasRemaining()) {
+					out.write(packets[i]);
+				}
+			}
+			return;
+		}
+		GatheringByteChannel gather = (GatheringByteChannel)out;
+		int first = 0;
+		while (first < count) {
+			gather.write(packets, first, count - first);
+			while (first < count && !packets[first].hasRemaining()) {
+				first++;
+			}
+		}
+	}
+
+	/**
+	 * Sends a run of logged messages straight from the log, without copying them
+	 * onto the heap. Only makes sense once the stream is in BINARY, the format the
+	 * log keeps its records in.
+	 * @param region records to send
+	 * @throws IOException if no IO
+	 */
+	public synchronized void write(MessageLog.Region region) throws IOException {
+		region.transferTo(out);
+	}
+
+	public Socket getSocket() {
+		return sock;
+	}
+
+	public void close() throws IOException {
+		in.close();
+		out.close();
+		sock.close();
+	}
+}
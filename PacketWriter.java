@@ -0,0 +1,129 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * PacketWriter encodes packets straight into a reusable byte buffer, line
+ * terminator or frame length included, so that sending a packet does not build
+ * an intermediate String. The buffer returned by finish() is only valid until the next call to
+ * begin(); use Protocol.encodePacket() for packets that have to be kept around.
+ *
+ * Usage: channel.write(writer.begin(Protocol.STATUS_ACK).chunk("Message Posted").finish())
+ * @author Andy
+ *
+ */
+public class PacketWriter {
+
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final byte[] NEWLINE = System.lineSeparator().getBytes(CHARSET);
+
+	private static final int LENGTH_ROOM = 5;	// Largest varint an int can take
+
+	private Framing framing;
+	private CharsetEncoder encoder;
+	private ByteBuffer buf;
+
+	public PacketWriter() {
+		this(Framing.TEXT, 256);
+	}
+
+	/**
+	 * @param framing framing to write packets in
+	 * @param capacity initial size of the buffer, it grows as needed
+	 */
+	public PacketWriter(Framing framing, int capacity) {
+		this.framing = framing;
+		encoder = (framing == Framing.BINARY ? Framing.CHARSET : CHARSET).newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		buf = ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Starts a new packet, throwing away the previous one
+	 * @param header packet header
+	 * @return this PacketWriter
+	 */
+	public PacketWriter begin(String header) {
+		buf.clear();
+		if (framing == Framing.BINARY) {
+			// Leave room for the length, which is only known once the packet is done
+			buf.position(LENGTH_ROOM);
+			buf.put(Framing.opcode(header));
+			return this;
+		}
+		return chunk(header);
+	}
+
+	/**
+	 * Appends a chunk and its separator
+	 * @param data chunk to append
+	 * @return this PacketWriter
+	 */
+	public PacketWriter chunk(CharSequence data) {
+		if (framing == Framing.BINARY) {
+			int length = Framing.utf8Length(data);
+			ensure(LENGTH_ROOM + length);
+			Framing.putVarint(buf, length);
+			encode(data);
+			return this;
+		}
+		encode(data);
+		ensure(1);
+		buf.put((byte)Protocol.SPLIT_CHAR);
+		return this;
+	}
+
+	private void encode(CharSequence data) {
+		CharBuffer in = CharBuffer.wrap(data);
+		encoder.reset();
+		while (true) {
+			CoderResult result = encoder.encode(in, buf, true);
+			if (result.isOverflow()) {
+				grow();
+			} else {
+				break;
+			}
+		}
+		while (encoder.flush(buf).isOverflow()) {
+			grow();
+		}
+	}
+
+	/**
+	 * Terminates the packet
+	 * @return the encoded packet, valid until the next call to begin()
+	 */
+	public ByteBuffer finish() {
+		if (framing == Framing.BINARY) {
+			int end = buf.position();
+			int length = end - LENGTH_ROOM;
+			int start = LENGTH_ROOM - Framing.varintSize(length);
+			buf.position(start);
+			Framing.putVarint(buf, length);
+			buf.limit(end);
+			buf.position(start);
+			return buf;
+		}
+		ensure(NEWLINE.length);
+		buf.put(NEWLINE);
+		buf.flip();
+		return buf;
+	}
+
+	private void ensure(int room) {
+		while (buf.remaining() < room) {
+			grow();
+		}
+	}
+
+	private void grow() {
+		ByteBuffer temp = ByteBuffer.allocate(buf.capacity() * 2);
+		buf.flip();
+		temp.put(buf);
+		buf = temp;
+	}
+}
@@ -0,0 +1,87 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * PasswordHash turns passwords into the credentials kept for each User, and
+ * checks passwords against them. A credential is a version byte, the iteration
+ * count, a random salt and a PBKDF2-HMAC-SHA256 hash of the password, so every
+ * user's hash is different even for the same password and the work factor can
+ * be raised later without invalidating what is already stored.
+ *
+ * Hashing is meant to be slow, tens of milliseconds, so the server does it on
+ * its Verifier pool rather than on a session thread.
+ * @author Andy
+ *
+ */
+public class PasswordHash {
+
+	/**
+	 * PBKDF2 iterations for new credentials. Set with -Dbbs.hash.iterations=
+	 */
+	public static final int ITERATIONS = Integer.getInteger("bbs.hash.iterations", 100000);
+
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final byte VERSION = 1;
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_LENGTH = 32;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Hashes a password with a fresh salt
+	 * @param password password to hash
+	 * @return credential to store
+	 */
+	public static byte[] create(String password) {
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		byte[] hash = hash(password, salt, ITERATIONS);
+		return ByteBuffer.allocate(1 + 4 + SALT_LENGTH + HASH_LENGTH)
+				.put(VERSION).putInt(ITERATIONS).put(salt).put(hash).array();
+	}
+
+	/**
+	 * Checks a password against a credential, taking as long for a wrong
+	 * password as for the right one
+	 * @param credential credential made by create()
+	 * @param password password to check
+	 * @return whether the password matches
+	 */
+	public static boolean verify(byte[] credential, String password) {
+		ByteBuffer in = ByteBuffer.wrap(credential);
+		if (credential.length != 1 + 4 + SALT_LENGTH + HASH_LENGTH || in.get() != VERSION) {
+			return false;
+		}
+		int iterations = in.getInt();
+		byte[] salt = new byte[SALT_LENGTH];
+		in.get(salt);
+		byte[] expected = new byte[HASH_LENGTH];
+		in.get(expected);
+		return MessageDigest.isEqual(expected, hash(password, salt, iterations));
+	}
+
+	/**
+	 * @param credential stored credential
+	 * @return whether the credential should be made again with create() the next
+	 * time the password is known, because it uses fewer iterations
+	 */
+	public static boolean isStale(byte[] credential) {
+		return credential.length > 4 && ByteBuffer.wrap(credential, 1, 4).getInt() < ITERATIONS;
+	}
+
+	private static byte[] hash(String password, byte[] salt, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH * 8);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+}
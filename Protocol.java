@@ -1,3 +1,6 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 /*
  * Each message has a chunks of data separated by splits. The headers are defined
  * in the Protocol class, and they represent different definitions for the body
@@ -10,26 +13,50 @@ public class Protocol {
 	
 	public static final String ACT_LOGIN = "act_log";
 	public static final String ACT_REGISTER = "act_reg";
-	public static final String ACT_POST = "act_post";
+	public static final String ACT_POST = "act_post";	// Text, then optionally an id the STATUS_ACK will carry back
+	public static final String ACT_POST_BATCH = "act_batch";	// Number of posts, the posts, then optionally an id as for ACT_POST
+	public static final String ACT_RESUME = "act_resume";	// Logs in again with the token from an earlier login's STATUS_ACK
+	public static final String ACT_FORWARD = "act_fwd";	// Cluster peers only: author, number of posts, the posts, then a ticket
+	public static final String ACT_SEARCH = "act_search";	// Words, author, from and to in epoch millis, limit, any of them empty, then optionally an id
 	
 	public static final String NOTIFY = "not";
 	public static final String NOTIFY_STOP = "not_stop";	// For use in filling previous messages to Viewer
+	public static final String NOTIFY_MESSAGE = "not_msg";	// A logged message with its sequence number and time
+	public static final String NOTIFY_DEFLATE = "not_zip";	// BINARY only: raw deflate data that inflates to more BINARY frames
 	
 	public static final String CLIENT_READONLY = "cli_ro";
 	public static final String CLIENT_READWRITE = "cli_rw";
+	public static final String CLIENT_PEER = "cli_peer";	// Another node of the cluster, following this one
+	
+	// Options a client may append to its identifier, as name and value chunks
+	public static final String OPT_FRAMING = "frame";	// Value is one of the FRAMING_ names
+	public static final String OPT_LAST = "last";	// Viewers only: value is how many past messages to replay
+	public static final String OPT_SINCE = "since";	// Viewers only: value is the last sequence number already seen
+	public static final String OPT_CHANNEL = "chan";	// Value is the channel to view or post to, the default one if absent
+	public static final String OPT_NODE = "node";	// Cluster peers only: value is the id of the node following
+	public static final String OPT_KEY = "key";	// Cluster peers only: value is the cluster's shared secret
+	public static final String OPT_COMPRESS = "zip";	// BINARY viewers only: value is COMPRESS_DEFLATE to have notifications deflated
+	public static final String COMPRESS_DEFLATE = "deflate";	// See Compressor
+	public static final String FRAMING_BINARY = "bin";	// See Framing.BINARY
 	
 //	private static final String DATA_SPLIT = ";";
-	private static final String DATA_SPLIT = "" + (char)23;
+	public static final char SPLIT_CHAR = (char)23;
 	private static final int HEADER_POS = 0;
+	
+	// Packets go out the same way PrintWriter.println() would have sent them
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final byte[] NEWLINE = System.lineSeparator().getBytes(CHARSET);
 
 	/**
 	 * The first chunk of each packet is usually the header. This method is a
-	 * convenience method for retrieving just that
+	 * convenience method for retrieving just that. Code that looks at more than
+	 * the header should parse the line once into a Packet instead.
 	 * @param line
 	 * @return the first chunk of the packet
 	 */
 	public static String getHeader(String line) {
-		return line.split(DATA_SPLIT)[HEADER_POS];
+		int end = line.indexOf(SPLIT_CHAR);
+		return end < 0 ? line : line.substring(HEADER_POS, end);
 	}
 	
 	/**
@@ -39,7 +66,7 @@ public class Protocol {
 	 * @return
 	 */
 	public static String[] getChunks(String packet) {
-		return packet.split(DATA_SPLIT);
+		return new Packet().parse(packet).chunks();
 	}
 	
 	/**
@@ -48,13 +75,31 @@ public class Protocol {
 	 * @return final packet ready for transmission
 	 */
 	public static String createPacket(String... chunks) {
-		StringBuffer ret = new StringBuffer();
+		int length = 0;
+		for (String s : chunks) {
+			length += s.length() + 1;
+		}
+		StringBuilder ret = new StringBuilder(length);
 		for(String s : chunks) {
-			ret.append(s).append(DATA_SPLIT);
+			ret.append(s).append(SPLIT_CHAR);
 		}
 		return ret.toString();
 	}
 	
+	/**
+	 * Creates a packet and encodes it, line terminator included, into a read-only
+	 * buffer ready to be written to a socket. The same buffer can be handed to any
+	 * number of connections through duplicate() without encoding it again.
+	 * @param chunks Chunks to be added
+	 * @return encoded packet
+	 */
+	public static ByteBuffer encodePacket(String... chunks) {
+		byte[] body = createPacket(chunks).getBytes(CHARSET);
+		ByteBuffer ret = ByteBuffer.allocate(body.length + NEWLINE.length);
+		ret.put(body).put(NEWLINE).flip();
+		return ret.asReadOnlyBuffer();
+	}
+	
 //	public static String createPacket(String header) {
 //		return new StringBuffer(header).append(DATA_SPLIT).toString();
 //	}
@@ -0,0 +1,112 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateLimiter is a token bucket that refills at a steady rate up to a burst
+ * size. It does not count tokens; like the generic cell rate algorithm it keeps
+ * the time at which the bucket will be full again, so taking tokens is a single
+ * compare-and-set on one long. It never blocks and takes no lock, so it can be
+ * checked on every packet.
+ * @author Andy
+ *
+ */
+public class RateLimiter {
+
+	private long interval;	// Nanoseconds to earn one token, 0 for no limit
+	private long capacity;	// Nanoseconds to earn a full bucket
+	private AtomicLong fullAt;	// When the bucket will be full again, in System.nanoTime()
+
+	/**
+	 * Creates a full bucket
+	 * @param rate tokens earned per second, 0 or less for no limit
+	 * @param burst most tokens the bucket holds
+	 */
+	public RateLimiter(double rate, int burst) {
+		interval = rate > 0 ? Math.max((long)(1e9 / rate), 1) : 0;
+		capacity = interval * Math.max(burst, 1);
+		fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Takes tokens if the bucket has them, or none at all if it does not
+	 * @param tokens number of tokens to take
+	 * @return whether they were taken
+	 */
+	public boolean tryAcquire(int tokens) {
+		if (interval == 0) {
+			return true;
+		}
+		long now = System.nanoTime();
+		while (true) {
+			long full = fullAt.get();
+			long next = (full - now > 0 ? full : now) + tokens * interval;
+			if (next - now > capacity) {
+				return false;
+			}
+			if (fullAt.compareAndSet(full, next)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return whether the bucket is full, and so no different from a new one
+	 */
+	public boolean isFull() {
+		return fullAt.get() - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Hands out one RateLimiter per key, such as a user or an address. Buckets
+	 * that have filled up again are forgotten once there are many of them, since
+	 * a new bucket is just the same. That only holds if nobody keeps a bucket
+	 * around: callers look it up with get() every time they use it.
+	 * @param <K> key type
+	 */
+	public static class Keyed<K> {
+		private static final int SWEEP_MIN = 1024;
+
+		private double rate;
+		private int burst;
+		private ConcurrentHashMap<K, RateLimiter> buckets;
+		private volatile int sweepAt = SWEEP_MIN;	// Size at which full buckets are next cleared out
+
+		/**
+		 * @param rate tokens earned per second by each key, 0 or less for no limit
+		 * @param burst most tokens each key's bucket holds
+		 */
+		public Keyed(double rate, int burst) {
+			this.rate = rate;
+			this.burst = burst;
+			buckets = new ConcurrentHashMap<>();
+		}
+
+		/**
+		 * @param key key to look up
+		 * @return the bucket for the key, created full if there was none
+		 */
+		public RateLimiter get(K key) {
+			RateLimiter bucket = buckets.get(key);
+			if (bucket != null) {
+				return bucket;
+			}
+			if (buckets.size() >= sweepAt) {
+				sweep();
+			}
+			bucket = new RateLimiter(rate, burst);
+			RateLimiter existing = buckets.putIfAbsent(key, bucket);
+			return existing != null ? existing : bucket;
+		}
+
+		private void sweep() {
+			Iterator<RateLimiter> i = buckets.values().iterator();
+			while (i.hasNext()) {
+				if (i.next().isFull()) {
+					i.remove();
+				}
+			}
+			sweepAt = Math.max(SWEEP_MIN, buckets.size() * 2);
+		}
+	}
+}
@@ -0,0 +1,593 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * SearchIndex is an inverted index over a channel's messages: for every word, and
+ * for every author, the sequence numbers of the messages that have it, in an
+ * int array kept in order. Messages are added in sequence order as they are
+ * posted, so adding one only ever appends. The time of every message is kept
+ * too, in a long array by sequence number, so a time range turns into a range
+ * of sequence numbers with a binary search.
+ *
+ * A search walks the shortest of the lists it needs from the newest end,
+ * checking the others by binary search, and stops once it has enough, so it
+ * costs about the same however many messages there are.
+ *
+ * Every CHECKPOINT messages, what was added since the last checkpoint is written
+ * to a file of its own on a background thread, and once there are MAX_FILES of
+ * those they are merged into one. On startup the files are read back and only
+ * the messages after the last one need indexing again. A file found damaged,
+ * on startup or when merging, is deleted with every file after it, and what
+ * they held is saved again.
+ * @author Andy
+ *
+ */
+public class SearchIndex {
+
+	/**
+	 * Messages indexed between checkpoints. Set with -Dbbs.search.checkpoint=
+	 */
+	public static final int CHECKPOINT = Integer.getInteger("bbs.search.checkpoint", 50000);
+
+	private static final int MAX_FILES = 16;
+	private static final int MAX_WORD = 64;	// Longer words are not indexed
+	private static final int MAGIC = 0x42425332;	// Changed whenever what the files hold changes, so old ones are indexed again
+	private static final String SUFFIX = ".idx";
+	private static final String AUTHOR = "@";	// Prefix of author entries, in lower case like usernames are compared, which no word has
+
+	// One thread writes the files of every channel; checkpoints are rare
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "SearchIndex-writer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private File dir;	// Where checkpoints go, or null to keep none
+	private HashMap<String, Postings> terms;	// Words, and authors under AUTHOR
+	private long[] times;	// Time of each message by sequence number - 1, never going backwards
+	private int last;	// Last sequence number indexed
+	private int saved;	// Last sequence number in a checkpoint
+	private List<String> dirty;	// Terms added to since the last checkpoint
+	private volatile int files;	// Checkpoint files on disk, only changed on the writer thread once loaded
+	private volatile int lost = -1;	// Set by the writer when the files after this sequence number were deleted
+
+	/**
+	 * Sequence numbers of the messages that have one term, oldest first
+	 */
+	private static class Postings {
+		private int[] seqs = new int[2];
+		private int size;
+		private int saved;	// How many are in a checkpoint
+
+		void add(int seq) {
+			if (size > 0 && seqs[size - 1] == seq) {
+				return;	// Word used twice in one message
+			}
+			if (size == seqs.length) {
+				seqs = Arrays.copyOf(seqs, size * 2);
+			}
+			seqs[size++] = seq;
+		}
+
+		/**
+		 * @return index of the last entry at or before seq, below bound, or -1
+		 */
+		int floor(int seq, int bound) {
+			int i = Arrays.binarySearch(seqs, 0, bound, seq);
+			return i >= 0 ? i : -i - 2;
+		}
+	}
+
+	/**
+	 * What one checkpoint file holds: the messages it covers, their times, and
+	 * the entries each term gained over them
+	 */
+	private static class Checkpoint {
+		private int from;
+		private int to;
+		private long[] times;
+		private Map<String, int[]> postings = new HashMap<>();
+	}
+
+	/**
+	 * Loads whatever checkpoints there are
+	 * @param dir directory to keep checkpoints in, or null to keep none
+	 * @throws IOException if the directory cannot be made
+	 */
+	public SearchIndex(File dir) throws IOException {
+		this.dir = dir;
+		terms = new HashMap<>();
+		times = new long[1024];
+		dirty = new ArrayList<>();
+		if (dir == null) {
+			return;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		File[] found = checkpointFiles();
+		for (File file : found) {
+			Checkpoint checkpoint;
+			try {
+				checkpoint = read(file);
+			} catch (IOException e) {
+				checkpoint = null;
+			}
+			if (checkpoint == null || checkpoint.from != last + 1) {
+				Log.warn("Search index {} is damaged or out of place, indexing again from message {}", file, last + 1);
+				for (File later : found) {
+					if (start(later) >= start(file)) {
+						Files.deleteIfExists(later.toPath());
+					}
+				}
+				break;
+			}
+			apply(checkpoint);
+			files++;
+		}
+		saved = last;
+	}
+
+	/**
+	 * @return sequence number of the last message indexed
+	 */
+	public synchronized long last() {
+		return last;
+	}
+
+	/**
+	 * Forgets everything, such as when the index is ahead of the messages it indexes
+	 * @throws IOException if the checkpoints cannot be deleted
+	 */
+	public synchronized void clear() throws IOException {
+		terms.clear();
+		dirty.clear();
+		last = 0;
+		saved = 0;
+		if (dir == null) {
+			return;
+		}
+		// On the writer thread, after any checkpoint still being written
+		Future<Void> deleted = writer.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				for (File file : checkpointFiles()) {
+					Files.deleteIfExists(file.toPath());
+				}
+				files = 0;
+				lost = -1;
+				return null;
+			}
+		});
+		try {
+			deleted.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted clearing search index");
+		} catch (ExecutionException e) {
+			throw new IOException("Cannot clear search index", e.getCause());
+		}
+	}
+
+	/**
+	 * Indexes a message. Messages have to come in sequence order; ones already
+	 * indexed are skipped.
+	 * @param message message to index
+	 */
+	public synchronized void add(Message message) {
+		if (message.getSeq() <= last) {
+			return;
+		}
+		if (message.getSeq() != last + 1 || message.getSeq() >= Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Message " + message.getSeq() + " does not follow " + last);
+		}
+		int seq = (int)message.getSeq();
+		if (seq > times.length) {
+			times = Arrays.copyOf(times, times.length * 2);
+		}
+		times[seq - 1] = Math.max(message.getTime(), seq > 1 ? times[seq - 2] : 0);
+		posting(AUTHOR + message.getSource().toLowerCase()).add(seq);
+		String content = message.getContent();
+		int start = -1;
+		for (int i = 0; i <= content.length(); i++) {
+			boolean letter = i < content.length() && Character.isLetterOrDigit(content.charAt(i));
+			if (letter && start < 0) {
+				start = i;
+			} else if (!letter && start >= 0) {
+				if (i - start <= MAX_WORD) {
+					posting(content.substring(start, i).toLowerCase()).add(seq);
+				}
+				start = -1;
+			}
+		}
+		last = seq;
+		if (dir != null && last - saved >= CHECKPOINT) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Indexes a run of messages in sequence order
+	 * @param messages messages to index
+	 */
+	public synchronized void add(List<Message> messages) {
+		for (Message message : messages) {
+			add(message);
+		}
+	}
+
+	private Postings posting(String term) {
+		Postings postings = terms.get(term);
+		if (postings == null) {
+			postings = new Postings();
+			terms.put(term, postings);
+		}
+		if (postings.size == postings.saved) {
+			dirty.add(term);
+		}
+		return postings;
+	}
+
+	/**
+	 * Finds messages, newest first
+	 * @param text words the messages must all have, in any case; null or empty for any
+	 * @param author username the messages must be posted by, in any case, or null for anyone
+	 * @param from earliest time in milliseconds, or 0
+	 * @param to latest time in milliseconds, or Long.MAX_VALUE
+	 * @param limit most sequence numbers to return
+	 * @return sequence numbers of the matching messages, newest first
+	 */
+	public synchronized long[] search(String text, String author, long from, long to, int limit) {
+		List<Postings> lists = new ArrayList<>();
+		if (text != null) {
+			for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+				if (!word.isEmpty()) {
+					Postings postings = terms.get(word);
+					if (postings == null) {
+						return new long[0];
+					}
+					lists.add(postings);
+				}
+			}
+		}
+		if (author != null) {
+			Postings postings = terms.get(AUTHOR + author.toLowerCase());
+			if (postings == null) {
+				return new long[0];
+			}
+			lists.add(postings);
+		}
+		// Times never go backwards, so the range is a run of sequence numbers
+		int high = upperBound(to);
+		int low = upperBound(from - 1) + 1;
+		long[] ret = new long[Math.max(0, Math.min(limit, high - low + 1))];
+		int count = 0;
+		if (lists.isEmpty()) {
+			for (int seq = high; seq >= low && count < ret.length; seq--) {
+				ret[count++] = seq;
+			}
+			return ret;
+		}
+		Collections.sort(lists, new Comparator<Postings>() {
+			public int compare(Postings a, Postings b) {
+				return Integer.compare(a.size, b.size);
+			}
+		});
+		Postings shortest = lists.get(0);
+		int[] bounds = new int[lists.size()];	// Entries of each list not yet passed over
+		for (int i = 1; i < bounds.length; i++) {
+			bounds[i] = lists.get(i).size;
+		}
+		candidates:
+		for (int at = shortest.floor(high, shortest.size); at >= 0 && count < ret.length; at--) {
+			int seq = shortest.seqs[at];
+			if (seq < low) {
+				break;
+			}
+			for (int i = 1; i < bounds.length; i++) {
+				Postings other = lists.get(i);
+				int found = other.floor(seq, bounds[i]);
+				if (found < 0) {
+					break candidates;	// Nothing older left in this list
+				}
+				bounds[i] = found + 1;
+				if (other.seqs[found] != seq) {
+					continue candidates;
+				}
+			}
+			ret[count++] = seq;
+		}
+		return Arrays.copyOf(ret, count);
+	}
+
+	/**
+	 * @return last sequence number with a time at or before the given one, 0 if none
+	 */
+	private int upperBound(long time) {
+		int low = 0;
+		int high = last;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (times[mid - 1] <= time) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Copies out what was added since the last checkpoint and has it written on
+	 * the writer thread
+	 */
+	private void checkpoint() {
+		int from = lost;
+		if (from >= 0) {
+			lost = -1;
+			unsave(from);
+		}
+		final Checkpoint checkpoint = new Checkpoint();
+		checkpoint.from = saved + 1;
+		checkpoint.to = last;
+		checkpoint.times = Arrays.copyOfRange(times, saved, last);
+		for (String term : dirty) {
+			Postings postings = terms.get(term);
+			checkpoint.postings.put(term, Arrays.copyOfRange(postings.seqs, postings.saved, postings.size));
+			postings.saved = postings.size;
+		}
+		dirty.clear();
+		saved = last;
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					write(checkpoint, file(checkpoint.from));
+					if (++files >= MAX_FILES) {
+						merge();
+					}
+				} catch (IOException e) {
+					Log.error("Could not save search index to {}", dir, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Marks everything after a sequence number as not yet in a checkpoint, so the
+	 * next checkpoint saves it again
+	 */
+	private void unsave(int after) {
+		for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+			Postings postings = entry.getValue();
+			int kept = postings.floor(after, postings.size) + 1;
+			if (kept < postings.saved) {
+				if (postings.saved == postings.size) {
+					dirty.add(entry.getKey());
+				}
+				postings.saved = kept;
+			}
+		}
+		saved = Math.min(saved, after);
+	}
+
+	/**
+	 * Merges every checkpoint file into one, on the writer thread. Merging stops
+	 * at a file that is damaged or out of place, which is deleted along with every
+	 * file after it, and the next checkpoint saves again what they held.
+	 */
+	private void merge() throws IOException {
+		File[] found = checkpointFiles();
+		Checkpoint merged = null;
+		Map<String, int[]> postings = null;
+		List<long[]> times = new ArrayList<>();
+		int count = 0;
+		for (; count < found.length; count++) {
+			Checkpoint next;
+			try {
+				next = read(found[count]);
+			} catch (IOException e) {
+				next = null;
+			}
+			int expected = merged == null ? 1 : merged.to + 1;
+			if (next == null || next.from != expected) {
+				Log.warn("Search index {} is damaged or out of place, saving again from message {}", found[count], expected);
+				for (int i = count; i < found.length; i++) {
+					Files.deleteIfExists(found[i].toPath());
+				}
+				lost = expected - 1;
+				break;
+			}
+			times.add(next.times);
+			if (merged == null) {
+				merged = next;
+				postings = merged.postings;
+				continue;
+			}
+			for (Map.Entry<String, int[]> entry : next.postings.entrySet()) {
+				int[] before = postings.get(entry.getKey());
+				if (before == null) {
+					postings.put(entry.getKey(), entry.getValue());
+				} else {
+					int[] both = Arrays.copyOf(before, before.length + entry.getValue().length);
+					System.arraycopy(entry.getValue(), 0, both, before.length, entry.getValue().length);
+					postings.put(entry.getKey(), both);
+				}
+			}
+			merged.to = next.to;
+		}
+		files = count;
+		if (count < 2) {
+			return;	// Nothing to merge
+		}
+		merged.times = new long[merged.to - merged.from + 1];
+		int at = 0;
+		for (long[] run : times) {
+			System.arraycopy(run, 0, merged.times, at, run.length);
+			at += run.length;
+		}
+		File file = file(merged.from);
+		write(merged, file);	// Replaces the first file, so a crash part way leaves the rest to overlap it
+		for (int i = 1; i < count; i++) {
+			Files.deleteIfExists(found[i].toPath());
+		}
+		files = 1;
+	}
+
+	private void apply(Checkpoint checkpoint) {
+		for (Map.Entry<String, int[]> entry : checkpoint.postings.entrySet()) {
+			Postings postings = terms.get(entry.getKey());
+			if (postings == null) {
+				postings = new Postings();
+				terms.put(entry.getKey(), postings);
+			}
+			for (int seq : entry.getValue()) {
+				postings.add(seq);
+			}
+			postings.saved = postings.size;
+		}
+		while (checkpoint.to > times.length) {
+			times = Arrays.copyOf(times, times.length * 2);
+		}
+		System.arraycopy(checkpoint.times, 0, times, checkpoint.from - 1, checkpoint.times.length);
+		last = checkpoint.to;
+	}
+
+	/**
+	 * Writes a checkpoint under a temporary name and then moves it into place, so
+	 * a file is either whole or not there
+	 */
+	private static void write(Checkpoint checkpoint, File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(checkpoint.from);
+			out.writeInt(checkpoint.to);
+			for (long time : checkpoint.times) {
+				out.writeLong(time);
+			}
+			out.writeInt(checkpoint.postings.size());
+			for (Map.Entry<String, int[]> entry : checkpoint.postings.entrySet()) {
+				out.writeUTF(entry.getKey());
+				int[] seqs = entry.getValue();
+				writeVarint(out, seqs.length);
+				int previous = 0;
+				for (int seq : seqs) {
+					writeVarint(out, seq - previous);	// Gaps are small numbers for common terms
+					previous = seq;
+				}
+			}
+			out.writeInt(MAGIC);	// Marks the file as complete
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the checkpoint in a file, or null if it is not one
+	 */
+	private static Checkpoint read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+			Checkpoint checkpoint = new Checkpoint();
+			checkpoint.from = in.readInt();
+			checkpoint.to = in.readInt();
+			if (checkpoint.from < 1 || checkpoint.to < checkpoint.from) {
+				return null;
+			}
+			checkpoint.times = new long[checkpoint.to - checkpoint.from + 1];
+			for (int i = 0; i < checkpoint.times.length; i++) {
+				checkpoint.times[i] = in.readLong();
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String term = in.readUTF();
+				int[] seqs = new int[readVarint(in)];
+				int previous = 0;
+				for (int j = 0; j < seqs.length; j++) {
+					seqs[j] = previous + readVarint(in);
+					previous = seqs[j];
+				}
+				checkpoint.postings.put(term, seqs);
+			}
+			return in.readInt() == MAGIC ? checkpoint : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarint(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Bad varint");
+	}
+
+	private File file(int from) {
+		return new File(dir, String.format("%010d", from) + SUFFIX);
+	}
+
+	private static long start(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * @return checkpoint files, oldest first
+	 */
+	private File[] checkpointFiles() {
+		File[] found = dir.listFiles();
+		if (found == null) {
+			return new File[0];
+		}
+		List<File> ret = new ArrayList<>();
+		for (File file : found) {
+			if (file.getName().matches("\\d+" + SUFFIX.replace(".", "\\."))) {
+				ret.add(file);
+			}
+		}
+		Collections.sort(ret, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(start(a), start(b));
+			}
+		});
+		return ret.toArray(new File[ret.size()]);
+	}
+}
@@ -0,0 +1,367 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Upstream is a cluster follower's link to one channel on the leader. The leader
+ * is the only node that numbers posts, so every node ends up with the same
+ * messages under the same sequence numbers.
+ *
+ * Posts made on the follower are forwarded to the leader, each under a ticket
+ * number of this link's own, and are not posted locally at all; they come back
+ * numbered, along with everyone else's, and are handed to the Handler strictly
+ * in sequence order. The leader acknowledges each ticket with the sequence
+ * number it gave, once that is on its disk.
+ *
+ * If the link drops it is opened again, asking for every message after the last
+ * one handed on, and every forward not yet acknowledged is sent again. The leader
+ * knows this node by a random id and skips tickets it has already posted, so
+ * nothing is lost or posted twice as long as the leader stays up.
+ *
+ * If the leader cannot post a forward, its message log has failed and it will
+ * post nothing more until it is restarted. The link then fails every forward
+ * waiting on it, telling whoever waits on them, and refuses new ones. It keeps trying to reconnect, and the
+ * leader refuses it until the leader has been restarted. Once a link is back,
+ * forwards are taken again.
+ * @author Andy
+ *
+ */
+public class Upstream {
+
+	/**
+	 * Receives the leader's messages on the link's reader thread
+	 */
+	public interface Handler {
+		/**
+		 * @param message message numbered by the leader, the one after the last one handed on
+		 */
+		void replicate(Message message);
+	}
+
+	/**
+	 * Told whether a forward made it to the leader's disk, by whenForwarded()
+	 */
+	public interface Callback {
+		/**
+		 * @param seq a sequence number at or after the one the leader gave the posts
+		 */
+		void forwarded(long seq);
+		/**
+		 * The leader failed first, and will never post the forward
+		 * @param e why
+		 */
+		void failed(IOException e);
+	}
+
+	private static final long RETRY_DELAY = 250;	// Milliseconds before the first reconnect, doubled for each after
+	private static final long RETRY_MAX = 10000;
+
+	private InetSocketAddress leader;
+	private String channel;
+	private String node;
+	private String key;
+	private int capacity;
+	private Handler handler;
+	private long last;	// Sequence number of the last message handed on, reader thread only
+	private ConcurrentSkipListMap<Long, ByteBuffer> pending;	// Forwards not yet acknowledged, by ticket
+	private ConcurrentLinkedQueue<Waiter> waiters;
+	private PacketStream link;	// Open link, or null between connections
+	private long tickets;	// Last ticket handed out
+	private long sent;	// Last ticket written to the current link
+	private long ackedTicket;	// Last ticket acknowledged
+	private long ackedSeq;	// Sequence number the leader gave it
+	private IOException failure;	// Why the leader stopped taking posts, if it has
+
+	/**
+	 * A callback waiting on a ticket to be acknowledged
+	 */
+	private static class Waiter {
+		private long ticket;
+		private Callback callback;
+
+		Waiter(long ticket, Callback callback) {
+			this.ticket = ticket;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * @param leader the leader's cluster port
+	 * @param channel name of the channel to follow
+	 * @param node id the leader knows this node by
+	 * @param key shared secret of the cluster, or an empty string
+	 * @param last sequence number of the last message this node already has
+	 * @param capacity most forwards that may wait on their acknowledgements
+	 * @param handler receives the leader's messages
+	 */
+	public Upstream(InetSocketAddress leader, String channel, String node, String key, long last, int capacity, Handler handler) {
+		this.leader = leader;
+		this.channel = channel;
+		this.node = node;
+		this.key = key;
+		this.last = last;
+		this.capacity = capacity;
+		this.handler = handler;
+		pending = new ConcurrentSkipListMap<>();
+		waiters = new ConcurrentLinkedQueue<>();
+	}
+
+	public void start() {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				follow();
+			}
+		}, "Upstream-" + channel);
+		reader.setDaemon(true);
+		reader.start();
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				sendForwards();
+			}
+		}, "Upstream-" + channel + " forwards");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * Queues posts to be forwarded to the leader. They are posted there together,
+	 * with no other post in between.
+	 * @param author user who posted them
+	 * @param messages message contents, in order
+	 * @return ticket to wait on with awaitForwarded() or whenForwarded()
+	 * @throws IOException if the leader has failed, or too many forwards are waiting on it
+	 */
+	public synchronized long forward(String author, List<String> messages) throws IOException {
+		if (failure != null) {
+			throw new IOException("Cluster leader is not taking posts", failure);
+		}
+		if (pending.size() >= capacity) {
+			throw new IOException("Cluster leader is not keeping up");
+		}
+		long ticket = ++tickets;
+		List<String> chunks = new ArrayList<>(messages.size() + 4);
+		chunks.add(Protocol.ACT_FORWARD);
+		chunks.add(author);
+		chunks.add(Integer.toString(messages.size()));
+		chunks.addAll(messages);
+		chunks.add(Long.toString(ticket));
+		pending.put(ticket, Framing.BINARY.encode(chunks.toArray(new String[chunks.size()])));
+		notifyAll();
+		return ticket;
+	}
+
+	/**
+	 * Blocks until the leader has a forward on disk
+	 * @param ticket ticket from forward()
+	 * @return a sequence number at or after the one the leader gave the posts
+	 * @throws IOException if interrupted, or if the leader failed first
+	 */
+	public synchronized long awaitForwarded(long ticket) throws IOException {
+		while (ackedTicket < ticket && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting on forward " + ticket);
+			}
+		}
+		if (ackedTicket < ticket) {
+			throw new IOException("Cluster leader is not taking posts", failure);
+		}
+		return ackedSeq;
+	}
+
+	/**
+	 * Tells a callback once the leader has a forward on disk, or once the leader
+	 * has failed first, without blocking. Like MessageLog.whenDurable(), it is told
+	 * right away or on the thread that hears from the leader.
+	 * @param ticket ticket from forward()
+	 * @param callback callback to tell
+	 */
+	public void whenForwarded(long ticket, Callback callback) {
+		long seq;
+		IOException failed;
+		synchronized (this) {
+			failed = ackedTicket < ticket ? failure : null;
+			if (failed == null && ackedTicket < ticket) {
+				waiters.add(new Waiter(ticket, callback));
+				return;
+			}
+			seq = ackedSeq;
+		}
+		if (failed != null) {
+			callback.failed(failed);
+		} else {
+			callback.forwarded(seq);
+		}
+	}
+
+	/**
+	 * @return number of forwards waiting on their acknowledgements
+	 */
+	public int backlog() {
+		return pending.size();
+	}
+
+	/**
+	 * Keeps a link to the leader open, handing on its messages and matching up
+	 * its acknowledgements, and opens it again whenever it drops
+	 */
+	private void follow() {
+		long delay = RETRY_DELAY;
+		while (true) {
+			Socket sock = new Socket();
+			try {
+				sock.connect(leader);
+				sock.setTcpNoDelay(true);
+				PacketStream stream = new PacketStream(sock);
+				stream.write(Protocol.CLIENT_PEER, Protocol.OPT_CHANNEL, channel, Protocol.OPT_SINCE, Long.toString(last),
+						Protocol.OPT_NODE, node, Protocol.OPT_KEY, key);
+				Packet response = stream.read();
+				if (response == null) {
+					throw new EOFException("Leader closed connection");
+				}
+				if (!response.headerIs(Protocol.STATUS_ACK)) {
+					throw new IOException(response.chunk(1));
+				}
+				stream.setFraming(Framing.BINARY);
+				Log.info("Following channel {} on {} from message {}", channel, leader, last);
+				delay = RETRY_DELAY;
+				synchronized (this) {
+					link = stream;
+					sent = 0;	// Everything not acknowledged goes again
+					failure = null;	// The leader only takes followers while it can post
+					notifyAll();
+				}
+				readLink(stream);
+				Log.warn("Cluster leader closed channel {}", channel);
+			} catch (IOException e) {
+				Log.warn("Lost cluster leader for channel {}: {}", channel, e.getMessage());
+			}
+			synchronized (this) {
+				link = null;
+			}
+			try {
+				sock.close();
+			} catch (IOException e) {
+				// Already gone
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return;
+			}
+			delay = Math.min(delay * 2, RETRY_MAX);
+		}
+	}
+
+	private void readLink(PacketStream stream) throws IOException {
+		Packet packet;
+		while ((packet = stream.read()) != null) {
+			if (packet.headerIs(Protocol.NOTIFY_MESSAGE)) {
+				Message message = Message.decode(packet);
+				if (message == null) {
+					throw new IOException("Damaged message from leader");
+				}
+				if (message.getSeq() <= last) {
+					continue;	// Already handed on
+				}
+				if (message.getSeq() != last + 1) {
+					throw new IOException("Leader skipped messages " + (last + 1) + " to " + (message.getSeq() - 1));
+				}
+				handler.replicate(message);
+				last = message.getSeq();
+			} else if (packet.headerIs(Protocol.STATUS_ACK) && packet.size() > 2) {
+				try {
+					acknowledged(Long.parseLong(packet.chunk(2)), Long.parseLong(packet.chunk(1)));
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad acknowledgement from leader");
+				}
+			} else if (packet.headerIs(Protocol.STATUS_ERR)) {
+				failed(new IOException(packet.chunk(1)));
+				return;
+			} else if (packet.headerIs(Protocol.STATUS_END)) {
+				return;
+			}
+			// Notices and the end of the replay are of no use to a follower
+		}
+	}
+
+	private void acknowledged(long ticket, long seq) {
+		synchronized (this) {
+			pending.headMap(ticket, true).clear();
+			ackedTicket = Math.max(ackedTicket, ticket);
+			ackedSeq = Math.max(ackedSeq, seq);
+			notifyAll();
+		}
+		Iterator<Waiter> i = waiters.iterator();
+		while (i.hasNext()) {
+			Waiter waiter = i.next();
+			if (waiter.ticket <= ticket) {
+				i.remove();
+				waiter.callback.forwarded(seq);
+			}
+		}
+	}
+
+	private void failed(IOException e) {
+		Log.error("Cluster leader stopped taking posts to channel {}", channel, e);
+		synchronized (this) {
+			failure = e;
+			pending.clear();
+			notifyAll();
+		}
+		// No more are added now, and acknowledgements come on this thread
+		Waiter waiter;
+		while ((waiter = waiters.poll()) != null) {
+			waiter.callback.failed(e);
+		}
+	}
+
+	/**
+	 * Writes forwards to the current link as they are queued, as many at a time as
+	 * are waiting. After a reconnect it starts again from the oldest one not
+	 * acknowledged.
+	 */
+	private void sendForwards() {
+		ByteBuffer[] batch = new ByteBuffer[BoardServer.BATCH_SIZE];
+		while (true) {
+			PacketStream to;
+			int count = 0;
+			synchronized (this) {
+				try {
+					while (link == null || pending.higherKey(sent) == null) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				to = link;
+				for (Map.Entry<Long, ByteBuffer> forward : pending.tailMap(sent, false).entrySet()) {
+					if (count == batch.length) {
+						break;
+					}
+					batch[count++] = forward.getValue();
+					sent = forward.getKey();
+				}
+			}
+			try {
+				to.write(batch, count);
+			} catch (IOException e) {
+				try {
+					to.close();	// The reader notices and reconnects
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,375 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * UserStore keeps the user database on disk as a snapshot plus a write-ahead log
+ * of the registrations and removals made since.
+ *
+ * Snapshots and logs come in numbered generations. Taking a snapshot first
+ * moves the log on to the next generation, then walks the live map into the
+ * snapshot of that generation. Nothing is paused: a user registered while the
+ * map is walked is either caught by the walk or found in the new log, and
+ * loading the same user twice does no harm. Once the snapshot is safely on disk
+ * the older generations are deleted.
+ *
+ * On startup the newest snapshot that checks out is loaded and every log from
+ * its generation on is replayed, so restart time is bounded by the snapshot
+ * interval rather than by the size of the database.
+ * @author Andy
+ *
+ */
+public class UserStore {
+
+	/**
+	 * Seconds between two background snapshots. Set with -Dbbs.users.snapshot=
+	 */
+	public static final long SNAPSHOT_INTERVAL = Long.getLong("bbs.users.snapshot", 300);
+
+	/**
+	 * Whether every log record is forced to disk before the registration is
+	 * answered. Set with -Dbbs.users.fsync=
+	 */
+	public static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("bbs.users.fsync", "true"));
+
+	private static final int MAGIC = 0x42425355;	// "BBSU"
+	private static final int VERSION = 1;
+	private static final byte REGISTERED = 1;
+	private static final byte REMOVED = 2;
+
+	private File dir;
+	private ConcurrentHashMap<String, BoardServer.User> users;
+	private long generation;
+	private FileChannel log;
+	private long logged;	// Records in the current log
+	private ScheduledExecutorService snapshots;
+
+	/**
+	 * Opens the store and loads whatever it holds into a map
+	 * @param dir directory holding the snapshots and logs
+	 * @param users map to load into and to snapshot from
+	 * @throws IOException if no IO
+	 */
+	public UserStore(File dir, ConcurrentHashMap<String, BoardServer.User> users) throws IOException {
+		this.dir = dir;
+		this.users = users;
+		dir.mkdirs();
+		recover();
+	}
+
+	/**
+	 * Takes a snapshot every SNAPSHOT_INTERVAL seconds on a background thread, if
+	 * anything was logged since the last one
+	 */
+	public void start() {
+		snapshots = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "UserStore-snapshots");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		snapshots.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					if (pending() > 0) {
+						snapshot();
+					}
+				} catch (IOException e) {
+					Log.error("Could not snapshot users, trying again later", e);
+				}
+			}
+		}, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Logs a new user. Call after the user is in the map.
+	 * @param user user added
+	 * @throws IOException if the record could not be written
+	 */
+	public void registered(BoardServer.User user) throws IOException {
+		append(REGISTERED, user.getUsername(), user.getCredential());
+	}
+
+	/**
+	 * Logs the removal of a user. Call after the user is out of the map.
+	 * @param username name of the user removed
+	 * @throws IOException if the record could not be written
+	 */
+	public void removed(String username) throws IOException {
+		append(REMOVED, username, new byte[0]);
+	}
+
+	/**
+	 * @return number of records logged since the last snapshot
+	 */
+	public synchronized long pending() {
+		return logged;
+	}
+
+	/**
+	 * Takes a snapshot of the map without stopping registrations, then deletes
+	 * the generations it replaces
+	 * @throws IOException if no IO
+	 */
+	public void snapshot() throws IOException {
+		long taken;
+		synchronized (this) {
+			// From here on records go to the new log; anything older is already in the map
+			log.close();
+			generation++;
+			openLog();
+			logged = 0;
+			taken = generation;
+		}
+		long start = System.currentTimeMillis();
+		int count = write(file("users", taken, ".snap"), users.values());
+		Log.info("UserStore: snapshot of {} users in {}ms", count, System.currentTimeMillis() - start);
+		for (long old : generations("wal", ".log")) {
+			if (old < taken) {
+				file("wal", old, ".log").delete();
+			}
+		}
+		for (long old : generations("users", ".snap")) {
+			if (old < taken) {
+				file("users", old, ".snap").delete();
+			}
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (snapshots != null) {
+			snapshots.shutdown();
+		}
+		log.close();
+	}
+
+	/**
+	 * Writes a snapshot file. The file is written under a temporary name and
+	 * renamed into place once it is on disk, so it is never seen half written.
+	 *
+	 * Layout: magic, version, then one record per user (a 1 byte, the username and
+	 * the credential), a 0 byte, the record count and the CRC32 of all of it.
+	 * @param file file to write
+	 * @param users users to write; may change while they are written
+	 * @return number of users written
+	 * @throws IOException if no IO
+	 */
+	public static int write(File file, Iterable<BoardServer.User> users) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		int count = 0;
+		try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			for (BoardServer.User user : users) {
+				out.writeByte(1);
+				writeUser(out, user.getUsername(), user.getCredential());
+				count++;
+			}
+			out.writeByte(0);
+			out.writeInt(count);
+			out.flush();
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return count;
+	}
+
+	/**
+	 * Loads a snapshot file written by write(). Nothing is loaded unless the
+	 * whole file checks out.
+	 * @param file file to read
+	 * @param into map to add the users to
+	 * @return number of users loaded
+	 * @throws IOException if no IO or the file is damaged
+	 */
+	public static int read(File file, Map<String, BoardServer.User> into) throws IOException {
+		Map<String, BoardServer.User> loaded = new HashMap<>();
+		try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), new CRC32())) {
+			DataInputStream in = new DataInputStream(checked);
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				throw new IOException(file + " is not a user snapshot");
+			}
+			while (in.readByte() == 1) {
+				String username = in.readUTF();
+				byte[] credential = new byte[in.readUnsignedShort()];
+				in.readFully(credential);
+				loaded.put(username, new BoardServer.User(username, credential));
+			}
+			int count = in.readInt();
+			long expected = checked.getChecksum().getValue();
+			if (count != loaded.size() || in.readLong() != expected) {
+				throw new IOException(file + " is damaged");
+			}
+		} catch (EOFException e) {
+			throw new IOException(file + " is cut short");
+		}
+		into.putAll(loaded);
+		return loaded.size();
+	}
+
+	private static void writeUser(DataOutputStream out, String username, byte[] credential) throws IOException {
+		out.writeUTF(username);
+		out.writeShort(credential.length);
+		out.write(credential);
+	}
+
+	/**
+	 * Log records are an int length, an int CRC32 of the body, then the body: a
+	 * type byte, the username and the credential
+	 */
+	private synchronized void append(byte type, String username, byte[] credential) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream body = new DataOutputStream(bytes);
+		body.writeByte(type);
+		writeUser(body, username, credential);
+		byte[] data = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ByteBuffer record = ByteBuffer.allocate(8 + data.length);
+		record.putInt(data.length).putInt((int)crc.getValue()).put(data).flip();
+		while (record.hasRemaining()) {
+			log.write(record);
+		}
+		if (FSYNC) {
+			log.force(false);
+		}
+		logged++;
+	}
+
+	private void recover() throws IOException {
+		long[] snaps = generations("users", ".snap");
+		long from = 0;
+		for (int i = snaps.length - 1; i >= 0; i--) {
+			try {
+				int count = read(file("users", snaps[i], ".snap"), users);
+				Log.info("UserStore: loaded {} users from snapshot {}", count, snaps[i]);
+				from = snaps[i];
+				break;
+			} catch (IOException e) {
+				Log.warn("UserStore: skipping snapshot {}: {}", snaps[i], e.getMessage());
+			}
+		}
+		generation = from;
+		for (long wal : generations("wal", ".log")) {
+			if (wal >= from) {
+				generation = wal;
+				int count = replay(file("wal", wal, ".log"));
+				Log.info("UserStore: replayed {} records from log {}", count, wal);
+			}
+		}
+		openLog();
+	}
+
+	/**
+	 * Applies a log to the map, cutting off a torn record at its end
+	 * @return number of records applied
+	 */
+	private int replay(File file) throws IOException {
+		int count = 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			long valid = 0;
+			try {
+				while (true) {
+					int length = in.readInt();
+					int expected = in.readInt();
+					if (length < 0 || length > 1 << 16) {
+						break;
+					}
+					byte[] data = new byte[length];
+					in.readFully(data);
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					if ((int)crc.getValue() != expected) {
+						break;
+					}
+					DataInputStream body = new DataInputStream(new ByteArrayInputStream(data));
+					byte type = body.readByte();
+					String username = body.readUTF();
+					byte[] credential = new byte[body.readUnsignedShort()];
+					body.readFully(credential);
+					if (type == REGISTERED) {
+						users.put(username, new BoardServer.User(username, credential));
+					} else if (type == REMOVED) {
+						users.remove(username);
+					}
+					valid += 8 + length;
+					count++;
+				}
+			} catch (EOFException e) {
+				// End of the log
+			} finally {
+				in.close();
+			}
+			if (valid < channel.size()) {
+				Log.warn("UserStore: dropping {} bytes of incomplete records", channel.size() - valid);
+				channel.truncate(valid);
+			}
+		}
+		logged += count;
+		return count;
+	}
+
+	private void openLog() throws IOException {
+		log = FileChannel.open(file("wal", generation, ".log").toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private File file(String prefix, long generation, String suffix) {
+		return new File(dir, String.format("%s-%020d%s", prefix, generation, suffix));
+	}
+
+	/**
+	 * @return generations of the files with a prefix and suffix, in order
+	 */
+	private long[] generations(String prefix, String suffix) {
+		String[] names = dir.list();
+		if (names == null) {
+			return new long[0];
+		}
+		long[] ret = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.startsWith(prefix + "-") && name.endsWith(suffix)) {
+				try {
+					ret[count] = Long.parseLong(name.substring(prefix.length() + 1, name.length() - suffix.length()));
+					count++;
+				} catch (NumberFormatException e) {
+					// Not one of ours
+				}
+			}
+		}
+		ret = Arrays.copyOf(ret, count);
+		Arrays.sort(ret);
+		return ret;
+	}
+}
@@ -0,0 +1,201 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Verifier runs password hashing for logins and registrations on a small pool
+ * of threads of its own, so a storm of logins takes no more than that many
+ * cores away from posting however many sessions are waiting. Work is queued up
+ * to a fixed depth; past that it is refused straight away and the client is
+ * told to try again, rather than everyone waiting longer and longer.
+ *
+ * It also remembers who logged in recently. A user reconnecting with the same
+ * password within the cache time is let in on an HMAC under a key that only
+ * lives in this process, which costs microseconds instead of a full hash.
+ *
+ * Under the same key it issues resume tokens: a username and an expiry time,
+ * signed, so that a client whose connection dropped can log back in without its
+ * password. Nothing is kept per token; one is good until it expires.
+ * @author Andy
+ *
+ */
+public class Verifier {
+
+	// What a MAC vouches for, so one can never pass for the other
+	private static final byte PASSWORD = 0;
+	private static final byte TOKEN = 1;
+
+	private ThreadPoolExecutor pool;
+	private Map<String, Entry> recent;	// Username to the proof of its last verified password
+	private long cacheTime;	// Nanoseconds an entry stays good for
+	private byte[] key;
+	private ThreadLocal<Mac> macs;
+
+	/**
+	 * Proof that a password was verified, and until when it counts
+	 */
+	private static class Entry {
+		byte[] mac;
+		long expires;
+	}
+
+	/**
+	 * @param threads threads hashing at once
+	 * @param queue most hashes waiting for a thread
+	 * @param cacheMillis how long a verified login may be reused for, 0 for not at all
+	 * @param cacheSize most users remembered
+	 */
+	public Verifier(int threads, int queue, long cacheMillis, final int cacheSize) {
+		final AtomicInteger count = new AtomicInteger();
+		pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(queue, 1)), new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "Verifier-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		cacheTime = TimeUnit.MILLISECONDS.toNanos(cacheMillis);
+		recent = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		macs = new ThreadLocal<Mac>() {
+			@Override
+			protected Mac initialValue() {
+				try {
+					Mac mac = Mac.getInstance("HmacSHA256");
+					mac.init(new SecretKeySpec(key, "HmacSHA256"));
+					return mac;
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException("HmacSHA256 is not available", e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Queues a task on the pool
+	 * @param task task to run, typically one that hashes a password
+	 * @return completed with what the task returns, or exceptionally with what it throws
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> task) {
+		final CompletableFuture<T> result = new CompletableFuture<>();
+		pool.execute(new Runnable() {
+			public void run() {
+				try {
+					result.complete(task.call());
+				} catch (Exception e) {
+					result.completeExceptionally(e);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @param username user logging in
+	 * @param password password given
+	 * @return whether the same password was verified for the user within the cache time
+	 */
+	public boolean recentlyVerified(String username, String password) {
+		if (cacheTime <= 0) {
+			return false;
+		}
+		Entry entry;
+		synchronized (recent) {
+			entry = recent.get(username);
+		}
+		return entry != null && entry.expires - System.nanoTime() > 0
+				&& MessageDigest.isEqual(entry.mac, mac(username, password));
+	}
+
+	/**
+	 * Remembers that a password was verified for a user
+	 * @param username user who logged in
+	 * @param password password that was verified
+	 */
+	public void verified(String username, String password) {
+		if (cacheTime <= 0) {
+			return;
+		}
+		Entry entry = new Entry();
+		entry.mac = mac(username, password);
+		entry.expires = System.nanoTime() + cacheTime;
+		synchronized (recent) {
+			recent.put(username, entry);
+		}
+	}
+
+	/**
+	 * Issues a token that logs a user back in until it expires
+	 * @param username user to issue it to
+	 * @param ttlMillis how long it is good for
+	 * @return the token, which holds no split characters or line breaks
+	 */
+	public String issue(String username, long ttlMillis) {
+		String expires = Long.toString(System.currentTimeMillis() + ttlMillis);
+		Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+		return base64.encodeToString(username.getBytes(StandardCharsets.UTF_8)) + "." + expires + "."
+				+ base64.encodeToString(mac(username, TOKEN, expires));
+	}
+
+	/**
+	 * @param token token from issue()
+	 * @return the user it was issued to, or null if it is damaged, forged or expired
+	 */
+	public String redeem(String token) {
+		String[] parts = token.split("\\.");
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			String username = new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8);
+			if (!MessageDigest.isEqual(Base64.getUrlDecoder().decode(parts[2]), mac(username, TOKEN, parts[1]))
+					|| Long.parseLong(parts[1]) < System.currentTimeMillis()) {
+				return null;
+			}
+			return username;
+		} catch (IllegalArgumentException e) {
+			return null;	// Not base64 or not a number
+		}
+	}
+
+	private byte[] mac(String username, String password) {
+		return mac(username, PASSWORD, password);
+	}
+
+	private byte[] mac(String username, byte purpose, String text) {
+		Mac mac = macs.get();
+		mac.update(username.getBytes(StandardCharsets.UTF_8));
+		mac.update(purpose);
+		return mac.doFinal(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return number of hashes waiting for a thread
+	 */
+	public int depth() {
+		return pool.getQueue().size();
+	}
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Runs PostBenchmark and BroadcastBenchmark against a BoardServer that is
+ * bound to a spare port but never accepts anything
+ * @author Andy
+ *
+ */
+public class BoardTarget implements bbs.bench.PostBenchmark.Board {
+
+	private BoardServer.Channel board;
+	private BoardServer.User user;
+	private long seq;
+
+	public BoardTarget() {
+		Log.setLevel(Log.Level.OFF);	// The server logs every post
+		try {
+			board = new BoardServer(0).defaultChannel();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		user = new BoardServer.User("bench", "benchmark");
+	}
+
+	public void addViewers(int count) {
+		for (int i = 0; i < count; i++) {
+			board.addViewer(new Sink());
+		}
+	}
+
+	public long post(String text) {
+		try {
+			return board.postMessage(text, user);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void broadcast(String text) {
+		board.notifyViewers(new Message(++seq, user.getUsername(), text), null);
+	}
+
+	/**
+	 * A viewer that only counts what it is sent
+	 */
+	private static class Sink implements BoardServer.Viewer {
+		private long bytes;
+
+		public void notifyMessage(ByteBuffer packet) {
+			bytes += packet.remaining();
+		}
+
+		public void replay(ByteBuffer packet) {
+		}
+
+		public void replay(MessageLog.Region region) {
+		}
+
+		public Framing getFraming() {
+			return Framing.TEXT;
+		}
+
+		public boolean isCompressed() {
+			return false;
+		}
+
+		public OutboundQueue<?> getQueue() {
+			return null;
+		}
+	}
+}
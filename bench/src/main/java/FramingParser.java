@@ -0,0 +1,90 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Runs FramingBenchmark against Packet and Framing
+ * @author Andy
+ *
+ */
+public class FramingParser implements bbs.bench.FramingBenchmark.Parser {
+
+	private String mode;
+	private byte[] stream;
+	private Packet packet = new Packet();
+
+	public void set(String mode, int packets, int length) {
+		this.mode = mode;
+		Framing framing = mode.equals("binary") ? Framing.BINARY : Framing.TEXT;
+		String message = bbs.bench.Targets.text(length);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < packets; i++) {
+			ByteBuffer encoded = framing.encode(Protocol.ACT_POST, message + i);
+			byte[] bytes = new byte[encoded.remaining()];
+			encoded.get(bytes);
+			out.write(bytes, 0, bytes.length);
+		}
+		stream = out.toByteArray();
+	}
+
+	public int parse() {
+		if (mode.equals("split")) {
+			return splitText();
+		}
+		return mode.equals("text") ? parseText() : parseBinary();
+	}
+
+	// What the handlers used to do: decode every line, then split it with a regex
+	private int splitText() {
+		int ret = 0;
+		int start = 0;
+		for (int i = 0; i < stream.length; i++) {
+			if (stream[i] == '\n') {
+				String line = new String(stream, start, i - start);
+				if (line.split("" + Protocol.SPLIT_CHAR)[0].equals(Protocol.ACT_POST)) {
+					ret += line.split("" + Protocol.SPLIT_CHAR)[1].length();
+				}
+				start = i + 1;
+			}
+		}
+		return ret;
+	}
+
+	// Every byte has to be looked at to find the end of the line
+	private int parseText() {
+		int ret = 0;
+		int start = 0;
+		for (int i = 0; i < stream.length; i++) {
+			if (stream[i] == '\n') {
+				int end = i > start && stream[i - 1] == '\r' ? i - 1 : i;
+				packet.parse(stream, start, end - start);
+				if (packet.headerIs(Protocol.ACT_POST)) {
+					ret += packet.chunk(1).length();
+				}
+				start = i + 1;
+			}
+		}
+		return ret;
+	}
+
+	// Only the length prefixes are looked at to find frame boundaries
+	private int parseBinary() {
+		int ret = 0;
+		int i = 0;
+		while (i < stream.length) {
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = stream[i++];
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			packet.parseFrame(stream, i, length);
+			if (packet.headerIs(Protocol.ACT_POST)) {
+				ret += packet.chunk(1).length();
+			}
+			i += length;
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,17 @@
+/**
+ * Runs MessageBenchmark against Message
+ * @author Andy
+ *
+ */
+public class MessageFormatter implements bbs.bench.MessageBenchmark.Formatter {
+
+	private Message message;
+
+	public void set(String source, String content) {
+		message = new Message(1, source, content);
+	}
+
+	public String format() {
+		return message.toString();
+	}
+}
@@ -0,0 +1,52 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs CompressionBenchmark against BoardServer.notification() and Compressor
+ * @author Andy
+ *
+ */
+public class NotificationCompressor implements bbs.bench.CompressionBenchmark.Encoder {
+
+	private static final String[] USERS = {"andy", "beth", "carlos", "dana", "erin", "farid", "gwen", "hiro"};
+	private static final String[] WORDS = {"the", "board", "is", "busy", "today", "anyone", "seen", "new", "build",
+			"server", "went", "down", "again", "thanks", "for", "fix", "lunch", "at", "noon", "meeting"};
+
+	private List<Message> run;
+	private Compressor compressor;	// Null to send as is
+
+	public void set(String mode, int run) {
+		List<Message> messages = messages(1, 256 + run);
+		this.run = messages.subList(256, messages.size());
+		if (mode.equals("deflate")) {
+			compressor = new Compressor(new byte[0], Compressor.LEVEL);
+		} else if (mode.equals("dictionary")) {
+			compressor = new Compressor(Compressor.dictionary(messages.subList(0, 256), BoardServer.COMPRESS_DICTIONARY), Compressor.LEVEL);
+		}
+	}
+
+	public int encode() {
+		ByteBuffer packet = BoardServer.notification(Framing.BINARY, run);
+		return compressor != null ? compressor.compress(packet).remaining() : packet.remaining();
+	}
+
+	/**
+	 * @return messages from a handful of users, made of common words, a second or so apart
+	 */
+	private static List<Message> messages(long first, int count) {
+		Random random = new Random(42);
+		long time = System.currentTimeMillis();
+		List<Message> ret = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			StringBuilder text = new StringBuilder();
+			for (int words = 4 + random.nextInt(12); words > 0; words--) {
+				text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+			time += random.nextInt(2000);
+			ret.add(new Message(first + i, USERS[random.nextInt(USERS.length)], text.toString().trim(), time));
+		}
+		return ret;
+	}
+}
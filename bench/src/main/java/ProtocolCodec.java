@@ -0,0 +1,19 @@
+/**
+ * Runs ProtocolBenchmark against Protocol
+ * @author Andy
+ *
+ */
+public class ProtocolCodec implements bbs.bench.ProtocolBenchmark.Codec {
+
+	public String createPacket(String... chunks) {
+		return Protocol.createPacket(chunks);
+	}
+
+	public String getHeader(String packet) {
+		return Protocol.getHeader(packet);
+	}
+
+	public String[] getChunks(String packet) {
+		return Protocol.getChunks(packet);
+	}
+}
@@ -0,0 +1,49 @@
+package bbs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of BoardServer.notifyViewers() fanning one message out to 10, 1k and
+ * 10k viewers. The viewers are in-memory sinks that only count what they are
+ * handed, so this is the encoding and dispatch, not the network.
+ * @author Andy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dbbs.log.dir=", "-Dbbs.users.dir="})
+public class BroadcastBenchmark {
+
+	@Param({"10", "1000", "10000"})
+	private int viewers;
+
+	private PostBenchmark.Board board;
+	private String text;
+
+	@Setup
+	public void setup() {
+		board = Targets.create("BoardTarget", PostBenchmark.Board.class);
+		board.addViewers(viewers);
+		text = Targets.text(80);
+	}
+
+	@Benchmark
+	public void notifyViewers() {
+		board.broadcast(text);
+	}
+}
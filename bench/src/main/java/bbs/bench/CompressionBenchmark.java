@@ -0,0 +1,69 @@
+package bbs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPU against bytes on the wire for a BINARY notification of one message and of
+ * a run of 64, sent as is, deflated on its own, and deflated against a preset
+ * dictionary of recent messages the way Compressor does it. The time is what
+ * it costs to encode one notification, which a broadcast pays once however
+ * many viewers there are; the bytes a message each mode comes to are printed
+ * during setup.
+ * @author Andy
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	/**
+	 * Implemented by NotificationCompressor
+	 */
+	public interface Encoder {
+		/**
+		 * @param mode "plain", "deflate" or "dictionary"
+		 * @param run number of messages in the notification
+		 */
+		void set(String mode, int run);
+		/**
+		 * @return bytes the notification takes on the wire
+		 */
+		int encode();
+	}
+
+	@Param({"plain", "deflate", "dictionary"})
+	private String mode;
+
+	@Param({"1", "64"})
+	private int run;
+
+	private Encoder encoder;
+
+	@Setup
+	public void setup() {
+		encoder = Targets.create("NotificationCompressor", Encoder.class);
+		encoder.set(mode, run);
+		System.out.printf("%n%s, %d a notification: %.1f bytes a message%n", mode, run, encoder.encode() / (double)run);
+	}
+
+	@Benchmark
+	public int encode() {
+		return encoder.encode();
+	}
+}
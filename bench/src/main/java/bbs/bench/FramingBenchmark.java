@@ -0,0 +1,73 @@
+package bbs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How fast a receiver can cut a stream of posts into packets and parse them:
+ * TEXT the way the handlers used to, decoding every line and splitting it with
+ * a regex, TEXT with Packet, and BINARY with Packet. The stream is built once
+ * in memory so only the framing and parsing is measured, not the network. The
+ * time is per packet.
+ * @author Andy
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+	private static final int PACKETS = 1000;
+
+	/**
+	 * Implemented by FramingParser
+	 */
+	public interface Parser {
+		/**
+		 * @param mode "split", "text" or "binary"
+		 * @param packets number of posts in the stream
+		 * @param length characters in each post
+		 */
+		void set(String mode, int packets, int length);
+		/**
+		 * Parses the whole stream
+		 * @return something of every packet, to keep the JIT from dropping the work
+		 */
+		int parse();
+	}
+
+	@Param({"split", "text", "binary"})
+	private String mode;
+
+	@Param({"80", "1024"})
+	private int length;
+
+	private Parser parser;
+
+	@Setup
+	public void setup() {
+		parser = Targets.create("FramingParser", Parser.class);
+		parser.set(mode, PACKETS, length);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public int parse() {
+		return parser.parse();
+	}
+}
@@ -0,0 +1,49 @@
+package bbs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of Message.toString(), which every TEXT notification is built from
+ * @author Andy
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+	/**
+	 * Implemented by MessageFormatter
+	 */
+	public interface Formatter {
+		void set(String source, String content);
+		String format();
+	}
+
+	private Formatter formatter;
+
+	@Setup
+	public void setup() {
+		formatter = Targets.create("MessageFormatter", Formatter.class);
+		formatter.set("andy", Targets.text(80));
+	}
+
+	@Benchmark
+	public String format() {
+		return formatter.format();
+	}
+}
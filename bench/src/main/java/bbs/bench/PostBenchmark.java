@@ -0,0 +1,73 @@
+package bbs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of BoardServer.postMessage() with 1, 8 and 64 threads posting at
+ * once, with no viewers. The message log and user store are turned off so the
+ * numbers are about the posting path, not the disk; console output is thrown
+ * away but still formatted.
+ *
+ * postMessage() only claims a sequence number and queues the message, so the
+ * posting threads no longer wait on one another; what is measured is how fast
+ * the dispatcher thread hands posts on, since posters wait for it once
+ * bbs.dispatch.queue are queued.
+ * @author Andy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dbbs.log.dir=", "-Dbbs.users.dir="})
+public class PostBenchmark {
+
+	/**
+	 * Implemented by BoardTarget
+	 */
+	public interface Board {
+		void addViewers(int count);
+		long post(String text);
+		void broadcast(String text);
+	}
+
+	private Board board;
+	private String text;
+
+	@Setup
+	public void setup() {
+		board = Targets.create("BoardTarget", Board.class);
+		text = Targets.text(80);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public long post1() {
+		return board.post(text);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public long post8() {
+		return board.post(text);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public long post64() {
+		return board.post(text);
+	}
+}
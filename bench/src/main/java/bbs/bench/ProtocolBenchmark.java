@@ -0,0 +1,67 @@
+package bbs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of building and taking apart TEXT packets with Protocol
+ * @author Andy
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+	/**
+	 * Implemented by ProtocolCodec
+	 */
+	public interface Codec {
+		String createPacket(String... chunks);
+		String getHeader(String packet);
+		String[] getChunks(String packet);
+	}
+
+	@Param({"16", "256"})
+	private int length;
+
+	private Codec codec;
+	private String[] chunks;
+	private String packet;
+
+	@Setup
+	public void setup() {
+		codec = Targets.create("ProtocolCodec", Codec.class);
+		chunks = new String[] {"act_post", Targets.text(length)};
+		packet = codec.createPacket(chunks);
+	}
+
+	@Benchmark
+	public String createPacket() {
+		return codec.createPacket(chunks);
+	}
+
+	@Benchmark
+	public String getHeader() {
+		return codec.getHeader(packet);
+	}
+
+	@Benchmark
+	public String[] getChunks() {
+		return codec.getChunks(packet);
+	}
+}
@@ -0,0 +1,42 @@
+package bbs.bench;
+
+/**
+ * The server's classes live in the default package, which code in a named
+ * package cannot refer to, and JMH will not generate benchmarks in the default
+ * package. So each benchmark declares what it needs as an interface here, and a
+ * small class in the default package implements it against the real code. The
+ * adapter is looked up once, during setup; after that every call is a plain
+ * interface call the JIT inlines.
+ * @author Andy
+ *
+ */
+public final class Targets {
+
+	private Targets() {
+	}
+
+	/**
+	 * @param name name of the adapter class in the default package
+	 * @param type interface it implements
+	 * @return a new instance of the adapter
+	 */
+	public static <T> T create(String name, Class<T> type) {
+		try {
+			return Class.forName(name).asSubclass(type).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create " + name, e);
+		}
+	}
+
+	/**
+	 * @param length number of characters
+	 * @return message text of that length
+	 */
+	public static String text(int length) {
+		StringBuilder ret = new StringBuilder(length);
+		while (ret.length() < length) {
+			ret.append("the quick brown fox ");
+		}
+		return ret.substring(0, length);
+	}
+}
@@ -0,0 +1,67 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * BoardServer refuses posts too long to be sent on, and the longest post it
+ * takes still makes frames every receiver accepts
+ * @author Andy
+ *
+ */
+public class BoardServerTest {
+
+	private static final BoardServer.User ANDY = new BoardServer.User("andy", new byte[0]);
+
+	@Test
+	public void postsAreHeldToMaxMessage() {
+		int room = BoardServer.MAX_MESSAGE - "andy".length();
+		assertTrue(BoardServer.fits(ANDY, repeat("x", room)));
+		assertFalse(BoardServer.fits(ANDY, repeat("x", room + 1)));
+		// Counted in bytes of UTF-8, not in characters
+		assertTrue(BoardServer.fits(ANDY, repeat("é", room / 2)));
+		assertFalse(BoardServer.fits(ANDY, repeat("é", room / 2 + 1)));
+		assertFalse(BoardServer.fits(ANDY, repeat("☃", room / 3 + 1)));
+		assertFalse(BoardServer.fits(ANDY, repeat("😀", room / 4 + 1)));
+		String emoji = repeat("😀", room / 4);
+		assertEquals(room / 4 * 4, emoji.getBytes(StandardCharsets.UTF_8).length);
+		assertTrue(BoardServer.fits(ANDY, emoji));
+	}
+
+	@Test
+	public void batchIsHeldToMaxMessageAltogether() {
+		int half = (BoardServer.MAX_MESSAGE - "andy".length()) / 2;
+		assertTrue(BoardServer.fits(ANDY, Arrays.asList(repeat("x", half), repeat("x", half))));
+		assertFalse(BoardServer.fits(ANDY, Arrays.asList(repeat("x", half), repeat("x", half), "x", "x")));
+	}
+
+	@Test
+	public void longestPostFitsInAFrame() {
+		String author = "andy";
+		String content = repeat("é", (BoardServer.MAX_MESSAGE - author.length()) / 2);
+		assertTrue(BoardServer.fits(ANDY, content));
+		// The longest numbers there are
+		Message message = new Message(Long.MAX_VALUE, author, content, Long.MIN_VALUE);
+		for (Framing framing : Framing.values()) {
+			ByteBuffer notification = BoardServer.notification(framing, message);
+			assertTrue(notification.remaining() <= Framing.MAX_FRAME, framing + " notification of " + notification.remaining());
+		}
+		List<String> forward = Arrays.asList(Protocol.ACT_FORWARD, author, "1", content, Long.toString(Long.MAX_VALUE));
+		ByteBuffer frame = Framing.BINARY.encode(forward.toArray(new String[forward.size()]));
+		assertTrue(frame.remaining() <= Framing.MAX_FRAME, "forward of " + frame.remaining());
+	}
+
+	private static String repeat(String text, int count) {
+		StringBuilder ret = new StringBuilder(text.length() * count);
+		for (int i = 0; i < count; i++) {
+			ret.append(text);
+		}
+		return ret.toString();
+	}
+}
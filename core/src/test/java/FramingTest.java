@@ -0,0 +1,180 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * BINARY frames survive the trip through Framing, Packet and PacketStream,
+ * however the bytes arrive
+ * @author Andy
+ *
+ */
+public class FramingTest {
+
+	private ServerSocket listener;
+	private Socket writer;
+	private PacketStream reader;
+
+	@BeforeEach
+	public void connect() throws IOException {
+		listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		writer = new Socket(listener.getInetAddress(), listener.getLocalPort());
+		reader = new PacketStream(listener.accept());
+		reader.setFraming(Framing.BINARY);
+	}
+
+	@AfterEach
+	public void close() throws IOException {
+		writer.close();
+		reader.close();
+		listener.close();
+	}
+
+	@Test
+	public void varintLengthsRoundTrip() {
+		for (int value : new int[] {0, 1, 127, 128, 16383, 16384, Framing.MAX_FRAME, Integer.MAX_VALUE}) {
+			ByteBuffer buf = ByteBuffer.allocate(Framing.varintSize(value));
+			Framing.putVarint(buf, value);
+			assertEquals(buf.capacity(), buf.position(), "size of " + value);
+			buf.flip();
+			assertEquals(value, readVarint(buf));
+		}
+	}
+
+	@Test
+	public void chunksRoundTrip() {
+		// Empty chunks, separators and line breaks, non-ASCII, and chunks long enough for two and three byte lengths
+		String[] chunks = {Protocol.ACT_POST, "", "a\nb" + Protocol.SPLIT_CHAR + "c", "héllo ☃", text(200), text(20000)};
+		ByteBuffer frame = Framing.BINARY.encode(chunks);
+		byte[] bytes = bytes(frame);
+		int length = readVarint(ByteBuffer.wrap(bytes));
+		int prefix = Framing.varintSize(length);
+		assertEquals(bytes.length, prefix + length);
+		Packet packet = new Packet().parseFrame(bytes, prefix, length);
+		assertArrayEquals(chunks, packet.chunks());
+		assertTrue(packet.headerIs(Protocol.ACT_POST));
+	}
+
+	@Test
+	public void malformedFramesAreRejected() {
+		byte[] bytes = bytes(Framing.BINARY.encode(Protocol.ACT_POST, "hello"));
+		int prefix = 1;
+		// Chunk length says more bytes than the frame has
+		assertThrows(IllegalArgumentException.class, () -> new Packet().parseFrame(bytes, prefix, bytes.length - prefix - 1));
+		assertThrows(IllegalArgumentException.class, () -> new Packet().parseFrame(bytes, prefix, 0));
+	}
+
+	@Test
+	public void framesSplitAcrossReadsArriveWhole() throws Exception {
+		String[][] packets = {
+			{Protocol.ACT_POST, "first"},
+			{Protocol.NOTIFY, text(300)},
+			{Protocol.STATUS_ACK, "", "42"},
+		};
+		OutputStream out = writer.getOutputStream();
+		Thread slow = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (String[] packet : packets) {
+						for (byte b : bytes(Framing.BINARY.encode(packet))) {
+							out.write(b);	// One byte at a time, so the reader sees every split
+							out.flush();
+						}
+					}
+					writer.shutdownOutput();
+				} catch (IOException e) {
+					// Reader gives up on its own
+				}
+			}
+		});
+		slow.start();
+		for (String[] packet : packets) {
+			assertArrayEquals(packet, reader.read().chunks());
+		}
+		assertNull(reader.read());
+		slow.join();
+	}
+
+	@Test
+	public void streamRefusesOversizedFrames() throws IOException {
+		ByteBuffer prefix = ByteBuffer.allocate(5);
+		Framing.putVarint(prefix, Framing.MAX_FRAME + 1);
+		writer.getOutputStream().write(prefix.array(), 0, prefix.position());
+		assertThrows(IOException.class, () -> reader.read());
+	}
+
+	@Test
+	public void streamRefusesFramesCutShort() throws IOException {
+		byte[] bytes = bytes(Framing.BINARY.encode(Protocol.ACT_POST, "hello"));
+		writer.getOutputStream().write(bytes, 0, bytes.length - 2);
+		writer.shutdownOutput();
+		assertThrows(IOException.class, () -> reader.read());
+	}
+
+	@Test
+	public void streamRefusesOverlongLines() throws Exception {
+		reader.setFraming(Framing.TEXT);
+		OutputStream out = writer.getOutputStream();
+		Thread flood = new Thread(new Runnable() {
+			public void run() {
+				try {
+					out.write((Protocol.ACT_POST + Protocol.SPLIT_CHAR + "short\n").getBytes(Framing.CHARSET));
+					out.write(bytesOf('x', Framing.MAX_FRAME + 1));	// And never a line break
+					out.flush();
+				} catch (IOException e) {
+					// Reader hung up first
+				}
+			}
+		});
+		flood.start();
+		assertArrayEquals(new String[] {Protocol.ACT_POST, "short"}, reader.read().chunks());
+		assertThrows(IOException.class, () -> reader.read());
+		reader.close();
+		flood.join();
+	}
+
+	private static byte[] bytesOf(char c, int length) {
+		byte[] ret = new byte[length];
+		Arrays.fill(ret, (byte)c);
+		return ret;
+	}
+
+	private static int readVarint(ByteBuffer buf) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static byte[] bytes(ByteBuffer buf) {
+		byte[] ret = new byte[buf.remaining()];
+		buf.duplicate().get(ret);
+		return ret;
+	}
+
+	private static String text(int length) {
+		StringBuilder ret = new StringBuilder(length);
+		while (ret.length() < length) {
+			ret.append("the quick brown fox ");
+		}
+		return ret.substring(0, length);
+	}
+}
@@ -0,0 +1,215 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * MessageLog finds the end of its last segment after a crash, never takes a
+ * damaged record for a message, and lets callers wait for their messages to
+ * reach the disk. The build runs these with a small bbs.log.segment, so a few
+ * hundred messages span several segments.
+ * @author Andy
+ *
+ */
+public class MessageLogTest {
+
+	@TempDir
+	File dir;
+
+	private MessageLog log;
+
+	@AfterEach
+	public void close() throws IOException {
+		if (log != null) {
+			log.close();
+		}
+	}
+
+	@Test
+	public void messagesSurviveReopening() throws Exception {
+		log = new MessageLog(dir);
+		append(1, 300);
+		log.close();
+		log = new MessageLog(dir);
+		assertEquals(300, log.lastSeq());
+		assertTrue(segments().length > 1, "segments rolled over");
+		List<Message> tail = log.tail(250);
+		assertEquals(250, tail.size());
+		for (int i = 0; i < tail.size(); i++) {
+			assertEquals(51 + i, tail.get(i).getSeq());
+			assertEquals("message " + (51 + i), tail.get(i).getContent());
+		}
+		append(301, 301);
+		assertEquals(301, log.lastSeq());
+	}
+
+	@Test
+	public void tornRecordIsCutOff() throws Exception {
+		log = new MessageLog(dir);
+		append(1, 10);
+		log.close();
+		File last = segments()[segments().length - 1];
+		long intact = last.length();
+		ByteBuffer next = new Message(11, "andy", "message 11").encode();
+		byte[] half = new byte[next.remaining() / 2];
+		next.get(half);
+		try (RandomAccessFile file = new RandomAccessFile(last, "rw")) {
+			file.seek(intact);
+			file.write(half);	// As if the machine went down part way through a write
+		}
+		log = new MessageLog(dir);
+		assertEquals(10, log.lastSeq());
+		assertEquals(intact, last.length());
+		append(11, 12);
+		log.close();
+		log = new MessageLog(dir);
+		assertEquals(12, log.lastSeq());
+		assertEquals("message 12", log.tail(1).get(0).getContent());
+	}
+
+	@Test
+	public void recordWithBadChecksumIsRejected() throws Exception {
+		log = new MessageLog(dir);
+		append(1, 5);
+		log.close();
+		File last = segments()[segments().length - 1];
+		byte[] bytes = Files.readAllBytes(last.toPath());
+		int at = indexOf(bytes, "message 5".getBytes(StandardCharsets.UTF_8));
+		bytes[at] = 'n';	// Same length, so the frame still parses; only the CRC can tell
+		Files.write(last.toPath(), bytes);
+		log = new MessageLog(dir);
+		assertEquals(4, log.lastSeq());
+		assertEquals("message 4", log.tail(1).get(0).getContent());
+	}
+
+	@Test
+	public void scatteredMessagesAreReadAcrossSegments() throws Exception {
+		log = new MessageLog(dir);
+		append(1, 300);
+		List<Message> found = log.read(new long[] {250, 3, 299, 3, 120, 1, 400});
+		long[] seqs = new long[found.size()];
+		for (int i = 0; i < seqs.length; i++) {
+			seqs[i] = found.get(i).getSeq();
+			assertEquals("message " + seqs[i], found.get(i).getContent());
+		}
+		assertEquals("[1, 3, 120, 250, 299]", Arrays.toString(seqs));
+	}
+
+	@Test
+	public void waitersAreReleasedOnceDurable() throws Exception {
+		log = new MessageLog(dir);
+		final CountDownLatch early = new CountDownLatch(1);
+		log.whenDurable(3, new Latch(early, null));
+		final CountDownLatch awaited = new CountDownLatch(1);
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					log.awaitDurable(3);
+					awaited.countDown();
+				} catch (Exception e) {
+					// Leaves the latch down
+				}
+			}
+		});
+		waiter.start();
+		append(1, 2);
+		assertFalse(early.await(100, TimeUnit.MILLISECONDS), "released before its message was appended");
+		append(3, 3);
+		assertTrue(early.await(5, TimeUnit.SECONDS));
+		assertTrue(awaited.await(5, TimeUnit.SECONDS));
+		log.awaitDurable(3);	// Returns at once
+		final CountDownLatch late = new CountDownLatch(1);
+		log.whenDurable(2, new Latch(late, null));
+		assertEquals(0, late.getCount(), "already durable, so told on the caller");
+	}
+
+	@Test
+	public void waitersAreToldOfFailure() throws Exception {
+		log = new MessageLog(dir);
+		append(1, 2);
+		log.awaitDurable(2);
+		CountDownLatch durable = new CountDownLatch(1);
+		CountDownLatch failed = new CountDownLatch(1);
+		log.whenDurable(3, new Latch(durable, failed));
+		log.close();	// So the next append fails
+		assertThrows(IOException.class, () -> append(3, 3));
+		assertEquals(0, failed.getCount(), "told on the appending thread");
+		assertEquals(1, durable.getCount());
+		CountDownLatch later = new CountDownLatch(1);
+		log.whenDurable(4, new Latch(null, later));
+		assertEquals(0, later.getCount(), "told at once once the log has failed");
+		assertThrows(IOException.class, () -> log.awaitDurable(3));
+		log = null;
+	}
+
+	/**
+	 * Counts down one latch when durable, the other when failed
+	 */
+	private static class Latch implements MessageLog.Callback {
+		private CountDownLatch durable;
+		private CountDownLatch failed;
+
+		Latch(CountDownLatch durable, CountDownLatch failed) {
+			this.durable = durable;
+			this.failed = failed;
+		}
+
+		public void durable() {
+			if (durable != null) {
+				durable.countDown();
+			}
+		}
+
+		public void failed(IOException e) {
+			if (failed != null) {
+				failed.countDown();
+			}
+		}
+	}
+
+	private void append(long from, long to) throws IOException {
+		for (long seq = from; seq <= to; seq++) {
+			log.append(new Message(seq, "andy", "message " + seq));
+		}
+	}
+
+	private File[] segments() {
+		List<File> ret = new ArrayList<>();
+		for (File file : dir.listFiles()) {
+			if (file.getName().endsWith(".log")) {
+				ret.add(file);
+			}
+		}
+		ret.sort(null);
+		return ret.toArray(new File[ret.size()]);
+	}
+
+	private static int indexOf(byte[] bytes, byte[] part) {
+		search:
+		for (int i = 0; i + part.length <= bytes.length; i++) {
+			for (int j = 0; j < part.length; j++) {
+				if (bytes[i + j] != part[j]) {
+					continue search;
+				}
+			}
+			return i;
+		}
+		throw new AssertionError("not found");
+	}
+}
@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * OutboundQueue puts control packets ahead of notifications, holds
+ * notifications back during a replay, and makes a replaying thread wait for the
+ * writer
+ * @author Andy
+ *
+ */
+public class OutboundQueueTest {
+
+	@Test
+	public void controlPacketsGoFirst() {
+		OutboundQueue<String> queue = new OutboundQueue<>(4, OutboundQueue.Overflow.DROP_OLDEST, null);
+		queue.offer("n1");
+		queue.add("c1");
+		queue.offer("n2");
+		queue.add("c2");
+		String[] batch = new String[8];
+		assertEquals(4, queue.drainTo(batch, 0));
+		assertEquals("[c1, c2, n1, n2]", Arrays.toString(Arrays.copyOf(batch, 4)));
+	}
+
+	@Test
+	public void heldNotificationsWaitForTheReplay() {
+		OutboundQueue<String> queue = new OutboundQueue<>(4, OutboundQueue.Overflow.DROP_OLDEST, null);
+		queue.hold(true);
+		queue.offer("n1");
+		assertTrue(queue.isEmpty(), "nothing to write yet");
+		queue.add("replayed");
+		assertEquals("replayed", queue.poll());
+		assertNull(queue.poll());
+		queue.hold(false);
+		assertFalse(queue.isEmpty());
+		assertEquals("n1", queue.poll());
+	}
+
+	@Test
+	public void replayWaitsForTheWriter() throws Exception {
+		final OutboundQueue<String> queue = new OutboundQueue<>(4, OutboundQueue.Overflow.DROP_OLDEST, null);
+		queue.add("c1");
+		queue.add("c2");
+		assertTrue(queue.awaitRoom(3), "room already");
+		final CountDownLatch room = new CountDownLatch(1);
+		final AtomicBoolean open = new AtomicBoolean();
+		Thread replay = new Thread(new Runnable() {
+			public void run() {
+				try {
+					open.set(queue.awaitRoom(2));
+					room.countDown();
+				} catch (InterruptedException e) {
+					// Leaves the latch up
+				}
+			}
+		});
+		replay.start();
+		assertFalse(room.await(100, TimeUnit.MILLISECONDS), "two waiting, none allowed");
+		queue.poll();
+		assertTrue(room.await(5, TimeUnit.SECONDS));
+		assertTrue(open.get());
+
+		final CountDownLatch gaveUp = new CountDownLatch(1);
+		Thread stuck = new Thread(new Runnable() {
+			public void run() {
+				try {
+					if (!queue.awaitRoom(1)) {
+						gaveUp.countDown();
+					}
+				} catch (InterruptedException e) {
+					// Leaves the latch up
+				}
+			}
+		});
+		stuck.start();
+		queue.close();
+		assertTrue(gaveUp.await(5, TimeUnit.SECONDS), "closing lets the replay give up");
+	}
+}
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * RateLimiter lets a full burst through at once, then only as fast as it
+ * refills, and Keyed hands out one bucket per key for as long as it matters
+ * @author Andy
+ *
+ */
+public class RateLimiterTest {
+
+	@Test
+	public void burstThenRefused() {
+		RateLimiter limiter = new RateLimiter(1, 5);	// Slow enough that nothing refills during the test
+		assertTrue(limiter.isFull());
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.tryAcquire(1), "token " + i);
+		}
+		assertFalse(limiter.tryAcquire(1));
+		assertFalse(limiter.isFull());
+	}
+
+	@Test
+	public void takesAllTokensOrNone() {
+		RateLimiter limiter = new RateLimiter(1, 5);
+		assertFalse(limiter.tryAcquire(6), "more than the bucket holds");
+		assertTrue(limiter.tryAcquire(3));
+		assertFalse(limiter.tryAcquire(3), "only two left");
+		assertTrue(limiter.tryAcquire(2), "the refusal took nothing");
+		assertFalse(limiter.tryAcquire(1));
+	}
+
+	@Test
+	public void refillsOverTime() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(100, 2);	// A token every 10ms
+		assertTrue(limiter.tryAcquire(2));
+		assertFalse(limiter.tryAcquire(1));
+		Thread.sleep(50);
+		assertTrue(limiter.tryAcquire(2));
+		assertFalse(limiter.tryAcquire(1), "never holds more than the burst");
+		Thread.sleep(50);
+		assertTrue(limiter.isFull());
+	}
+
+	@Test
+	public void noRateMeansNoLimit() {
+		RateLimiter limiter = new RateLimiter(0, 1);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(limiter.tryAcquire(100));
+		}
+		assertTrue(limiter.isFull());
+	}
+
+	@Test
+	public void keyedSharesOneBucketPerKey() {
+		RateLimiter.Keyed<String> keyed = new RateLimiter.Keyed<>(1, 2);
+		RateLimiter andy = keyed.get("andy");
+		assertSame(andy, keyed.get("andy"));
+		assertNotSame(andy, keyed.get("erin"));
+		assertTrue(keyed.get("andy").tryAcquire(2));
+		assertFalse(keyed.get("andy").tryAcquire(1));
+		assertTrue(keyed.get("erin").tryAcquire(2), "each key has a bucket of its own");
+	}
+
+	@Test
+	public void keyedForgetsOnlyFullBuckets() {
+		RateLimiter.Keyed<Integer> keyed = new RateLimiter.Keyed<>(1, 1);
+		RateLimiter busy = keyed.get(-1);
+		assertTrue(busy.tryAcquire(1));
+		RateLimiter idle = keyed.get(-2);
+		for (int i = 0; i < 2048; i++) {
+			keyed.get(i);	// Enough new keys to clear out the full buckets at least once
+		}
+		assertSame(busy, keyed.get(-1), "an empty bucket is kept");
+		assertNotSame(idle, keyed.get(-2), "a full one is no different from a new one");
+		assertFalse(keyed.get(-1).tryAcquire(1));
+	}
+}
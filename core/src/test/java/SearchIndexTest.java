@@ -0,0 +1,247 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * SearchIndex finds the same messages a plain scan would, newest first, and
+ * gets them back from its checkpoints after a restart. The build runs these
+ * with a small bbs.search.checkpoint, so a few hundred messages make several
+ * checkpoint files and a couple of thousand get them merged.
+ * @author Andy
+ *
+ */
+public class SearchIndexTest {
+
+	private static final String[] AUTHORS = {"Andy", "erin", "SAM"};
+
+	@TempDir
+	File dir;
+
+	@Test
+	public void wordsMustAllMatch() throws IOException {
+		SearchIndex index = indexOf(null, 300);
+		check(index, "quick", null, 0, Long.MAX_VALUE, 1000);
+		check(index, "Quick FOX", null, 0, Long.MAX_VALUE, 1000);
+		check(index, "quick, fox; lazy!", null, 0, Long.MAX_VALUE, 1000);
+		assertEquals(0, index.search("quick unheard", null, 0, Long.MAX_VALUE, 1000).length);
+		assertEquals(0, index.search("qui", null, 0, Long.MAX_VALUE, 1000).length, "whole words only");
+	}
+
+	@Test
+	public void authorsMatchInAnyCase() throws IOException {
+		SearchIndex index = indexOf(null, 300);
+		long[] lower = index.search(null, "andy", 0, Long.MAX_VALUE, 1000);
+		assertEquals(100, lower.length);
+		assertArrayEquals(lower, index.search(null, "ANDY", 0, Long.MAX_VALUE, 1000));
+		assertArrayEquals(lower, index.search(null, "Andy", 0, Long.MAX_VALUE, 1000));
+		check(index, "fox", "Sam", 0, Long.MAX_VALUE, 1000);
+		assertEquals(0, index.search(null, "nobody", 0, Long.MAX_VALUE, 1000).length);
+	}
+
+	@Test
+	public void timeRangeIsInclusive() throws IOException {
+		SearchIndex index = indexOf(null, 300);
+		check(index, null, null, time(50), time(60), 1000);
+		assertEquals(11, index.search(null, null, time(50), time(60), 1000).length);
+		check(index, "quick", "erin", time(10), time(200), 1000);
+		check(index, null, null, time(50) + 1, time(51) - 1, 1000);
+		check(index, null, null, 0, time(0), 1000);
+		check(index, null, null, time(301), Long.MAX_VALUE, 1000);
+	}
+
+	@Test
+	public void limitKeepsTheNewest() throws IOException {
+		SearchIndex index = indexOf(null, 300);
+		assertArrayEquals(new long[] {300, 299, 298}, index.search(null, null, 0, Long.MAX_VALUE, 3));
+		check(index, "lazy", null, 0, Long.MAX_VALUE, 5);
+		check(index, "quick", "andy", time(100), time(250), 4);
+		assertEquals(0, index.search("quick", null, 0, Long.MAX_VALUE, 0).length);
+	}
+
+	@Test
+	public void messagesOutOfOrderAreRefused() throws IOException {
+		SearchIndex index = indexOf(null, 10);
+		index.add(message(5));	// Already indexed, skipped
+		assertEquals(10, index.last());
+		assertThrows(IllegalArgumentException.class, () -> index.add(message(12)));
+		index.clear();
+		assertEquals(0, index.last());
+		assertEquals(0, index.search(null, null, 0, Long.MAX_VALUE, 10).length);
+	}
+
+	@Test
+	public void checkpointsAreReloaded() throws Exception {
+		SearchIndex before = indexOf(dir, 250);
+		awaitCheckpoint(101, 200);
+		SearchIndex after = new SearchIndex(dir);
+		assertEquals(200, after.last(), "only whole checkpoints are saved");
+		for (int seq = 201; seq <= 250; seq++) {
+			after.add(message(seq));
+		}
+		assertArrayEquals(before.search("quick fox", null, 0, Long.MAX_VALUE, 1000),
+				after.search("quick fox", null, 0, Long.MAX_VALUE, 1000));
+		check(after, "lazy", "erin", time(20), time(240), 1000);
+	}
+
+	@Test
+	public void checkpointsAreMerged() throws Exception {
+		indexOf(dir, 1700);
+		// The sixteenth file gets everything so far merged into the first
+		File merged = awaitCheckpoint(1, 1600);
+		awaitCheckpoint(1601, 1700);
+		assertEquals(2, checkpoints().size());
+		assertTrue(merged.exists());
+		SearchIndex reloaded = new SearchIndex(dir);
+		assertEquals(1700, reloaded.last());
+		check(reloaded, "quick fox", "andy", time(100), time(1650), 1000);
+	}
+
+	@Test
+	public void damagedCheckpointIsIndexedAgain() throws Exception {
+		indexOf(dir, 300);
+		awaitCheckpoint(201, 300);
+		File damaged = new File(dir, "0000000101.idx");
+		try (RandomAccessFile file = new RandomAccessFile(damaged, "rw")) {
+			file.setLength(file.length() / 2);
+		}
+		SearchIndex index = new SearchIndex(dir);
+		assertEquals(100, index.last(), "kept what came before the damage");
+		assertFalse(damaged.exists());
+		assertFalse(new File(dir, "0000000201.idx").exists(), "dropped what came after it");
+		for (int seq = 101; seq <= 300; seq++) {
+			index.add(message(seq));
+		}
+		check(index, "quick", "sam", 0, Long.MAX_VALUE, 1000);
+		awaitCheckpoint(201, 300);	// Written again, and done with before the directory goes
+	}
+
+	@Test
+	public void damagedCheckpointIsSavedAgainWhenMerging() throws Exception {
+		SearchIndex index = indexOf(dir, 300);
+		awaitCheckpoint(201, 300);
+		try (RandomAccessFile file = new RandomAccessFile(new File(dir, "0000000001.idx"), "rw")) {
+			file.setLength(file.length() / 2);
+		}
+		for (int seq = 301; seq <= 1700; seq++) {
+			index.add(message(seq));
+		}
+		// The merge at the sixteenth file finds the first damaged and drops them all,
+		// and the checkpoint after it was already on its way
+		awaitCheckpoint(1601, 1700);
+		assertFalse(new File(dir, "0000000001.idx").exists());
+		for (int seq = 1701; seq <= 1800; seq++) {
+			index.add(message(seq));
+		}
+		// So the next one saves everything again
+		awaitCheckpoint(1, 1800);
+		SearchIndex reloaded = new SearchIndex(dir);
+		assertEquals(1800, reloaded.last());
+		assertEquals(1, checkpoints().size(), "the one it covers is dropped");
+		check(reloaded, "quick", "erin", 0, Long.MAX_VALUE, 1000);
+		check(reloaded, "lazy fox", null, time(1), time(1650), 1000);
+	}
+
+	/**
+	 * Checks a search against a scan of every message
+	 */
+	private static void check(SearchIndex index, String text, String author, long from, long to, int limit) {
+		List<String> words = new ArrayList<>();
+		if (text != null) {
+			for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+				if (!word.isEmpty()) {
+					words.add(word);
+				}
+			}
+		}
+		List<Long> expected = new ArrayList<>();
+		for (long seq = index.last(); seq >= 1 && expected.size() < limit; seq--) {
+			Message message = message(seq);
+			List<String> has = Arrays.asList(message.getContent().toLowerCase().split("[^\\p{L}\\p{N}]+"));
+			if (has.containsAll(words) && (author == null || author.equalsIgnoreCase(message.getSource()))
+					&& message.getTime() >= from && message.getTime() <= to) {
+				expected.add(seq);
+			}
+		}
+		long[] found = index.search(text, author, from, to, limit);
+		String query = text + " by " + author + " from " + from + " to " + to;
+		assertEquals(expected.toString(), Arrays.toString(found), query);
+	}
+
+	private static SearchIndex indexOf(File dir, int count) throws IOException {
+		SearchIndex index = new SearchIndex(dir);
+		for (int seq = 1; seq <= count; seq++) {
+			index.add(message(seq));
+		}
+		return index;
+	}
+
+	/**
+	 * Every second message is quick, every third has a fox, every fifth is lazy
+	 */
+	private static Message message(long seq) {
+		StringBuilder content = new StringBuilder("message ").append(seq);
+		if (seq % 2 == 0) {
+			content.append(" the quick");
+		}
+		if (seq % 3 == 0) {
+			content.append(" brown fox,");
+		}
+		if (seq % 5 == 0) {
+			content.append(" jumps over the LAZY dog");
+		}
+		return new Message(seq, AUTHORS[(int)(seq % AUTHORS.length)], content.toString(), time(seq));
+	}
+
+	private static long time(long seq) {
+		return 1000000 + seq * 1000;
+	}
+
+	/**
+	 * Waits for the writer thread to put a checkpoint in place. Files are moved
+	 * into place whole, so one that is there can be read.
+	 * @return the file
+	 */
+	private File awaitCheckpoint(int from, int to) throws Exception {
+		File file = new File(dir, String.format("%010d.idx", from));
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline) {
+			if (file.exists()) {
+				try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+					in.readInt();	// Magic
+					in.readInt();	// From
+					if (in.readInt() == to) {
+						return file;
+					}
+				} catch (IOException e) {
+					// Replaced while it was read
+				}
+			}
+			Thread.sleep(10);
+		}
+		throw new AssertionError("No checkpoint of messages " + from + " to " + to);
+	}
+
+	private List<File> checkpoints() {
+		List<File> ret = new ArrayList<>();
+		for (File file : dir.listFiles()) {
+			if (file.getName().endsWith(".idx")) {
+				ret.add(file);
+			}
+		}
+		return ret;
+	}
+}
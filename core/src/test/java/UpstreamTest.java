@@ -0,0 +1,111 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Upstream hands on the leader's messages, matches up its acknowledgements,
+ * and tells everyone waiting on a forward when the leader stops taking posts.
+ * The leader here is played by the test.
+ * @author Andy
+ *
+ */
+public class UpstreamTest {
+
+	private ServerSocket listener;
+	private PacketStream leader;
+	private Upstream upstream;
+	private AtomicReference<Message> replicated = new AtomicReference<>();
+
+	@BeforeEach
+	public void connect() throws IOException {
+		listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		upstream = new Upstream(new InetSocketAddress(listener.getInetAddress(), listener.getLocalPort()),
+				"main", "node", "", 0, 16, new Upstream.Handler() {
+					public void replicate(Message message) {
+						replicated.set(message);
+					}
+				});
+		upstream.start();
+		leader = new PacketStream(listener.accept());
+		assertTrue(leader.read().headerIs(Protocol.CLIENT_PEER));
+		leader.write(Protocol.STATUS_ACK, "Following");
+		leader.setFraming(Framing.BINARY);
+	}
+
+	@AfterEach
+	public void close() throws IOException {
+		leader.close();
+		listener.close();
+	}
+
+	@Test
+	public void forwardsAreAcknowledged() throws Exception {
+		long ticket = upstream.forward("andy", Collections.singletonList("hello"));
+		Packet forward = leader.read();
+		assertTrue(forward.headerIs(Protocol.ACT_FORWARD));
+		assertEquals("hello", forward.chunk(3));
+		assertEquals(Long.toString(ticket), forward.chunk(4));
+		Waiter waiter = new Waiter();
+		upstream.whenForwarded(ticket, waiter);
+		leader.write(new Message(1, "andy", "hello").encode());
+		leader.write(Protocol.STATUS_ACK, "1", Long.toString(ticket));
+		assertEquals(1, upstream.awaitForwarded(ticket));
+		assertTrue(waiter.done.await(5, TimeUnit.SECONDS));
+		assertEquals(1, waiter.seq.get());
+		assertEquals("hello", replicated.get().getContent());
+		Waiter late = new Waiter();
+		upstream.whenForwarded(ticket, late);
+		assertEquals(1, late.seq.get(), "already acknowledged, so told on the caller");
+	}
+
+	@Test
+	public void waitersAreToldWhenTheLeaderFails() throws Exception {
+		long ticket = upstream.forward("andy", Collections.singletonList("hello"));
+		Waiter waiter = new Waiter();
+		upstream.whenForwarded(ticket, waiter);
+		assertTrue(leader.read().headerIs(Protocol.ACT_FORWARD));
+		leader.write(Protocol.STATUS_ERR, "Message log failed, not posting", Long.toString(ticket));
+		assertTrue(waiter.done.await(5, TimeUnit.SECONDS));
+		assertEquals("Message log failed, not posting", waiter.failure.get().getMessage());
+		assertEquals(0, upstream.backlog());
+		Waiter late = new Waiter();
+		upstream.whenForwarded(ticket, late);
+		assertNotNull(late.failure.get(), "told at once once the leader has failed");
+		assertThrows(IOException.class, () -> upstream.awaitForwarded(ticket));
+		assertThrows(IOException.class, () -> upstream.forward("andy", Collections.singletonList("again")));
+	}
+
+	/**
+	 * Remembers what it was told
+	 */
+	private static class Waiter implements Upstream.Callback {
+		private CountDownLatch done = new CountDownLatch(1);
+		private AtomicLong seq = new AtomicLong(-1);
+		private AtomicReference<IOException> failure = new AtomicReference<>();
+
+		public void forwarded(long seq) {
+			this.seq.set(seq);
+			done.countDown();
+		}
+
+		public void failed(IOException e) {
+			failure.set(e);
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * UserStore brings back every registration and removal after a restart, from
+ * its log alone or from a snapshot plus the log since, and never loads a
+ * damaged file. Users are made from ready credentials, since hashing real
+ * passwords is slow on purpose.
+ * @author Andy
+ *
+ */
+public class UserStoreTest {
+
+	@TempDir
+	File dir;
+
+	private UserStore store;
+	private ConcurrentHashMap<String, BoardServer.User> users = new ConcurrentHashMap<>();
+
+	@AfterEach
+	public void close() throws IOException {
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	@Test
+	public void logIsReplayed() throws Exception {
+		store = new UserStore(dir, users);
+		register("andy", "erin", "sam");
+		remove("erin");
+		assertEquals(4, store.pending());
+		ConcurrentHashMap<String, BoardServer.User> loaded = reopen();
+		assertEquals(users.keySet(), loaded.keySet());
+		assertArrayEquals(users.get("sam").getCredential(), loaded.get("sam").getCredential());
+		assertEquals(4, store.pending());
+	}
+
+	@Test
+	public void snapshotAndLaterLogAreBothLoaded() throws Exception {
+		store = new UserStore(dir, users);
+		register("andy", "erin");
+		store.snapshot();
+		assertEquals(0, store.pending());
+		assertEquals(1, files("users").size());
+		assertEquals(1, files("wal").size(), "older log deleted");
+		register("sam");
+		remove("andy");
+		ConcurrentHashMap<String, BoardServer.User> loaded = reopen();
+		assertEquals(users.keySet(), loaded.keySet());
+		assertNull(loaded.get("andy"));
+		assertEquals(2, store.pending(), "only the log since the snapshot is replayed");
+	}
+
+	@Test
+	public void tornLogRecordIsCutOff() throws Exception {
+		store = new UserStore(dir, users);
+		register("andy", "erin");
+		store.close();
+		File wal = files("wal").get(0);
+		long intact = wal.length();
+		try (RandomAccessFile file = new RandomAccessFile(wal, "rw")) {
+			file.seek(intact);
+			file.write(new byte[] {0, 0, 0, 40, 1, 2});	// A length and half a CRC, then the machine went down
+		}
+		store = null;
+		ConcurrentHashMap<String, BoardServer.User> loaded = reopen();
+		assertEquals(users.keySet(), loaded.keySet());
+		assertEquals(intact, wal.length());
+		users = loaded;
+		register("sam");
+		assertTrue(reopen().containsKey("sam"), "appended after the cut");
+	}
+
+	@Test
+	public void damagedSnapshotIsRefused() throws Exception {
+		List<BoardServer.User> list = new ArrayList<>();
+		list.add(user("andy"));
+		list.add(user("erin"));
+		File file = new File(dir, "users.snap");
+		assertEquals(2, UserStore.write(file, list));
+		HashMap<String, BoardServer.User> into = new HashMap<>();
+		assertEquals(2, UserStore.read(file, into));
+		assertEquals(2, into.size());
+
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		bytes[9] ^= 1;	// Inside the first username, so only the CRC can tell
+		Files.write(file.toPath(), bytes);
+		HashMap<String, BoardServer.User> none = new HashMap<>();
+		assertThrows(IOException.class, () -> UserStore.read(file, none));
+		assertTrue(none.isEmpty(), "nothing loaded from a damaged file");
+
+		byte[] shorter = new byte[bytes.length - 3];
+		System.arraycopy(bytes, 0, shorter, 0, shorter.length);
+		Files.write(file.toPath(), shorter);
+		assertThrows(IOException.class, () -> UserStore.read(file, none));
+		assertTrue(none.isEmpty());
+	}
+
+	@Test
+	public void damagedNewestSnapshotFallsBackToTheLogs() throws Exception {
+		store = new UserStore(dir, users);
+		register("andy", "erin");
+		store.snapshot();
+		register("sam");
+		store.close();
+		store = null;
+		File snap = files("users").get(0);
+		byte[] bytes = Files.readAllBytes(snap.toPath());
+		bytes[bytes.length - 1] ^= 1;
+		Files.write(snap.toPath(), bytes);
+		ConcurrentHashMap<String, BoardServer.User> loaded = reopen();
+		// The older logs went with the older snapshot, so only what came after it is left
+		assertEquals("[sam]", loaded.keySet().toString());
+		assertFalse(loaded.containsKey("andy"));
+	}
+
+	private void register(String... names) throws IOException {
+		for (String name : names) {
+			BoardServer.User user = user(name);
+			users.put(name, user);
+			store.registered(user);
+		}
+	}
+
+	private void remove(String name) throws IOException {
+		users.remove(name);
+		store.removed(name);
+	}
+
+	/**
+	 * Closes the store and opens it again into a fresh map
+	 */
+	private ConcurrentHashMap<String, BoardServer.User> reopen() throws IOException {
+		if (store != null) {
+			store.close();
+		}
+		ConcurrentHashMap<String, BoardServer.User> loaded = new ConcurrentHashMap<>();
+		store = new UserStore(dir, loaded);
+		return loaded;
+	}
+
+	private List<File> files(String prefix) {
+		List<File> ret = new ArrayList<>();
+		for (File file : dir.listFiles()) {
+			if (file.getName().startsWith(prefix + "-")) {
+				ret.add(file);
+			}
+		}
+		ret.sort(null);
+		return ret;
+	}
+
+	private static BoardServer.User user(String name) {
+		return new BoardServer.User(name, ("credential of " + name).getBytes(StandardCharsets.UTF_8));
+	}
+}